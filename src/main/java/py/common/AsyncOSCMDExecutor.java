@@ -0,0 +1,263 @@
+package py.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An asynchronous counterpart of {@link OSCMDExecutor}.
+ * <p>
+ * Commands are queued and at most {@code maxConcurrency} of them run at the same time, so a burst of commands during
+ * recovery does not turn into a burst of process spawns. Callers get a {@link CompletableFuture} instead of being
+ * blocked in {@link Process#waitFor()}. STDERR is merged into STDOUT, so each running command costs one reader thread
+ * instead of two. A command running longer than its timeout is killed.
+ * <p>
+ * When coalescing is enabled, submitting a command identical to one still queued or running returns the future of the
+ * existing one instead of running it again. This is meant for read-only commands like {@code lsblk}.
+ */
+public class AsyncOSCMDExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncOSCMDExecutor.class);
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /**
+     * The outcome of one command.
+     */
+    public static class Result {
+        private final int exitCode;
+        private final String output;
+        private final boolean timedOut;
+        private final long costMs;
+
+        Result(int exitCode, String output, boolean timedOut, long costMs) {
+            this.exitCode = exitCode;
+            this.output = output;
+            this.timedOut = timedOut;
+            this.costMs = costMs;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return STDOUT and STDERR of the command, interleaved as they were written
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public long getCostMs() {
+            return costMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{exitCode=" + exitCode + ", timedOut=" + timedOut + ", costMs=" + costMs + "}";
+        }
+    }
+
+    private final int maxConcurrency;
+    private final long defaultTimeoutMs;
+    private final ExecutorService readerExecutor;
+    private final ScheduledExecutorService killer;
+
+    private final Queue<Command> pendingCommands = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger runningCount = new AtomicInteger(0);
+    private final Map<String, CompletableFuture<Result>> inflightCommands = new ConcurrentHashMap<>();
+
+    public AsyncOSCMDExecutor(int maxConcurrency, long defaultTimeoutMs, String name) {
+        Validate.isTrue(maxConcurrency > 0);
+        this.maxConcurrency = maxConcurrency;
+        this.defaultTimeoutMs = defaultTimeoutMs;
+        this.readerExecutor = Executors.newFixedThreadPool(maxConcurrency, new NamedThreadFactory(name + "-", true));
+        this.killer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-killer-", true));
+    }
+
+    /**
+     * Run the given command with the default timeout, coalescing with an identical command in flight.
+     */
+    public CompletableFuture<Result> exec(String... osCMDs) {
+        return exec(osCMDs, null, null, defaultTimeoutMs, true);
+    }
+
+    /**
+     * @param envp
+     *            environment variables to add to the ones inherited from the current process, or null
+     * @param dir
+     *            the working directory of the subprocess, or null to inherit the one of the current process
+     * @param timeoutMs
+     *            the command is killed if it runs longer than this, no limit if not positive
+     * @param coalesce
+     *            whether an identical command in flight may be shared
+     */
+    public CompletableFuture<Result> exec(String[] osCMDs, Map<String, String> envp, File dir, long timeoutMs,
+            boolean coalesce) {
+        Validate.notEmpty(osCMDs);
+        if (!coalesce || envp != null || dir != null) {
+            CompletableFuture<Result> future = new CompletableFuture<>();
+            enqueue(new Command(osCMDs, envp, dir, timeoutMs, future, null));
+            return future;
+        }
+
+        String key = String.join("\u0000", osCMDs);
+        CompletableFuture<Result> newFuture = new CompletableFuture<>();
+        CompletableFuture<Result> existing = inflightCommands.putIfAbsent(key, newFuture);
+        if (existing != null) {
+            logger.debug("coalesce command {} with the one in flight", (Object) osCMDs);
+            return existing;
+        }
+        enqueue(new Command(osCMDs, null, null, timeoutMs, newFuture, key));
+        return newFuture;
+    }
+
+    public int getPendingCount() {
+        return pendingCommands.size();
+    }
+
+    public int getRunningCount() {
+        return runningCount.get();
+    }
+
+    public void shutdown() {
+        readerExecutor.shutdownNow();
+        killer.shutdownNow();
+        Command command;
+        while ((command = pendingCommands.poll()) != null) {
+            command.complete(null, new IOException("executor was shut down"));
+        }
+    }
+
+    private void enqueue(Command command) {
+        pendingCommands.offer(command);
+        startPending();
+    }
+
+    private void startPending() {
+        while (true) {
+            int running = runningCount.get();
+            if (running >= maxConcurrency) {
+                return;
+            }
+            if (!runningCount.compareAndSet(running, running + 1)) {
+                continue;
+            }
+
+            Command command = pendingCommands.poll();
+            if (command == null) {
+                runningCount.decrementAndGet();
+                // a command may have been queued after the poll and before the decrement
+                if (pendingCommands.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                readerExecutor.execute(command);
+            } catch (Exception e) {
+                runningCount.decrementAndGet();
+                command.complete(null, e);
+            }
+        }
+    }
+
+    private class Command implements Runnable {
+        private final String[] osCMDs;
+        private final Map<String, String> envp;
+        private final File dir;
+        private final long timeoutMs;
+        private final CompletableFuture<Result> future;
+        private final String coalesceKey;
+        private volatile boolean timedOut = false;
+
+        Command(String[] osCMDs, Map<String, String> envp, File dir, long timeoutMs,
+                CompletableFuture<Result> future, String coalesceKey) {
+            this.osCMDs = osCMDs;
+            this.envp = envp;
+            this.dir = dir;
+            this.timeoutMs = timeoutMs;
+            this.future = future;
+            this.coalesceKey = coalesceKey;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            ScheduledFuture<?> killTask = null;
+            try {
+                ProcessBuilder builder = new ProcessBuilder(osCMDs).redirectErrorStream(true).directory(dir);
+                if (envp != null) {
+                    builder.environment().putAll(envp);
+                }
+                Process process = builder.start();
+                // nothing is ever written to the command
+                process.getOutputStream().close();
+
+                if (timeoutMs > 0) {
+                    killTask = killer.schedule(() -> {
+                        timedOut = true;
+                        logger.warn("command {} timed out after {}ms, kill it", Arrays.toString(osCMDs), timeoutMs);
+                        process.destroyForcibly();
+                    }, timeoutMs, TimeUnit.MILLISECONDS);
+                }
+
+                String output = readAll(process.getInputStream());
+                int exitCode = process.waitFor();
+                complete(new Result(exitCode, output, timedOut, System.currentTimeMillis() - startTime), null);
+            } catch (Throwable t) {
+                logger.error("Caught an exception when executing os command [ {} ]", Arrays.toString(osCMDs), t);
+                complete(null, t);
+            } finally {
+                if (killTask != null) {
+                    killTask.cancel(false);
+                }
+                runningCount.decrementAndGet();
+                startPending();
+            }
+        }
+
+        private String readAll(InputStream stream) throws IOException {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int length;
+            while ((length = stream.read(buffer)) >= 0) {
+                output.write(buffer, 0, length);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        void complete(Result result, Throwable cause) {
+            if (coalesceKey != null) {
+                inflightCommands.remove(coalesceKey, future);
+            }
+            if (cause == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+}
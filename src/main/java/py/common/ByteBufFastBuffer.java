@@ -0,0 +1,138 @@
+package py.common;
+
+import java.nio.ByteBuffer;
+
+import io.netty.buffer.ByteBuf;
+import py.exception.BufferOverflowException;
+import py.exception.BufferUnderflowException;
+
+/**
+ * A {@link FastBuffer} adopting the readable bytes of a netty {@link ByteBuf} without copying them.
+ * <p>
+ * The buffer takes over one reference of the given {@link ByteBuf}, which is given back by {@link #release()}.
+ * {@link TLSFFastBufferManager#releaseBuffer(FastBuffer)} and {@link FastBufferManagerProxy#releaseBuffer(FastBuffer)}
+ * recognize it and release it the same way, so it can flow through code written for managed buffers.
+ *
+ * @see py.netty.memory.FastBufferByteBufBridge
+ */
+public class ByteBufFastBuffer implements FastBuffer {
+    private final ByteBuf byteBuf;
+    private final int baseIndex;
+    private final int size;
+
+    public ByteBufFastBuffer(ByteBuf byteBuf) {
+        this.byteBuf = byteBuf;
+        this.baseIndex = byteBuf.readerIndex();
+        this.size = byteBuf.readableBytes();
+    }
+
+    public ByteBuf getByteBuf() {
+        return byteBuf;
+    }
+
+    /**
+     * Give the adopted reference back to the {@link ByteBuf}.
+     */
+    public boolean release() {
+        return byteBuf.release();
+    }
+
+    private void checkGet(long srcOffset, int length) throws BufferUnderflowException {
+        if (srcOffset < 0 || srcOffset + length > size) {
+            throw new BufferUnderflowException("dst' length " + length + " is larger than the buffer size:" + size
+                    + ", offset: " + srcOffset);
+        }
+    }
+
+    private void checkPut(long dstOffset, int length) throws BufferOverflowException {
+        if (dstOffset < 0 || dstOffset + length > size) {
+            throw new BufferOverflowException("src' length " + length + " is larger than the buffer size " + size
+                    + ", dstOffset: " + dstOffset);
+        }
+    }
+
+    @Override
+    public void get(byte[] dst) throws BufferUnderflowException {
+        get(0, dst, 0, dst.length);
+    }
+
+    @Override
+    public void get(byte[] dst, int offset, int length) throws BufferUnderflowException {
+        get(0, dst, offset, length);
+    }
+
+    @Override
+    public void get(ByteBuffer dst) throws BufferUnderflowException {
+        get(dst, dst.position(), dst.remaining());
+    }
+
+    @Override
+    public void get(ByteBuffer dst, int dstOffset, int length) throws BufferUnderflowException {
+        get(0, dst, dstOffset, length);
+    }
+
+    @Override
+    public void get(long srcOffset, ByteBuffer dst, int dstOffset, int length) throws BufferUnderflowException {
+        checkGet(srcOffset, length);
+        ByteBuffer target = dst.duplicate();
+        target.clear();
+        target.position(dstOffset).limit(dstOffset + length);
+        byteBuf.getBytes(baseIndex + (int) srcOffset, target);
+    }
+
+    @Override
+    public void get(long srcOffset, byte[] dst, int dstOffset, int length) throws BufferUnderflowException {
+        checkGet(srcOffset, length);
+        byteBuf.getBytes(baseIndex + (int) srcOffset, dst, dstOffset, length);
+    }
+
+    @Override
+    public void put(byte[] src) throws BufferOverflowException {
+        put(0, src, 0, src.length);
+    }
+
+    @Override
+    public void put(byte[] src, int srcOffset, int length) throws BufferOverflowException {
+        put(0, src, srcOffset, length);
+    }
+
+    @Override
+    public void put(long dstOffset, byte[] src, int srcOffset, int length) throws BufferOverflowException {
+        checkPut(dstOffset, length);
+        byteBuf.setBytes(baseIndex + (int) dstOffset, src, srcOffset, length);
+    }
+
+    @Override
+    public void put(ByteBuffer src) throws BufferOverflowException {
+        put(0, src, src.position(), src.remaining());
+    }
+
+    @Override
+    public void put(ByteBuffer src, int srcOffset, int length) throws BufferOverflowException {
+        put(0, src, srcOffset, length);
+    }
+
+    @Override
+    public void put(long dstOffset, ByteBuffer src, int srcOffset, int length) throws BufferOverflowException {
+        checkPut(dstOffset, length);
+        ByteBuffer source = src.duplicate();
+        source.clear();
+        source.position(srcOffset).limit(srcOffset + length);
+        byteBuf.setBytes(baseIndex + (int) dstOffset, source);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public byte[] array() {
+        if (size == 0) {
+            return null;
+        }
+        byte[] temp = new byte[size];
+        get(temp);
+        return temp;
+    }
+}
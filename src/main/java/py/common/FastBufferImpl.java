@@ -139,6 +139,13 @@ public class FastBufferImpl implements FastBuffer {
         return this.accessibleMemSize;
     }
 
+    /**
+     * @return native address of the first accessible byte of this buffer
+     */
+    public long getAccessibleMemAddress() {
+        return this.accessibleMemAddress;
+    }
+
     @Override
     public byte[] array() {
         if (size() == 0) {
@@ -140,6 +140,11 @@ public class FastBufferManagerProxy {
     }
 
     public void releaseBuffer(FastBuffer retbuf) {
+        if (retbuf instanceof ByteBufFastBuffer) {
+            // adopted from netty, no permits were taken for it
+            ((ByteBufFastBuffer) retbuf).release();
+            return;
+        }
         long size = retbuf.size();
         fastBufferManager.releaseBuffer(retbuf);
         int allocateCount = (int) (size >> SECTOR_BITS);
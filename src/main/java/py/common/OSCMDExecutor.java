@@ -18,7 +18,7 @@ import org.slf4j.LoggerFactory;
 /**
  * 
  * @author zjm
- *
+ * @see AsyncOSCMDExecutor for running many commands without blocking the callers
  */
 public class OSCMDExecutor {
     private static final Logger LOG = LoggerFactory.getLogger(OSCMDExecutor.class);
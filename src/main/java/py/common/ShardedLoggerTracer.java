@@ -0,0 +1,538 @@
+package py.common;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.FormattingTuple;
+import org.slf4j.helpers.MessageFormatter;
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+import py.metrics.PYNullMetric;
+import py.metrics.PYTimerContext;
+import sun.misc.Unsafe;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A request tracer with the same usage as {@link LoggerTracer}, cheap enough to stay enabled at full IOPS.
+ * <p>
+ * Each thread appends binary records (trace id, timestamp, format, class name and the arguments) to its own ring, so
+ * {@link #mark} does not contend with other threads. Primitive, string and other immutable arguments are kept as they
+ * are; any other argument is turned into a string when it is marked, since it may change or be recycled before the
+ * trace is dumped. The start time of every trace is kept in
+ * sharded primitive tables. Records are only collected from all rings and formatted when {@link #doneTrace} finds the
+ * trace took longer than its timeout.
+ * <p>
+ * Traces never done are dropped by a generation sweep: every sweep the older generation of start times is discarded
+ * and the current one becomes old, instead of scheduling one zombie-cleaning task per trace. The sweep also drops the
+ * rings of threads which have died.
+ */
+@SuppressWarnings("restriction")
+public class ShardedLoggerTracer {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedLoggerTracer.class);
+
+    public static int RING_CAPACITY = 4096;
+    public static int SHARD_COUNT = 64;
+
+    private static final byte ARGS_OBJECT = 0;
+    private static final byte ARGS_LONG = 1;
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+    private static final Unsafe unsafe;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final AtomicBoolean enabled = new AtomicBoolean(false);
+    private final AtomicBoolean startFlag = new AtomicBoolean(false);
+    private final AtomicBoolean stopFlag = new AtomicBoolean(false);
+
+    private final List<TraceRing> rings = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<TraceRing> localRing = ThreadLocal.withInitial(() -> {
+        TraceRing ring = new TraceRing(RING_CAPACITY, Thread.currentThread());
+        rings.add(ring);
+        return ring;
+    });
+    private final StartTimeShard[] shards;
+    private ScheduledExecutorService sweeper;
+
+    private PYMetric counterSlowTrace = new PYNullMetric();
+    private PYMetric timerDumpTrace = new PYNullMetric();
+
+    private static final ShardedLoggerTracer instance = new ShardedLoggerTracer();
+
+    public static ShardedLoggerTracer getInstance() {
+        return instance;
+    }
+
+    private ShardedLoggerTracer() {
+        shards = new StartTimeShard[SHARD_COUNT];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new StartTimeShard();
+        }
+    }
+
+    private void initMetrics() {
+        PYMetricRegistry metricRegistry = PYMetricRegistry.getMetricRegistry();
+        counterSlowTrace = metricRegistry.register(
+                MetricRegistry.name(ShardedLoggerTracer.class.getSimpleName(), "counter_slow_trace"), Counter.class);
+        timerDumpTrace = metricRegistry.register(
+                MetricRegistry.name(ShardedLoggerTracer.class.getSimpleName(), "timer_dump_trace"), Timer.class);
+    }
+
+    /**
+     * usually only start the tracer when service startup, can not support start more than one time
+     */
+    public void start() {
+        if (stopFlag.get()) {
+            logger.warn("sharded logger tracer had been stopped by someone before, won't start it");
+            return;
+        }
+
+        if (startFlag.compareAndSet(false, true)) {
+            initMetrics();
+            sweeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("trace-sweeper", true));
+            long period = LoggerTracer.CLEAN_ZOMBIE_TRACE_LOG_DELAY_TIME_MS;
+            sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+            logger.warn("successfully start sharded logger tracer");
+        } else {
+            logger.warn("sharded logger tracer had been started by someone before, won't start it again");
+        }
+    }
+
+    public void stop() {
+        enabled.set(false);
+        if (startFlag.get() && stopFlag.compareAndSet(false, true)) {
+            sweeper.shutdownNow();
+            for (StartTimeShard shard : shards) {
+                shard.clear();
+            }
+            logger.warn("successfully stop sharded logger tracer");
+        }
+    }
+
+    /**
+     * once you stop the tracer, can not enable it again. and if you have not started it, can not enable it neither
+     */
+    public void enableLoggerTracer() {
+        if (!stopFlag.get() && startFlag.get()) {
+            enabled.set(true);
+        } else {
+            logger.error("can not enable sharded logger tracer, because start flag:{}, stop flag:{}",
+                    startFlag.get(), stopFlag.get());
+        }
+    }
+
+    public void disableLoggerTracer() {
+        enabled.set(false);
+    }
+
+    public void mark(long traceId, String className, String msg) {
+        if (enabled.get()) {
+            record(traceId, className, msg, ARGS_OBJECT, null, null, 0, 0);
+        }
+    }
+
+    public void mark(long traceId, String className, String format, Object arg) {
+        if (enabled.get()) {
+            record(traceId, className, format, ARGS_OBJECT, snapshot(arg), null, 0, 0);
+        }
+    }
+
+    public void mark(long traceId, String className, String format, Object arg1, Object arg2) {
+        if (enabled.get()) {
+            record(traceId, className, format, ARGS_OBJECT, snapshot(arg1), snapshot(arg2), 0, 0);
+        }
+    }
+
+    /**
+     * Mark with primitive arguments, which are stored without boxing.
+     */
+    public void mark(long traceId, String className, String format, long arg1, long arg2) {
+        if (enabled.get()) {
+            record(traceId, className, format, ARGS_LONG, null, null, arg1, arg2);
+        }
+    }
+
+    public void mark(long traceId, String className, String format, Object... arguments) {
+        if (enabled.get()) {
+            Object[] copy = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                copy[i] = snapshot(arguments[i]);
+            }
+            record(traceId, className, format, ARGS_OBJECT, copy, null, 0, 0);
+        }
+    }
+
+    public void mark(long traceId, String className, String msg, Throwable t) {
+        if (enabled.get()) {
+            record(traceId, className, msg, ARGS_OBJECT, t, null, 0, 0);
+        }
+    }
+
+    private void record(long traceId, String className, String format, byte argsKind, Object arg1, Object arg2,
+            long longArg1, long longArg2) {
+        long now = System.currentTimeMillis();
+        shardOf(traceId).putIfAbsent(traceId, now);
+        localRing.get().append(traceId, now, className, format, argsKind, arg1, arg2, longArg1, longArg2);
+    }
+
+    /**
+     * @return the argument itself if it can not change until the trace is dumped, or its string form otherwise
+     */
+    private static Object snapshot(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Number || arg instanceof Boolean
+                || arg instanceof Character || arg instanceof Enum || arg instanceof Throwable) {
+            return arg;
+        }
+        return String.valueOf(arg);
+    }
+
+    /**
+     * Finish a trace. Its marks are formatted and logged only if it took longer than the given timeout.
+     */
+    public void doneTrace(long traceId, TraceAction traceAction, int timeoutMs) {
+        if (!enabled.get()) {
+            return;
+        }
+        long startTime = shardOf(traceId).remove(traceId);
+        if (startTime == EMPTY_KEY) {
+            return;
+        }
+
+        long costTime = System.currentTimeMillis() - startTime;
+        if (costTime > timeoutMs) {
+            counterSlowTrace.incCounter();
+            PYTimerContext context = timerDumpTrace.time();
+            try {
+                logger.warn("{}", dump(traceId, startTime));
+                logger.warn("ori:{} {} cost time:{}ms longer than timeout:{}", traceId, traceAction, costTime,
+                        timeoutMs);
+            } finally {
+                context.stop();
+            }
+        }
+    }
+
+    public int getLoggerCount(long traceId) {
+        return collect(traceId, Long.MIN_VALUE).size();
+    }
+
+    private String dump(long traceId, long startTime) {
+        List<TraceRecord> records = collect(traceId, startTime);
+        records.sort((r1, r2) -> Long.compare(r1.timestamp, r2.timestamp));
+        int from = Math.max(0, records.size() - LoggerTracer.ONE_OBJECT_MAX_MARK_NUMBER);
+        StringBuilder builder = new StringBuilder();
+        for (int i = from; i < records.size(); i++) {
+            if (builder.length() > 0) {
+                builder.append(Utils.LINE_SEPARATOR);
+            }
+            records.get(i).format(builder);
+        }
+        return builder.toString();
+    }
+
+    private List<TraceRecord> collect(long traceId, long startTime) {
+        List<TraceRecord> records = new ArrayList<>();
+        for (TraceRing ring : rings) {
+            ring.collect(traceId, startTime, records);
+        }
+        return records;
+    }
+
+    /**
+     * Drop the start times of traces which have not been done for a whole generation, and the rings of dead threads.
+     */
+    void sweep() {
+        int dropped = 0;
+        for (StartTimeShard shard : shards) {
+            dropped += shard.rotate();
+        }
+        if (dropped > 0) {
+            logger.info("dropped {} traces which have never been done", dropped);
+        }
+        rings.removeIf(TraceRing::isOwnerDead);
+    }
+
+    private StartTimeShard shardOf(long traceId) {
+        long hash = traceId * 0x9E3779B97F4A7C15L;
+        return shards[(int) ((hash >>> 32) & 0x7fffffff) % shards.length];
+    }
+
+    /**
+     * A ring of trace records written by exactly one thread. Readers on other threads validate every slot against its
+     * sequence number, so a slot overwritten during the read is skipped instead of being returned torn.
+     */
+    private static class TraceRing {
+        private final WeakReference<Thread> owner;
+        private final int mask;
+        private final AtomicLongArray slotSequences;
+        private final long[] traceIds;
+        private final long[] timestamps;
+        private final String[] classNames;
+        private final String[] formats;
+        private final byte[] argsKinds;
+        private final Object[] args1;
+        private final Object[] args2;
+        private final long[] longArgs1;
+        private final long[] longArgs2;
+        private final AtomicLong sequence = new AtomicLong(0);
+
+        TraceRing(int capacity, Thread owner) {
+            this.owner = new WeakReference<>(owner);
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.mask = size - 1;
+            this.slotSequences = new AtomicLongArray(size);
+            this.traceIds = new long[size];
+            this.timestamps = new long[size];
+            this.classNames = new String[size];
+            this.formats = new String[size];
+            this.argsKinds = new byte[size];
+            this.args1 = new Object[size];
+            this.args2 = new Object[size];
+            this.longArgs1 = new long[size];
+            this.longArgs2 = new long[size];
+            for (int i = 0; i < size; i++) {
+                slotSequences.set(i, -1);
+            }
+        }
+
+        void append(long traceId, long timestamp, String className, String format, byte argsKind, Object arg1,
+                Object arg2, long longArg1, long longArg2) {
+            long seq = sequence.get();
+            int slot = (int) (seq & mask);
+            // invalidate the slot while it is being rewritten
+            slotSequences.set(slot, -1);
+            // keep the writes below from being seen before the invalidation
+            unsafe.storeFence();
+            traceIds[slot] = traceId;
+            timestamps[slot] = timestamp;
+            classNames[slot] = className;
+            formats[slot] = format;
+            argsKinds[slot] = argsKind;
+            args1[slot] = arg1;
+            args2[slot] = arg2;
+            longArgs1[slot] = longArg1;
+            longArgs2[slot] = longArg2;
+            slotSequences.lazySet(slot, seq);
+            sequence.lazySet(seq + 1);
+        }
+
+        void collect(long traceId, long startTime, List<TraceRecord> records) {
+            long end = sequence.get();
+            long begin = Math.max(0, end - mask - 1);
+            for (long seq = begin; seq < end; seq++) {
+                int slot = (int) (seq & mask);
+                if (slotSequences.get(slot) != seq || traceIds[slot] != traceId) {
+                    continue;
+                }
+                TraceRecord record = new TraceRecord(timestamps[slot], classNames[slot], formats[slot],
+                        argsKinds[slot], args1[slot], args2[slot], longArgs1[slot], longArgs2[slot]);
+                // keep the reads above from being done after the re-check
+                unsafe.loadFence();
+                if (slotSequences.get(slot) == seq && record.timestamp >= startTime) {
+                    records.add(record);
+                }
+            }
+        }
+
+        boolean isOwnerDead() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    /**
+     * A trace record copied out of a ring, formatted lazily.
+     */
+    private static class TraceRecord {
+        private final long timestamp;
+        private final String className;
+        private final String format;
+        private final byte argsKind;
+        private final Object arg1;
+        private final Object arg2;
+        private final long longArg1;
+        private final long longArg2;
+
+        TraceRecord(long timestamp, String className, String format, byte argsKind, Object arg1, Object arg2,
+                long longArg1, long longArg2) {
+            this.timestamp = timestamp;
+            this.className = className;
+            this.format = format;
+            this.argsKind = argsKind;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.longArg1 = longArg1;
+            this.longArg2 = longArg2;
+        }
+
+        void format(StringBuilder builder) {
+            builder.append('[').append(Utils.millsecondToString(timestamp)).append("] [").append(className)
+                    .append(']');
+            if (argsKind == ARGS_LONG) {
+                builder.append(MessageFormatter.format(format, longArg1, longArg2).getMessage());
+            } else if (arg1 instanceof Throwable && arg2 == null) {
+                builder.append(LoggerTracer.buildString(format, (Throwable) arg1));
+            } else if (arg1 instanceof Object[] && arg2 == null) {
+                FormattingTuple ft = MessageFormatter.arrayFormat(format, (Object[]) arg1);
+                builder.append(LoggerTracer.buildString(ft));
+            } else {
+                builder.append(MessageFormatter.format(format, arg1, arg2).getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start times of traces in one shard, in two generations of primitive open addressing tables.
+     */
+    private static class StartTimeShard {
+        private LongLongTable current = new LongLongTable(64);
+        private LongLongTable previous = new LongLongTable(64);
+
+        synchronized void putIfAbsent(long traceId, long startTime) {
+            if (current.get(traceId) == EMPTY_KEY && previous.get(traceId) == EMPTY_KEY) {
+                current.put(traceId, startTime);
+            }
+        }
+
+        synchronized long remove(long traceId) {
+            long startTime = current.remove(traceId);
+            return startTime != EMPTY_KEY ? startTime : previous.remove(traceId);
+        }
+
+        synchronized int rotate() {
+            int dropped = previous.size();
+            LongLongTable recycled = previous;
+            recycled.clear();
+            previous = current;
+            current = recycled;
+            return dropped;
+        }
+
+        synchronized void clear() {
+            current.clear();
+            previous.clear();
+        }
+    }
+
+    /**
+     * A long to long hash table with linear probing, {@link #EMPTY_KEY} can not be used as a key nor a value.
+     */
+    private static class LongLongTable {
+        private long[] keys;
+        private long[] values;
+        private int size;
+
+        LongLongTable(int capacity) {
+            keys = new long[capacity];
+            values = new long[capacity];
+            Arrays.fill(keys, EMPTY_KEY);
+        }
+
+        private int indexOf(long key, long[] table) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 33) & (table.length - 1);
+        }
+
+        long get(long key) {
+            for (int i = indexOf(key, keys); ; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == EMPTY_KEY) {
+                    return EMPTY_KEY;
+                } else if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+        }
+
+        void put(long key, long value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int i = indexOf(key, keys);
+            while (keys[i] != EMPTY_KEY && keys[i] != key) {
+                i = (i + 1) & (keys.length - 1);
+            }
+            if (keys[i] == EMPTY_KEY) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        long remove(long key) {
+            int i = indexOf(key, keys);
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY_KEY) {
+                    return EMPTY_KEY;
+                }
+                i = (i + 1) & (keys.length - 1);
+            }
+            long value = values[i];
+            keys[i] = EMPTY_KEY;
+            size--;
+
+            // shift back the following entries of the probe sequence
+            int j = i;
+            while (true) {
+                j = (j + 1) & (keys.length - 1);
+                if (keys[j] == EMPTY_KEY) {
+                    return value;
+                }
+                int home = indexOf(keys[j], keys);
+                boolean between = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+                if (!between) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    keys[j] = EMPTY_KEY;
+                    i = j;
+                }
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            Arrays.fill(keys, EMPTY_KEY);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY_KEY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(keys, EMPTY_KEY);
+                size = 0;
+            }
+        }
+    }
+}
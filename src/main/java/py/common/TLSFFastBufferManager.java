@@ -276,6 +276,11 @@ public class TLSFFastBufferManager implements FastBufferManager {
     }
 
     public  void releaseBuffer(FastBuffer retbuf) {
+        if (retbuf instanceof ByteBufFastBuffer) {
+            // adopted from netty, never allocated from this manager
+            ((ByteBufFastBuffer) retbuf).release();
+            return;
+        }
         Validate.isTrue(retbuf instanceof FastBufferImpl);
         long bufferSize = retbuf.size();
         lockForCreateAndRelease.lock();
@@ -2,13 +2,19 @@ package py.common;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
@@ -16,15 +22,24 @@ import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timeout;
 import io.netty.util.TimerTask;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +75,17 @@ public class UdpTransferImpl implements UdpTransfer {
 
     private HashedWheelTimer whTimer;
 
+    private boolean useNativeTransport = false;
+
+    /*
+     * Exchanges sent by exchangeMessages(), keyed by sequence id. Only accessed in the event loop of the channel, which
+     * also receives responses and sweeps timed out exchanges, so no lock is needed.
+     */
+    private final IntObjectMap<PendingExchange> pendingExchanges = new IntObjectHashMap<PendingExchange>(1024);
+    private ScheduledFuture<?> sweepTask;
+    private volatile boolean released = false;
+    private ByteBufAllocator exchangeAllocator = PooledByteBufAllocator.DEFAULT;
+
     public UdpTransferImpl(int port) {
         this.PORT = port;
         this.readTimeout = 5000;
@@ -88,14 +114,38 @@ public class UdpTransferImpl implements UdpTransfer {
         initudp();
     }
 
+    /**
+     * @param useNativeTransport
+     *            use the native epoll transport if it is available, which writes a batch of datagrams with fewer
+     *            system calls than the NIO one
+     */
+    public UdpTransferImpl(int port, int readtimeout, ExchangeMessageCallback messageCallBack,
+            boolean useNativeTransport) {
+        this.PORT = port;
+        this.readTimeout = readtimeout;
+        this.messageCallBack = messageCallBack;
+        this.useNativeTransport = useNativeTransport;
+        waitCount = readTimeout / RESENDTIMEOUT;
+
+        initudp();
+    }
+
     private void initudp() {
-        group = new NioEventLoopGroup();
+        if (useNativeTransport && Epoll.isAvailable()) {
+            group = new EpollEventLoopGroup(1);
+        } else {
+            if (useNativeTransport) {
+                logger.warn("native transport is not available, fall back to nio", Epoll.unavailabilityCause());
+                useNativeTransport = false;
+            }
+            group = new NioEventLoopGroup();
+        }
 
         bootstrap = new Bootstrap();
-        bootstrap.group(group).channel(NioDatagramChannel.class);
-        bootstrap.handler(new ChannelInitializer<NioDatagramChannel>() {
+        bootstrap.group(group).channel(useNativeTransport ? EpollDatagramChannel.class : NioDatagramChannel.class);
+        bootstrap.handler(new ChannelInitializer<DatagramChannel>() {
             @Override
-            protected void initChannel(NioDatagramChannel ch) throws Exception {
+            protected void initChannel(DatagramChannel ch) throws Exception {
                 ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(1024, 0, 2, 0, 2));
                 ch.pipeline().addLast(new LengthFieldPrepender(2));
                 ch.pipeline().addLast(new UdpServerHandler());
@@ -158,6 +208,14 @@ public class UdpTransferImpl implements UdpTransfer {
                 if (buffer.getByte(ConstantField.TYPEOFFSET) == ConstantField.RESPONSEEMESSAGE) {
                     // System.out.println("this is response message");
                     int sequnceid = buffer.getInt(ConstantField.SEQUENCEIDOFFSET);
+                    PendingExchange pending = pendingExchanges.remove(sequnceid);
+                    if (pending != null) {
+                        pending.packet.release();
+                        buffer.retain();
+                        buffer.skipBytes(ConstantField.TYPELENGTH + ConstantField.SEQUENCEIDLENGTH);
+                        pending.future.onResponseReceived(buffer);
+                        return;
+                    }
                     EchoFutureMessage obj = map.remove(sequnceid);
                     if (obj == null) {
                         logger.error("sequnceid={} is not exist, map size={} ", sequnceid, map.size());
@@ -302,6 +360,153 @@ public class UdpTransferImpl implements UdpTransfer {
         return obj;
     }
 
+    /**
+     * Send a batch of messages and wait for their responses asynchronously, e.g. to probe many peers at once.
+     * <p>
+     * All datagrams of the batch are written in one task of the event loop and flushed once. Instead of a timer task
+     * per datagram, one periodic sweep resends datagrams not answered in time, and fails the futures of those not
+     * answered before the read timeout with a {@link TimeoutException}.
+     *
+     * @param payloads
+     *            payload of each message
+     * @param endPoints
+     *            destination of each message
+     * @return futures of the responses, in the order of the given messages
+     */
+    public List<EchoFutureMessage> exchangeMessages(List<ByteBuffer> payloads, List<EndPoint> endPoints) {
+        Validate.isTrue(payloads.size() == endPoints.size());
+        List<EchoFutureMessage> futures = new ArrayList<EchoFutureMessage>(payloads.size());
+        List<PendingExchange> batch = new ArrayList<PendingExchange>(payloads.size());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeout);
+        for (int i = 0; i < payloads.size(); i++) {
+            ByteBuffer payload = payloads.get(i).duplicate();
+            int sequnceid = sequnceHandle.incrementAndGet();
+            ByteBuf packet = exchangeAllocator
+                    .directBuffer(payload.remaining() + ConstantField.TYPELENGTH + ConstantField.SEQUENCEIDLENGTH);
+            packet.writeInt(sequnceid);
+            packet.writeByte(ConstantField.INQUIREMESSAGE);
+            packet.writeBytes(payload);
+
+            EchoFutureMessage future = new EchoFutureMessage();
+            futures.add(future);
+            batch.add(new PendingExchange(sequnceid, future, packet, endPoints.get(i).getInetSocketAddress(),
+                    deadline));
+        }
+
+        try {
+            channel.eventLoop().execute(() -> startExchanges(batch));
+        } catch (RejectedExecutionException e) {
+            failExchanges(batch);
+        }
+        return futures;
+    }
+
+    /**
+     * Only for tests to track the packets of {@link #exchangeMessages(List, List)}.
+     */
+    void setExchangeAllocator(ByteBufAllocator exchangeAllocator) {
+        this.exchangeAllocator = exchangeAllocator;
+    }
+
+    private void startExchanges(List<PendingExchange> batch) {
+        if (released) {
+            failExchanges(batch);
+            return;
+        }
+        ensureSweeping();
+        for (PendingExchange pending : batch) {
+            pendingExchanges.put(pending.sequnceid, pending);
+            pending.send();
+        }
+        channel.flush();
+    }
+
+    private void failPendingExchanges() {
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+            sweepTask = null;
+        }
+        failExchanges(new ArrayList<PendingExchange>(pendingExchanges.values()));
+        pendingExchanges.clear();
+    }
+
+    private void failExchanges(Iterable<PendingExchange> exchanges) {
+        IllegalStateException cause = new IllegalStateException("udp transfer has been released");
+        for (PendingExchange pending : exchanges) {
+            pending.packet.release();
+            pending.future.onFailure(cause);
+        }
+    }
+
+    /**
+     * Send the same message to many peers, see {@link #exchangeMessages(List, List)}.
+     */
+    public List<EchoFutureMessage> exchangeMessages(ByteBuffer payload, List<EndPoint> endPoints) {
+        List<ByteBuffer> payloads = new ArrayList<ByteBuffer>(endPoints.size());
+        for (int i = 0; i < endPoints.size(); i++) {
+            payloads.add(payload);
+        }
+        return exchangeMessages(payloads, endPoints);
+    }
+
+    private void ensureSweeping() {
+        if (sweepTask == null) {
+            sweepTask = channel.eventLoop().scheduleAtFixedRate(this::sweepPendingExchanges, RESENDTIMEOUT,
+                    RESENDTIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sweepPendingExchanges() {
+        if (pendingExchanges.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long resendBefore = now - TimeUnit.MILLISECONDS.toNanos(RESENDTIMEOUT);
+        boolean resent = false;
+        Iterator<PendingExchange> iterator = pendingExchanges.values().iterator();
+        while (iterator.hasNext()) {
+            PendingExchange pending = iterator.next();
+            if (now - pending.deadline >= 0) {
+                iterator.remove();
+                pending.packet.release();
+                pending.future.onTimeout();
+            } else if (pending.lastSentTime - resendBefore <= 0) {
+                pending.send();
+                resent = true;
+            }
+        }
+        if (resent) {
+            logger.warn("resend data packets not responded in {}ms", RESENDTIMEOUT);
+            channel.flush();
+        }
+    }
+
+    private class PendingExchange {
+        private final int sequnceid;
+        private final EchoFutureMessage future;
+        private final ByteBuf packet;
+        private final InetSocketAddress address;
+        private final long deadline;
+        private long lastSentTime;
+
+        PendingExchange(int sequnceid, EchoFutureMessage future, ByteBuf packet, InetSocketAddress address,
+                long deadline) {
+            this.sequnceid = sequnceid;
+            this.future = future;
+            this.packet = packet;
+            this.address = address;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Write without flushing, the packet is kept for resending until a response arrives.
+         */
+        void send() {
+            lastSentTime = System.nanoTime();
+            channel.write(new DatagramPacket(packet.retainedDuplicate(), address), channel.voidPromise());
+        }
+    }
+
     private class IoUdpTimerTask implements TimerTask {
 
         private final Channel channel;
@@ -332,6 +537,19 @@ public class UdpTransferImpl implements UdpTransfer {
      * to release socket resouse through netty
      */
     public void releaseResource() {
+        released = true;
+        if (channel != null) {
+            // pending exchanges belong to the event loop, fail them there before it goes away
+            try {
+                if (channel.eventLoop().inEventLoop()) {
+                    failPendingExchanges();
+                } else {
+                    channel.eventLoop().submit(this::failPendingExchanges).syncUninterruptibly();
+                }
+            } catch (RejectedExecutionException e) {
+                logger.warn("the event loop has been shut down, can not fail the pending exchanges", e);
+            }
+        }
         /*
          * System.out.println("to await"); try { channel.closeFuture().await(); } catch (InterruptedException e) {
          * e.printStackTrace(); }
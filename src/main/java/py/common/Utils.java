@@ -671,4 +671,39 @@ public class Utils {
     public static byte[] integerToBytes(int integer) {
         return ByteBuffer.allocate(4).putInt(integer).array();
     }
+
+    /**
+     * @return the number of bytes of the given unsigned integer in varint encoding
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write an unsigned integer in 7 bits per byte, low bits first, with the high bit set on all but the last byte.
+     */
+    public static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint at " + buffer.position());
+    }
 }
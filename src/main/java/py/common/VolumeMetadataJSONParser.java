@@ -1,5 +1,9 @@
 package py.common;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.lang3.Validate;
 import org.apache.log4j.Logger;
 /**
  * 
@@ -9,8 +13,18 @@ import org.apache.log4j.Logger;
 
 public class VolumeMetadataJSONParser {
     private final Logger logger = Logger.getLogger(VolumeMetadataJSONParser.class);
-    final private String volumeMetadataJSON;
+    /*
+     * The json as a string and in UTF-8. Either may be converted from the other lazily, they are volatile so that a
+     * parser shared between threads never publishes a partly constructed value.
+     */
+    private volatile String volumeMetadataJSON;
     final private int version;
+    private volatile ByteBuffer volumeMetadataBytes;
+
+    private static final byte BINARY_FORMAT_VERSION = 1;
+
+    public static final ToByteArray<VolumeMetadataJSONParser> TO_BYTE_ARRAY = VolumeMetadataJSONParser::toByteArray;
+    public static final ByteArrayParser<VolumeMetadataJSONParser> BYTE_ARRAY_PARSER = VolumeMetadataJSONParser::fromBinary;
     
     public VolumeMetadataJSONParser(int version, String volumeMetadataJSON){
         this.version = version;
@@ -34,12 +48,75 @@ public class VolumeMetadataJSONParser {
         }
     }
     
+    private VolumeMetadataJSONParser(int version, String volumeMetadataJSON, ByteBuffer volumeMetadataBytes) {
+        this.version = version;
+        this.volumeMetadataJSON = volumeMetadataJSON;
+        this.volumeMetadataBytes = volumeMetadataBytes;
+    }
+
+    /**
+     * Parse the binary form written by {@link #toByteArray()}. The json is not decoded until
+     * {@link #getVolumeMetadataJSON()} is called, and {@link #getVolumeMetadataBytes()} never decodes it.
+     */
+    public static VolumeMetadataJSONParser fromBinary(byte[] compositedVolumeMetadata) {
+        ByteBuffer buffer = ByteBuffer.wrap(compositedVolumeMetadata);
+        byte formatVersion = buffer.get();
+        Validate.isTrue(formatVersion == BINARY_FORMAT_VERSION, "unsupported format version %s", formatVersion);
+        // zigzag, since an unknown version is -1
+        int zigzag = Utils.readVarint(buffer);
+        int version = (zigzag >>> 1) ^ -(zigzag & 1);
+        int length = Utils.readVarint(buffer);
+        if (length == 0) {
+            return new VolumeMetadataJSONParser(version, null, null);
+        }
+        buffer.limit(buffer.position() + length - 1);
+        return new VolumeMetadataJSONParser(version, null, buffer.slice());
+    }
+
+    /**
+     * The binary form: a format version, the zigzag varint version, and the varint length plus one of the json in
+     * UTF-8, or zero if there is no json.
+     */
+    public byte[] toByteArray() {
+        ByteBuffer json = getVolumeMetadataBytes();
+        int length = json == null ? 0 : json.remaining() + 1;
+        int zigzag = (version << 1) ^ (version >> 31);
+        ByteBuffer buffer = ByteBuffer
+                .allocate(1 + Utils.varintSize(zigzag) + Utils.varintSize(length) + Math.max(length - 1, 0));
+        buffer.put(BINARY_FORMAT_VERSION);
+        Utils.writeVarint(buffer, zigzag);
+        Utils.writeVarint(buffer, length);
+        if (json != null) {
+            buffer.put(json);
+        }
+        return buffer.array();
+    }
+
     public String getCompositedVolumeMetadataJSON() {
-        return version + ":" + volumeMetadataJSON;
+        return version + ":" + getVolumeMetadataJSON();
     }
     
     public String getVolumeMetadataJSON() {
-        return volumeMetadataJSON;
+        String json = volumeMetadataJSON;
+        ByteBuffer bytes = volumeMetadataBytes;
+        if (json == null && bytes != null) {
+            json = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+            volumeMetadataJSON = json;
+        }
+        return json;
+    }
+
+    /**
+     * @return the json in UTF-8, e.g. for a json parser reading bytes, or null if there is no json
+     */
+    public ByteBuffer getVolumeMetadataBytes() {
+        ByteBuffer bytes = volumeMetadataBytes;
+        String json = volumeMetadataJSON;
+        if (bytes == null && json != null) {
+            bytes = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+            volumeMetadataBytes = bytes;
+        }
+        return bytes == null ? null : bytes.asReadOnlyBuffer();
     }
 
     public int getVersion() {
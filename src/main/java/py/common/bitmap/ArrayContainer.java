@@ -0,0 +1,142 @@
+package py.common.bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A container of few values, kept sorted in an array.
+ */
+final class ArrayContainer extends Container {
+    private char[] values;
+    private int cardinality;
+
+    ArrayContainer() {
+        this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] values, int cardinality) {
+        this.values = values;
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean contains(int low) {
+        return Arrays.binarySearch(values, 0, cardinality, (char) low) >= 0;
+    }
+
+    @Override
+    Container add(int low) {
+        int index = Arrays.binarySearch(values, 0, cardinality, (char) low);
+        if (index >= 0) {
+            return this;
+        }
+        if (cardinality >= MAX_ARRAY_CARDINALITY) {
+            return new BitmapContainer(toWords(), cardinality).add(low);
+        }
+        index = -index - 1;
+        if (cardinality == values.length) {
+            values = Arrays.copyOf(values, Math.min(values.length * 2, MAX_ARRAY_CARDINALITY));
+        }
+        System.arraycopy(values, index, values, index + 1, cardinality - index);
+        values[index] = (char) low;
+        cardinality++;
+        return this;
+    }
+
+    @Override
+    Container remove(int low) {
+        int index = Arrays.binarySearch(values, 0, cardinality, (char) low);
+        if (index >= 0) {
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality--;
+        }
+        return this;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    int nextSetBit(int fromLow) {
+        int index = lowerBound(fromLow);
+        return index < cardinality ? values[index] : -1;
+    }
+
+    @Override
+    int nextClearBit(int fromLow) {
+        int index = lowerBound(fromLow);
+        int value = fromLow;
+        while (index < cardinality && values[index] == value) {
+            index++;
+            value++;
+        }
+        return value;
+    }
+
+    @Override
+    void fillWords(long[] words) {
+        for (int i = 0; i < cardinality; i++) {
+            words[values[i] >>> 6] |= 1L << values[i];
+        }
+    }
+
+    @Override
+    Container and(Container other) {
+        if (other.type() != ARRAY) {
+            ArrayContainer result = new ArrayContainer(new char[Math.max(cardinality, 4)], 0);
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    result.values[result.cardinality++] = values[i];
+                }
+            }
+            return result;
+        }
+        ArrayContainer that = (ArrayContainer) other;
+        char[] result = new char[Math.max(Math.min(cardinality, that.cardinality), 4)];
+        int count = 0;
+        for (int i = 0, j = 0; i < cardinality && j < that.cardinality;) {
+            if (values[i] < that.values[j]) {
+                i++;
+            } else if (values[i] > that.values[j]) {
+                j++;
+            } else {
+                result[count++] = values[i];
+                i++;
+                j++;
+            }
+        }
+        return new ArrayContainer(result, count);
+    }
+
+    @Override
+    int type() {
+        return ARRAY;
+    }
+
+    @Override
+    int serializedSize() {
+        return cardinality * Character.BYTES;
+    }
+
+    @Override
+    void writeTo(ByteBuffer buffer) {
+        for (int i = 0; i < cardinality; i++) {
+            buffer.putChar(values[i]);
+        }
+    }
+
+    @Override
+    Container copy() {
+        return new ArrayContainer(values.clone(), cardinality);
+    }
+
+    private int lowerBound(int fromLow) {
+        if (fromLow >= BITS) {
+            return cardinality;
+        }
+        int index = Arrays.binarySearch(values, 0, cardinality, (char) fromLow);
+        return index >= 0 ? index : -index - 1;
+    }
+}
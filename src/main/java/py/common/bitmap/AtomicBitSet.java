@@ -3,9 +3,15 @@ package py.common.bitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLongArray;
-
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size bit set whose bits are set and cleared with CAS on their words.
+ * <p>
+ * The number of set bits is kept in a striped counter, so threads changing bits do not contend on a single counter,
+ * and ranges of bits are changed a word at a time.
+ */
 public class AtomicBitSet {
 
     protected static Logger logger = LoggerFactory.getLogger(AtomicBitSet.class);
@@ -17,7 +23,7 @@ public class AtomicBitSet {
 
     private final int nbits;
 
-    private final AtomicInteger setBits = new AtomicInteger(0);
+    private final LongAdder setBits = new LongAdder();
 
     /*
      * BitSets are packed into arrays of "words."  Currently a word is
@@ -37,8 +43,11 @@ public class AtomicBitSet {
         this.words = new AtomicLongArray(wordIndex(nbits - 1) + 1);
     }
 
+    /**
+     * @return the number of set bits, which is exact when no bits are being changed concurrently
+     */
     public int cardinality() {
-        return setBits.get();
+        return setBits.intValue();
     }
 
     // just for test
@@ -76,7 +85,7 @@ public class AtomicBitSet {
                 newVal &= ~(1L << bitIndex);
                 if (word != newVal) {
                     if (words.compareAndSet(u, word, newVal)) {
-                        setBits.decrementAndGet();
+                        setBits.decrement();
                         return (u * BITS_PER_WORD) + bitIndex;
                     }
                 }
@@ -94,6 +103,112 @@ public class AtomicBitSet {
             first = false;
         }
     }
+
+    /**
+     * Find and clear up to {@code indexes.length} set bits from the given index on, the bits found in the same word are
+     * cleared by a single CAS.
+     *
+     * @return the number of bits cleared, whose indexes are put in ascending order into {@code indexes}
+     */
+    public int nextSetBitsAndClear(int fromIndex, int[] indexes) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("bitIndex is " + fromIndex + ", but max range is " + nbits);
+        }
+
+        if (fromIndex >= nbits) {
+            return 0;
+        }
+
+        int count = 0;
+        for (int u = wordIndex(fromIndex); u < words.length() && count < indexes.length; u++) {
+            long mask = u == wordIndex(fromIndex) ? WORD_MASK << fromIndex : WORD_MASK;
+            for (; ; ) {
+                long oldVal = words.get(u);
+                long claimed = oldVal & mask;
+                // keep the lowest bits which still fit in indexes
+                for (int extra = Long.bitCount(claimed) - (indexes.length - count); extra > 0; extra--) {
+                    claimed &= ~Long.highestOneBit(claimed);
+                }
+                if (claimed == 0) {
+                    break;
+                }
+                if (words.compareAndSet(u, oldVal, oldVal & ~claimed)) {
+                    setBits.add(-Long.bitCount(claimed));
+                    while (claimed != 0) {
+                        indexes[count++] = (u * BITS_PER_WORD) + Long.numberOfTrailingZeros(claimed);
+                        claimed &= claimed - 1;
+                    }
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Set the bits from {@code fromIndex} inclusive to {@code toIndex} exclusive a word at a time.
+     *
+     * @return the number of bits which were clear before
+     */
+    public int setRange(int fromIndex, int toIndex) {
+        checkRange(fromIndex, toIndex);
+        int count = 0;
+        for (int u = wordIndex(fromIndex); fromIndex < toIndex && u <= wordIndex(toIndex - 1); u++) {
+            long mask = rangeMask(u, fromIndex, toIndex);
+            for (; ; ) {
+                long oldVal = words.get(u);
+                long newVal = oldVal | mask;
+                if (oldVal == newVal || words.compareAndSet(u, oldVal, newVal)) {
+                    count += Long.bitCount(newVal & ~oldVal);
+                    break;
+                }
+            }
+        }
+        setBits.add(count);
+        return count;
+    }
+
+    /**
+     * Clear the bits from {@code fromIndex} inclusive to {@code toIndex} exclusive a word at a time.
+     *
+     * @return the number of bits which were set before
+     */
+    public int clearRange(int fromIndex, int toIndex) {
+        checkRange(fromIndex, toIndex);
+        int count = 0;
+        for (int u = wordIndex(fromIndex); fromIndex < toIndex && u <= wordIndex(toIndex - 1); u++) {
+            long mask = rangeMask(u, fromIndex, toIndex);
+            for (; ; ) {
+                long oldVal = words.get(u);
+                long newVal = oldVal & ~mask;
+                if (oldVal == newVal || words.compareAndSet(u, oldVal, newVal)) {
+                    count += Long.bitCount(oldVal & ~newVal);
+                    break;
+                }
+            }
+        }
+        setBits.add(-count);
+        return count;
+    }
+
+    private void checkRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > nbits || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException(
+                    "range is [" + fromIndex + ", " + toIndex + "), but max range is " + nbits);
+        }
+    }
+
+    private static long rangeMask(int u, int fromIndex, int toIndex) {
+        long mask = WORD_MASK;
+        if (u == wordIndex(fromIndex)) {
+            mask &= WORD_MASK << fromIndex;
+        }
+        if (u == wordIndex(toIndex - 1)) {
+            mask &= WORD_MASK >>> -toIndex;
+        }
+        return mask;
+    }
+
     public int nextSetBit(int fromIndex) {
         if (fromIndex < 0) {
             throw new IndexOutOfBoundsException("bitIndex is " + fromIndex + ", but max range is " + nbits);
@@ -148,7 +263,7 @@ public class AtomicBitSet {
             newVal &= ~(1L << bitIndex);
             if (oldVal != newVal) {
                 if (words.compareAndSet(wordIndex, oldVal, newVal)) {
-                    setBits.decrementAndGet();
+                    setBits.decrement();
                     break;
                 }
             } else {
@@ -170,7 +285,7 @@ public class AtomicBitSet {
             newVal |= (1L << bitIndex);
             if (oldVal != newVal) {
                 if (words.compareAndSet(wordIndex, oldVal, newVal)) {
-                    setBits.incrementAndGet();
+                    setBits.increment();
                     break;
                 }
             } else {
@@ -0,0 +1,95 @@
+package py.common.bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A container of many values, kept as 2^16 bits.
+ */
+final class BitmapContainer extends Container {
+    private final long[] words;
+    private int cardinality;
+
+    BitmapContainer(long[] words, int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean contains(int low) {
+        return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    Container add(int low) {
+        long word = words[low >>> 6];
+        long newWord = word | (1L << low);
+        if (word != newWord) {
+            words[low >>> 6] = newWord;
+            cardinality++;
+        }
+        return this;
+    }
+
+    @Override
+    Container remove(int low) {
+        long word = words[low >>> 6];
+        long newWord = word & ~(1L << low);
+        if (word != newWord) {
+            words[low >>> 6] = newWord;
+            cardinality--;
+            if (cardinality <= MAX_ARRAY_CARDINALITY) {
+                return fromWords(words);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    int nextSetBit(int fromLow) {
+        return nextSetBit(words, fromLow);
+    }
+
+    @Override
+    int nextClearBit(int fromLow) {
+        return nextClearBit(words, fromLow);
+    }
+
+    @Override
+    void fillWords(long[] target) {
+        for (int i = 0; i < WORDS; i++) {
+            target[i] |= words[i];
+        }
+    }
+
+    @Override
+    long[] toWords() {
+        return words.clone();
+    }
+
+    @Override
+    int type() {
+        return BITMAP;
+    }
+
+    @Override
+    int serializedSize() {
+        return WORDS * Long.BYTES;
+    }
+
+    @Override
+    void writeTo(ByteBuffer buffer) {
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+    }
+
+    @Override
+    Container copy() {
+        return new BitmapContainer(words.clone(), cardinality);
+    }
+}
@@ -0,0 +1,402 @@
+package py.common.bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A compressed bitmap for bits which are mostly clear or mostly set, in the manner of Roaring bitmaps.
+ * <p>
+ * Indexes are split by their high 16 bits into containers of their low 16 bits. A container keeps few values in a
+ * sorted array, many values in a bitmap of 2^16 bits, and values in few runs, e.g. a range of all set bits, as runs
+ * after {@link #runOptimize()}. A segment unit map which is almost empty or almost full thus takes a few bytes instead
+ * of one bit per unit.
+ * <p>
+ * The serialized form is little endian: a cookie and the number of containers, then for each container its key, type,
+ * cardinality and the offset of its values, then the values of all containers. {@link CompressedBitmapView} reads it in
+ * place. Like {@link Bitmap}, this bitmap is not thread safe, see {@link ConcurrentCompressedBitmap}.
+ */
+public class CompressedBitmap {
+    static final int SERIAL_COOKIE = 0x50594342;
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+    static final int CONTAINER_HEADER_SIZE = 2 * Character.BYTES + 2 * Integer.BYTES;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    public CompressedBitmap() {
+        this.keys = new char[4];
+        this.containers = new Container[4];
+        this.size = 0;
+    }
+
+    /**
+     * Compress a dense bitmap.
+     */
+    public static CompressedBitmap valueOf(Bitmap bitmap) {
+        CompressedBitmap compressed = new CompressedBitmap();
+        ByteBuffer bytes = ByteBuffer.wrap(bitmap.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int key = 0; bytes.hasRemaining(); key++) {
+            long[] words = new long[Container.WORDS];
+            for (int i = 0; i < Container.WORDS && bytes.hasRemaining(); i++) {
+                if (bytes.remaining() >= Long.BYTES) {
+                    words[i] = bytes.getLong();
+                } else {
+                    for (int shift = 0; bytes.hasRemaining(); shift += 8) {
+                        words[i] |= (bytes.get() & 0xffL) << shift;
+                    }
+                }
+            }
+            Container container = Container.fromWords(words).runOptimize();
+            if (container.cardinality() > 0) {
+                compressed.append(key, container);
+            }
+        }
+        return compressed;
+    }
+
+    public static CompressedBitmap valueOf(byte[] array) {
+        return valueOf(ByteBuffer.wrap(array));
+    }
+
+    /**
+     * Deserialize a bitmap from the remaining bytes of the given buffer.
+     */
+    public static CompressedBitmap valueOf(ByteBuffer buffer) {
+        ByteBuffer bytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int count = readHeader(bytes);
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int i = 0; i < count; i++) {
+            int header = HEADER_SIZE + i * CONTAINER_HEADER_SIZE;
+            bytes.position(bytes.getInt(header + 2 * Character.BYTES + Integer.BYTES));
+            Container container = Container.read(bytes.getChar(header + Character.BYTES),
+                    bytes.getInt(header + 2 * Character.BYTES), bytes);
+            bitmap.append(bytes.getChar(header), container);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return a read-only view of a serialized bitmap which does not deserialize it
+     */
+    public static CompressedBitmapView view(ByteBuffer buffer) {
+        return new CompressedBitmapView(buffer);
+    }
+
+    static int readHeader(ByteBuffer bytes) {
+        if (bytes.getInt(0) != SERIAL_COOKIE) {
+            throw new IllegalArgumentException("not a compressed bitmap");
+        }
+        return bytes.getInt(Integer.BYTES);
+    }
+
+    public void set(int bitIndex) {
+        checkIndex(bitIndex);
+        int key = bitIndex >>> 16;
+        int index = indexOf(key);
+        if (index >= 0) {
+            containers[index] = containers[index].add(bitIndex & 0xFFFF);
+        } else {
+            insert(-index - 1, key, new ArrayContainer().add(bitIndex & 0xFFFF));
+        }
+    }
+
+    public boolean get(int bitIndex) {
+        checkIndex(bitIndex);
+        int index = indexOf(bitIndex >>> 16);
+        return index >= 0 && containers[index].contains(bitIndex & 0xFFFF);
+    }
+
+    public void clear(int bitIndex) {
+        checkIndex(bitIndex);
+        int index = indexOf(bitIndex >>> 16);
+        if (index < 0) {
+            return;
+        }
+        Container container = containers[index].remove(bitIndex & 0xFFFF);
+        if (container.cardinality() == 0) {
+            removeAt(index);
+        } else {
+            containers[index] = container;
+        }
+    }
+
+    /**
+     * Set bits from {@code fromIndex} inclusive to {@code toIndex} exclusive, ranges become runs where smaller.
+     */
+    public void setRange(int fromIndex, int toIndex) {
+        updateRange(fromIndex, toIndex, true);
+    }
+
+    public void clearRange(int fromIndex, int toIndex) {
+        updateRange(fromIndex, toIndex, false);
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += containers[i].cardinality();
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the first set bit not less than {@code fromIndex}, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        checkIndex(fromIndex);
+        int key = fromIndex >>> 16;
+        int index = indexOf(key);
+        int low = fromIndex & 0xFFFF;
+        if (index < 0) {
+            index = -index - 1;
+            low = 0;
+        }
+        for (; index < size; index++, low = 0) {
+            int next = containers[index].nextSetBit(low);
+            if (next >= 0) {
+                return (keys[index] << 16) | next;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first clear bit not less than {@code fromIndex}
+     */
+    public int nextClearBit(int fromIndex) {
+        checkIndex(fromIndex);
+        int key = fromIndex >>> 16;
+        int index = indexOf(key);
+        if (index < 0) {
+            return fromIndex;
+        }
+        int low = fromIndex & 0xFFFF;
+        while (true) {
+            int next = containers[index].nextClearBit(low);
+            if (next < Container.BITS) {
+                return (key << 16) | next;
+            }
+            // the container is full from low on, try the next key
+            key++;
+            index++;
+            if (index == size || keys[index] != key) {
+                return key << 16;
+            }
+            low = 0;
+        }
+    }
+
+    /**
+     * Keep only the bits also set in the given bitmap.
+     */
+    public void and(CompressedBitmap map) {
+        if (this == map) {
+            return;
+        }
+        int count = 0;
+        for (int i = 0, j = 0; i < size && j < map.size;) {
+            if (keys[i] < map.keys[j]) {
+                i++;
+            } else if (keys[i] > map.keys[j]) {
+                j++;
+            } else {
+                Container container = containers[i].and(map.containers[j]);
+                if (container.cardinality() > 0) {
+                    keys[count] = keys[i];
+                    containers[count++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        Arrays.fill(containers, count, size, null);
+        size = count;
+    }
+
+    /**
+     * Set the bits set in the given bitmap.
+     */
+    public void or(CompressedBitmap map) {
+        if (this == map) {
+            return;
+        }
+        for (int j = 0; j < map.size; j++) {
+            int index = indexOf(map.keys[j]);
+            if (index >= 0) {
+                containers[index] = containers[index].or(map.containers[j]);
+            } else {
+                insert(-index - 1, map.keys[j], map.containers[j].copy());
+            }
+        }
+    }
+
+    /**
+     * Convert containers to runs where smaller and runs back where not, e.g. before serializing.
+     */
+    public void runOptimize() {
+        for (int i = 0; i < size; i++) {
+            containers[i] = containers[i].runOptimize();
+        }
+    }
+
+    /**
+     * Expand to a dense bitmap of the given number of bits, bits beyond it are dropped.
+     */
+    public Bitmap toBitmap(int nbits) {
+        Bitmap bitmap = new Bitmap(nbits);
+        if (nbits == 0) {
+            return bitmap;
+        }
+        for (int i = nextSetBit(0); i >= 0 && i < nbits; i = nextSetBit(i + 1)) {
+            bitmap.set(i);
+        }
+        return bitmap;
+    }
+
+    public int serializedSize() {
+        int length = HEADER_SIZE + size * CONTAINER_HEADER_SIZE;
+        for (int i = 0; i < size; i++) {
+            length += containers[i].serializedSize();
+        }
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[serializedSize()];
+        writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Serialize into the given buffer from its position on, and move its position past the bitmap.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        ByteBuffer bytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(SERIAL_COOKIE);
+        bytes.putInt(size);
+        int offset = HEADER_SIZE + size * CONTAINER_HEADER_SIZE;
+        for (int i = 0; i < size; i++) {
+            bytes.putChar(keys[i]);
+            bytes.putChar((char) containers[i].type());
+            bytes.putInt(containers[i].cardinality());
+            bytes.putInt(offset);
+            offset += containers[i].serializedSize();
+        }
+        for (int i = 0; i < size; i++) {
+            containers[i].writeTo(bytes);
+        }
+        buffer.position(buffer.position() + bytes.position());
+    }
+
+    private void updateRange(int fromIndex, int toIndex, boolean set) {
+        checkIndex(fromIndex);
+        if (toIndex < fromIndex) {
+            throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + " > toIndex: " + toIndex);
+        }
+        for (long start = fromIndex; start < toIndex;) {
+            int key = (int) (start >>> 16);
+            long end = Math.min(toIndex, ((long) key + 1) << 16);
+            int from = (int) (start & 0xFFFF);
+            int to = (int) (end - ((long) key << 16));
+            int index = indexOf(key);
+
+            Container container;
+            if (set && from == 0 && to == Container.BITS) {
+                container = RunContainer.full();
+            } else {
+                long[] words = index >= 0 ? containers[index].toWords() : new long[Container.WORDS];
+                if (set) {
+                    Container.setRange(words, from, to);
+                } else {
+                    Container.clearRange(words, from, to);
+                }
+                container = Container.fromWords(words).runOptimize();
+            }
+
+            if (container.cardinality() == 0) {
+                if (index >= 0) {
+                    removeAt(index);
+                }
+            } else if (index >= 0) {
+                containers[index] = container;
+            } else {
+                insert(-index - 1, key, container);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Add a container after all others, its key must be greater than theirs.
+     */
+    void append(int key, Container container) {
+        insert(size, key, container);
+    }
+
+    private int indexOf(int key) {
+        return Arrays.binarySearch(keys, 0, size, (char) key);
+    }
+
+    private void insert(int index, int key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = (char) key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        containers[--size] = null;
+    }
+
+    private static void checkIndex(int bitIndex) {
+        if (bitIndex < 0) {
+            throw new IndexOutOfBoundsException("bitIndex is " + bitIndex);
+        }
+    }
+
+    @Override
+    public boolean equals(Object another) {
+        if (!(another instanceof CompressedBitmap)) {
+            return false;
+        }
+        CompressedBitmap that = (CompressedBitmap) another;
+        if (size != that.size || cardinality() != that.cardinality()) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (keys[i] != that.keys[i] || !Arrays.equals(containers[i].toWords(), that.containers[i].toWords())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + keys[i];
+            hash = 31 * hash + Arrays.hashCode(containers[i].toWords());
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedBitmap [containers=" + size + ", cardinality=" + cardinality() + ", serializedSize="
+                + serializedSize() + "]";
+    }
+}
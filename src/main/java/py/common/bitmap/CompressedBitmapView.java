@@ -0,0 +1,247 @@
+package py.common.bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A read-only view of a serialized {@link CompressedBitmap}, which looks bits up in the buffer without deserializing
+ * it, e.g. for a bitmap read from disk or received in a request.
+ * <p>
+ * The view shares the content of the buffer, which must not be changed while the view is in use.
+ */
+public class CompressedBitmapView {
+    private final ByteBuffer bytes;
+    private final int size;
+
+    CompressedBitmapView(ByteBuffer buffer) {
+        this.bytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.size = CompressedBitmap.readHeader(bytes);
+    }
+
+    public boolean get(int bitIndex) {
+        checkIndex(bitIndex);
+        int index = indexOf(bitIndex >>> 16);
+        if (index < 0) {
+            return false;
+        }
+        int low = bitIndex & 0xFFFF;
+        int offset = offset(index);
+        switch (type(index)) {
+        case Container.ARRAY:
+            return searchArray(offset, cardinality(index), low) >= 0;
+        case Container.BITMAP:
+            return (bytes.getLong(offset + (low >>> 6) * Long.BYTES) & (1L << low)) != 0;
+        default:
+            int run = runAtOrBefore(offset, low);
+            return run >= 0 && low <= runEnd(offset, run);
+        }
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += cardinality(i);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the first set bit not less than {@code fromIndex}, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        checkIndex(fromIndex);
+        int index = indexOf(fromIndex >>> 16);
+        int low = fromIndex & 0xFFFF;
+        if (index < 0) {
+            index = -index - 1;
+            low = 0;
+        }
+        for (; index < size; index++, low = 0) {
+            int next = nextSetBit(index, low);
+            if (next >= 0) {
+                return (key(index) << 16) | next;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first clear bit not less than {@code fromIndex}
+     */
+    public int nextClearBit(int fromIndex) {
+        checkIndex(fromIndex);
+        int key = fromIndex >>> 16;
+        int index = indexOf(key);
+        if (index < 0) {
+            return fromIndex;
+        }
+        int low = fromIndex & 0xFFFF;
+        while (true) {
+            int next = nextClearBit(index, low);
+            if (next < Container.BITS) {
+                return (key << 16) | next;
+            }
+            key++;
+            index++;
+            if (index == size || key(index) != key) {
+                return key << 16;
+            }
+            low = 0;
+        }
+    }
+
+    public CompressedBitmap toCompressedBitmap() {
+        return CompressedBitmap.valueOf(bytes.duplicate());
+    }
+
+    private int nextSetBit(int index, int low) {
+        int offset = offset(index);
+        switch (type(index)) {
+        case Container.ARRAY:
+            int cardinality = cardinality(index);
+            int position = searchArray(offset, cardinality, low);
+            position = position >= 0 ? position : -position - 1;
+            return position < cardinality ? bytes.getChar(offset + position * Character.BYTES) : -1;
+        case Container.BITMAP:
+            int u = low >>> 6;
+            long word = bytes.getLong(offset + u * Long.BYTES) & (-1L << low);
+            while (word == 0) {
+                if (++u == Container.WORDS) {
+                    return -1;
+                }
+                word = bytes.getLong(offset + u * Long.BYTES);
+            }
+            return u * Long.SIZE + Long.numberOfTrailingZeros(word);
+        default:
+            int run = runAtOrBefore(offset, low);
+            if (run >= 0 && low <= runEnd(offset, run)) {
+                return low;
+            }
+            return run + 1 < bytes.getChar(offset) ? runStart(offset, run + 1) : -1;
+        }
+    }
+
+    private int nextClearBit(int index, int low) {
+        int offset = offset(index);
+        switch (type(index)) {
+        case Container.ARRAY:
+            int cardinality = cardinality(index);
+            int position = searchArray(offset, cardinality, low);
+            int value = low;
+            if (position >= 0) {
+                while (position < cardinality && bytes.getChar(offset + position * Character.BYTES) == value) {
+                    position++;
+                    value++;
+                }
+            }
+            return value;
+        case Container.BITMAP:
+            int u = low >>> 6;
+            long word = ~bytes.getLong(offset + u * Long.BYTES) & (-1L << low);
+            while (word == 0) {
+                if (++u == Container.WORDS) {
+                    return Container.BITS;
+                }
+                word = ~bytes.getLong(offset + u * Long.BYTES);
+            }
+            return u * Long.SIZE + Long.numberOfTrailingZeros(word);
+        default:
+            int run = runAtOrBefore(offset, low);
+            if (run >= 0 && low <= runEnd(offset, run)) {
+                return runEnd(offset, run) + 1;
+            }
+            return low;
+        }
+    }
+
+    private int key(int index) {
+        return bytes.getChar(header(index));
+    }
+
+    private int type(int index) {
+        return bytes.getChar(header(index) + Character.BYTES);
+    }
+
+    private int cardinality(int index) {
+        return bytes.getInt(header(index) + 2 * Character.BYTES);
+    }
+
+    private int offset(int index) {
+        return bytes.getInt(header(index) + 2 * Character.BYTES + Integer.BYTES);
+    }
+
+    private static int header(int index) {
+        return CompressedBitmap.HEADER_SIZE + index * CompressedBitmap.CONTAINER_HEADER_SIZE;
+    }
+
+    private int indexOf(int key) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midKey = key(mid);
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int searchArray(int offset, int cardinality, int low) {
+        int lo = 0;
+        int hi = cardinality - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = bytes.getChar(offset + mid * Character.BYTES);
+            if (value < low) {
+                lo = mid + 1;
+            } else if (value > low) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int runStart(int offset, int run) {
+        return bytes.getChar(offset + Character.BYTES + run * 2 * Character.BYTES);
+    }
+
+    private int runEnd(int offset, int run) {
+        return runStart(offset, run) + bytes.getChar(offset + 2 * Character.BYTES + run * 2 * Character.BYTES);
+    }
+
+    private int runAtOrBefore(int offset, int low) {
+        int lo = 0;
+        int hi = bytes.getChar(offset) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runStart(offset, mid) <= low) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    private static void checkIndex(int bitIndex) {
+        if (bitIndex < 0) {
+            throw new IndexOutOfBoundsException("bitIndex is " + bitIndex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedBitmapView [containers=" + size + ", cardinality=" + cardinality() + "]";
+    }
+}
@@ -0,0 +1,146 @@
+package py.common.bitmap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe {@link CompressedBitmap}.
+ * <p>
+ * Each container sits in its own slot and is locked on its own, so threads changing bits of different 2^16 ranges do
+ * not contend. Emptied slots are kept rather than removed, which would race with threads setting bits in them, and
+ * are dropped by {@link #snapshot()}.
+ */
+public class ConcurrentCompressedBitmap {
+    private final ConcurrentNavigableMap<Integer, Slot> slots = new ConcurrentSkipListMap<>();
+    private final LongAdder cardinality = new LongAdder();
+
+    private static class Slot {
+        private Container container = new ArrayContainer();
+    }
+
+    public void set(int bitIndex) {
+        checkIndex(bitIndex);
+        Slot slot = slots.computeIfAbsent(bitIndex >>> 16, key -> new Slot());
+        int low = bitIndex & 0xFFFF;
+        synchronized (slot) {
+            if (slot.container.contains(low)) {
+                return;
+            }
+            slot.container = slot.container.add(low);
+        }
+        cardinality.increment();
+    }
+
+    public void clear(int bitIndex) {
+        checkIndex(bitIndex);
+        Slot slot = slots.get(bitIndex >>> 16);
+        if (slot == null) {
+            return;
+        }
+        int low = bitIndex & 0xFFFF;
+        synchronized (slot) {
+            if (!slot.container.contains(low)) {
+                return;
+            }
+            slot.container = slot.container.remove(low);
+        }
+        cardinality.decrement();
+    }
+
+    public boolean get(int bitIndex) {
+        checkIndex(bitIndex);
+        Slot slot = slots.get(bitIndex >>> 16);
+        if (slot == null) {
+            return false;
+        }
+        synchronized (slot) {
+            return slot.container.contains(bitIndex & 0xFFFF);
+        }
+    }
+
+    /**
+     * @return the number of set bits, which may miss concurrent changes
+     */
+    public int cardinality() {
+        return cardinality.intValue();
+    }
+
+    /**
+     * @return the first set bit not less than {@code fromIndex}, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        checkIndex(fromIndex);
+        int low = fromIndex & 0xFFFF;
+        for (Map.Entry<Integer, Slot> entry : slots.tailMap(fromIndex >>> 16, true).entrySet()) {
+            if (entry.getKey() != fromIndex >>> 16) {
+                low = 0;
+            }
+            int next;
+            synchronized (entry.getValue()) {
+                next = entry.getValue().container.nextSetBit(low);
+            }
+            if (next >= 0) {
+                return (entry.getKey() << 16) | next;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first clear bit not less than {@code fromIndex}
+     */
+    public int nextClearBit(int fromIndex) {
+        checkIndex(fromIndex);
+        int key = fromIndex >>> 16;
+        int low = fromIndex & 0xFFFF;
+        while (true) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                return (key << 16) | low;
+            }
+            int next;
+            synchronized (slot) {
+                next = slot.container.nextClearBit(low);
+            }
+            if (next < Container.BITS) {
+                return (key << 16) | next;
+            }
+            key++;
+            low = 0;
+        }
+    }
+
+    /**
+     * @return a copy of the current bits, each container is copied atomically but not all of them together
+     */
+    public CompressedBitmap snapshot() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (Map.Entry<Integer, Slot> entry : slots.entrySet()) {
+            Container container;
+            synchronized (entry.getValue()) {
+                container = entry.getValue().container.copy();
+            }
+            if (container.cardinality() > 0) {
+                bitmap.append(entry.getKey(), container.runOptimize());
+            }
+        }
+        return bitmap;
+    }
+
+    public byte[] toByteArray() {
+        return snapshot().toByteArray();
+    }
+
+    private static void checkIndex(int bitIndex) {
+        if (bitIndex < 0) {
+            throw new IndexOutOfBoundsException("bitIndex is " + bitIndex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentCompressedBitmap [containers=" + slots.size() + ", cardinality=" + cardinality() + "]";
+    }
+}
@@ -0,0 +1,152 @@
+package py.common.bitmap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe {@link RingBitmap} for producers claiming free slots and consumers releasing them.
+ * <p>
+ * A producer claims the next clear bit after the last claimed one, wrapping around to the beginning, and sets it with
+ * a CAS on its word, a consumer releases a slot by clearing its bit. The last claimed index is only a hint where to
+ * start searching, so it is a plain field written by {@link #claim()} alone, and producers may see a stale one.
+ */
+public class ConcurrentRingBitmap {
+    private static final int WORD_SHIFT = RingBitmap.WORD_SHIFT;
+
+    private static final int WORD_LEN = RingBitmap.WORD_LEN;
+
+    private static final long WORD_MASK = RingBitmap.WORD_MASK;
+
+    private final int nbits;
+
+    private final AtomicLongArray words;
+
+    private final LongAdder setBits = new LongAdder();
+
+    // a racy hint, only written by claim()
+    private int curIndex = -1;
+
+    public ConcurrentRingBitmap(int nbits) {
+        if (nbits <= 0) {
+            throw new IllegalArgumentException("nbits must be positive: " + nbits);
+        }
+        this.nbits = nbits;
+        this.words = new AtomicLongArray((int) (((long) nbits + WORD_LEN - 1) / WORD_LEN));
+    }
+
+    public boolean get(int bitIndex) throws IndexOutOfBoundsException {
+        checkIndex(bitIndex);
+        return (words.get(bitIndex >> WORD_SHIFT) & (1L << bitIndex)) != 0;
+    }
+
+    /**
+     * @return true if the bit was clear and is set by this call
+     */
+    public boolean set(int bitIndex) throws IndexOutOfBoundsException {
+        checkIndex(bitIndex);
+        int u = bitIndex >> WORD_SHIFT;
+        long bit = 1L << bitIndex;
+        for (;;) {
+            long oldVal = words.get(u);
+            if ((oldVal & bit) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(u, oldVal, oldVal | bit)) {
+                setBits.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a slot.
+     *
+     * @return true if the bit was set and is cleared by this call
+     */
+    public boolean clear(int bitIndex) throws IndexOutOfBoundsException {
+        checkIndex(bitIndex);
+        int u = bitIndex >> WORD_SHIFT;
+        long bit = 1L << bitIndex;
+        for (;;) {
+            long oldVal = words.get(u);
+            if ((oldVal & bit) == 0) {
+                return false;
+            }
+            if (words.compareAndSet(u, oldVal, oldVal & ~bit)) {
+                setBits.decrement();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Claim the next clear bit after the last claimed one, wrapping around to the beginning of the bitmap.
+     *
+     * @return index of the bit claimed, or -1 if all bits are set
+     */
+    public int claim() {
+        int fromIndex = curIndex + 1;
+        if (fromIndex >= nbits) {
+            fromIndex = 0;
+        }
+        for (;;) {
+            int bitIndex = nextClearBit(fromIndex);
+            if (bitIndex < 0) {
+                return -1;
+            }
+            if (set(bitIndex)) {
+                curIndex = bitIndex;
+                return bitIndex;
+            }
+            // lost the bit to another producer, search on from it
+            fromIndex = bitIndex;
+        }
+    }
+
+    /**
+     * Find next clear bit from the given bit index (including the bit on the given index itself), wrapping around to
+     * the beginning of the bitmap.
+     *
+     * @return bit index if exist clear bit or -1
+     */
+    public int nextClearBit(int fromIndex) throws IndexOutOfBoundsException {
+        checkIndex(fromIndex);
+        int bitIndex = nextClearBit(fromIndex, nbits);
+        if (bitIndex < 0 && fromIndex > 0) {
+            bitIndex = nextClearBit(0, fromIndex);
+        }
+        return bitIndex;
+    }
+
+    /**
+     * @return the number of set bits, which is exact when no bits are being changed concurrently
+     */
+    public int cardinality() {
+        return setBits.intValue();
+    }
+
+    public int getNbits() {
+        return nbits;
+    }
+
+    private int nextClearBit(int fromIndex, int toIndex) {
+        int u = fromIndex >> WORD_SHIFT;
+        long word = ~words.get(u) & (WORD_MASK << fromIndex);
+        for (;;) {
+            if (word != 0) {
+                int bitIndex = (u << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+                return bitIndex < toIndex ? bitIndex : -1;
+            }
+            if (++u << WORD_SHIFT >= toIndex) {
+                return -1;
+            }
+            word = ~words.get(u);
+        }
+    }
+
+    private void checkIndex(int bitIndex) {
+        if (bitIndex < 0 || bitIndex >= nbits) {
+            throw new IndexOutOfBoundsException(String.format("Index %s is out of bound [0, %s)", bitIndex, nbits));
+        }
+    }
+}
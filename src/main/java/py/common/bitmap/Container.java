@@ -0,0 +1,222 @@
+package py.common.bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A container of the low 16 bits of the indexes sharing the same high 16 bits in a {@link CompressedBitmap}.
+ * <p>
+ * Containers are mutated in place when possible, mutations return the container to use afterwards, which is another
+ * type of container if the cardinality crossed {@link #MAX_ARRAY_CARDINALITY}.
+ */
+abstract class Container {
+    static final int ARRAY = 0;
+    static final int BITMAP = 1;
+    static final int RUN = 2;
+
+    static final int BITS = 1 << 16;
+    static final int WORDS = BITS / Long.SIZE;
+    // an array container of more values is larger than a bitmap container
+    static final int MAX_ARRAY_CARDINALITY = 4096;
+
+    abstract boolean contains(int low);
+
+    abstract Container add(int low);
+
+    abstract Container remove(int low);
+
+    abstract int cardinality();
+
+    /**
+     * @return the first value not less than the given one, or -1 if there is none
+     */
+    abstract int nextSetBit(int fromLow);
+
+    /**
+     * @return the first value not less than the given one which is absent, or {@link #BITS} if there is none
+     */
+    abstract int nextClearBit(int fromLow);
+
+    /**
+     * Set the bits of all values of this container in the given words.
+     */
+    abstract void fillWords(long[] words);
+
+    abstract int type();
+
+    /**
+     * @return length of the serialized values, the cardinality and type are kept by the bitmap
+     */
+    abstract int serializedSize();
+
+    abstract void writeTo(ByteBuffer buffer);
+
+    abstract Container copy();
+
+    Container and(Container other) {
+        long[] words = toWords();
+        long[] otherWords = other.toWords();
+        for (int i = 0; i < WORDS; i++) {
+            words[i] &= otherWords[i];
+        }
+        return fromWords(words);
+    }
+
+    Container or(Container other) {
+        long[] words = toWords();
+        other.fillWords(words);
+        return fromWords(words);
+    }
+
+    long[] toWords() {
+        long[] words = new long[WORDS];
+        fillWords(words);
+        return words;
+    }
+
+    /**
+     * @return the smallest container of the same values, which may be this one
+     */
+    Container runOptimize() {
+        long[] words = toWords();
+        int runs = numberOfRuns(words);
+        int cardinality = cardinality();
+        int runSize = RunContainer.serializedSize(runs);
+        int otherSize = cardinality <= MAX_ARRAY_CARDINALITY ? cardinality * Character.BYTES : WORDS * Long.BYTES;
+        if (runSize < otherSize) {
+            return type() == RUN ? this : RunContainer.fromWords(words, runs, cardinality);
+        }
+        return type() == RUN ? fromWords(words) : this;
+    }
+
+    /**
+     * @return an array or bitmap container of the given bits, whichever is smaller
+     */
+    static Container fromWords(long[] words) {
+        int cardinality = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
+        if (cardinality > MAX_ARRAY_CARDINALITY) {
+            return new BitmapContainer(words, cardinality);
+        }
+        char[] values = new char[Math.max(cardinality, 4)];
+        int index = 0;
+        for (int i = 0; i < WORDS; i++) {
+            long word = words[i];
+            while (word != 0) {
+                values[index++] = (char) (i * Long.SIZE + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values, cardinality);
+    }
+
+    static Container read(int type, int cardinality, ByteBuffer buffer) {
+        switch (type) {
+        case ARRAY:
+            char[] values = new char[Math.max(cardinality, 4)];
+            for (int i = 0; i < cardinality; i++) {
+                values[i] = buffer.getChar();
+            }
+            return new ArrayContainer(values, cardinality);
+        case BITMAP:
+            long[] words = new long[WORDS];
+            for (int i = 0; i < WORDS; i++) {
+                words[i] = buffer.getLong();
+            }
+            return new BitmapContainer(words, cardinality);
+        case RUN:
+            int runs = buffer.getChar();
+            char[] starts = new char[runs * 2];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = buffer.getChar();
+            }
+            return new RunContainer(starts, runs, cardinality);
+        default:
+            throw new IllegalArgumentException("unknown container type " + type);
+        }
+    }
+
+    static int numberOfRuns(long[] words) {
+        int runs = 0;
+        long previous = 0;
+        for (long word : words) {
+            // a run starts at each set bit whose lower neighbour is clear
+            runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+            previous = word;
+        }
+        return runs;
+    }
+
+    static void setRange(long[] words, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+            return;
+        }
+        words[first] |= firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = -1L;
+        }
+        words[last] |= lastMask;
+    }
+
+    static void clearRange(long[] words, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            words[first] &= ~(firstMask & lastMask);
+            return;
+        }
+        words[first] &= ~firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = 0;
+        }
+        words[last] &= ~lastMask;
+    }
+
+    static int nextSetBit(long[] words, int fromLow) {
+        if (fromLow >= BITS) {
+            return -1;
+        }
+        int u = fromLow >>> 6;
+        long word = words[u] & (-1L << fromLow);
+        while (true) {
+            if (word != 0) {
+                return u * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+            if (++u == WORDS) {
+                return -1;
+            }
+            word = words[u];
+        }
+    }
+
+    static int nextClearBit(long[] words, int fromLow) {
+        if (fromLow >= BITS) {
+            return BITS;
+        }
+        int u = fromLow >>> 6;
+        long word = ~words[u] & (-1L << fromLow);
+        while (true) {
+            if (word != 0) {
+                return u * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+            if (++u == WORDS) {
+                return BITS;
+            }
+            word = ~words[u];
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package py.common.bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A container of values in few runs, kept as pairs of the start and the length minus one of each run.
+ * <p>
+ * Run containers are built by {@link Container#runOptimize()}, and turned into an array or bitmap container when
+ * mutated.
+ */
+final class RunContainer extends Container {
+    private final char[] runs;
+    private final int runCount;
+    private final int cardinality;
+
+    RunContainer(char[] runs, int runCount, int cardinality) {
+        this.runs = runs;
+        this.runCount = runCount;
+        this.cardinality = cardinality;
+    }
+
+    static int serializedSize(int runCount) {
+        return Character.BYTES + runCount * 2 * Character.BYTES;
+    }
+
+    static RunContainer fromWords(long[] words, int runCount, int cardinality) {
+        char[] runs = new char[runCount * 2];
+        int index = 0;
+        int start = nextSetBit(words, 0);
+        while (start >= 0) {
+            int end = nextClearBit(words, start);
+            runs[index++] = (char) start;
+            runs[index++] = (char) (end - start - 1);
+            start = nextSetBit(words, end);
+        }
+        return new RunContainer(runs, runCount, cardinality);
+    }
+
+    static RunContainer full() {
+        return new RunContainer(new char[] { 0, (char) (BITS - 1) }, 1, BITS);
+    }
+
+    @Override
+    boolean contains(int low) {
+        int run = runAtOrBefore(low);
+        return run >= 0 && low <= end(run);
+    }
+
+    @Override
+    Container add(int low) {
+        return contains(low) ? this : fromWords(toWords()).add(low);
+    }
+
+    @Override
+    Container remove(int low) {
+        return contains(low) ? fromWords(toWords()).remove(low) : this;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    int nextSetBit(int fromLow) {
+        int run = runAtOrBefore(fromLow);
+        if (run >= 0 && fromLow <= end(run)) {
+            return fromLow;
+        }
+        return run + 1 < runCount ? runs[(run + 1) * 2] : -1;
+    }
+
+    @Override
+    int nextClearBit(int fromLow) {
+        int run = runAtOrBefore(fromLow);
+        if (run >= 0 && fromLow <= end(run)) {
+            // runs never touch, so the bit after a run is clear
+            return end(run) + 1;
+        }
+        return fromLow;
+    }
+
+    @Override
+    void fillWords(long[] words) {
+        for (int i = 0; i < runCount; i++) {
+            setRange(words, runs[i * 2], end(i) + 1);
+        }
+    }
+
+    @Override
+    int type() {
+        return RUN;
+    }
+
+    @Override
+    int serializedSize() {
+        return serializedSize(runCount);
+    }
+
+    @Override
+    void writeTo(ByteBuffer buffer) {
+        buffer.putChar((char) runCount);
+        for (int i = 0; i < runCount * 2; i++) {
+            buffer.putChar(runs[i]);
+        }
+    }
+
+    @Override
+    Container copy() {
+        // never mutated in place
+        return this;
+    }
+
+    private int end(int run) {
+        return runs[run * 2] + runs[run * 2 + 1];
+    }
+
+    /**
+     * @return the last run starting at or before the given value, or -1
+     */
+    private int runAtOrBefore(int low) {
+        int lo = 0;
+        int hi = runCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runs[mid * 2] <= low) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+}
@@ -0,0 +1,415 @@
+package py.common.counter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe {@link ObjectCounter} backed by indexed 4-ary heaps.
+ * <p>
+ * Objects are spread over lock-striped stripes. Each stripe indexes its objects in a hash map and keeps them in a max
+ * heap and a min heap at the same time, so an update moves one entry up or down both heaps in O(log n), and
+ * {@link #max()}/{@link #min()} only compare the heads of the stripes. Objects with the same count are ordered by the
+ * time they were first counted, instead of by hash code as in {@link TreeSetObjectCounter}.
+ * <p>
+ * Iteration takes a sorted snapshot, which costs O(n log n) and does not reflect later updates.
+ */
+public class HeapObjectCounter<T> implements ObjectCounter<T> {
+    private static final int ARITY = 4;
+    private static final int MAX_HEAP = 0;
+    private static final int MIN_HEAP = 1;
+
+    private final Stripe<T>[] stripes;
+    // shared by all stripes, so that ties are ordered by first count across stripes too
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    public HeapObjectCounter() {
+        this(1);
+    }
+
+    /**
+     * @param stripeCount
+     *            number of independently locked stripes, rounded up to a power of two. More stripes allow more
+     *            concurrent updates but make {@link #max()} and {@link #min()} compare more heads.
+     */
+    @SuppressWarnings("unchecked")
+    public HeapObjectCounter(int stripeCount) {
+        int count = 1;
+        while (count < stripeCount) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe<>(nextSequence);
+        }
+    }
+
+    private Stripe<T> stripeOf(T t) {
+        int hash = t.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    @Override
+    public int compare(T o1, T o2) {
+        return Long.compare(get(o1), get(o2));
+    }
+
+    @Override
+    public long get(T t) {
+        return stripeOf(t).get(t);
+    }
+
+    @Override
+    public void increment(T t) {
+        stripeOf(t).add(t, 1);
+    }
+
+    @Override
+    public void increment(T t, long n) {
+        stripeOf(t).add(t, n);
+    }
+
+    @Override
+    public void decrement(T t) {
+        stripeOf(t).add(t, -1);
+    }
+
+    @Override
+    public void decrement(T t, long n) {
+        stripeOf(t).add(t, -n);
+    }
+
+    @Override
+    public void set(T t, long n) {
+        stripeOf(t).set(t, n);
+    }
+
+    @Override
+    public boolean remove(T t) {
+        return stripeOf(t).remove(t);
+    }
+
+    @Override
+    public T max() {
+        return head(MAX_HEAP).key;
+    }
+
+    @Override
+    public long maxValue() {
+        return head(MAX_HEAP).value;
+    }
+
+    @Override
+    public T min() {
+        return head(MIN_HEAP).key;
+    }
+
+    @Override
+    public long minValue() {
+        return head(MIN_HEAP).value;
+    }
+
+    private Entry<T> head(int heap) {
+        Entry<T> best = null;
+        for (Stripe<T> stripe : stripes) {
+            Entry<T> candidate = stripe.head(heap);
+            if (candidate == null) {
+                continue;
+            }
+            if (best == null || (heap == MAX_HEAP ? candidate.compareTo(best) > 0 : candidate.compareTo(best) < 0)) {
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            throw new NoSuchElementException();
+        }
+        return best;
+    }
+
+    @Override
+    public long total() {
+        long sum = 0;
+        for (Stripe<T> stripe : stripes) {
+            sum += stripe.total();
+        }
+        return sum;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe<T> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (Stripe<T> stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    private List<Entry<T>> sortedSnapshot() {
+        List<Entry<T>> entries = new ArrayList<>();
+        for (Stripe<T> stripe : stripes) {
+            stripe.snapshot(entries);
+        }
+        entries.sort(Entry::compareTo);
+        return entries;
+    }
+
+    private static <T> List<T> keysOf(List<Entry<T>> entries) {
+        List<T> keys = new ArrayList<>(entries.size());
+        for (Entry<T> entry : entries) {
+            keys.add(entry.key);
+        }
+        return keys;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return keysOf(sortedSnapshot()).iterator();
+    }
+
+    @Override
+    public Iterator<T> iterator(Comparator<T> comparator) {
+        List<T> keys = keysOf(sortedSnapshot());
+        keys.sort(comparator);
+        return keys.iterator();
+    }
+
+    @Override
+    public Iterator<T> descendingIterator() {
+        List<Entry<T>> entries = sortedSnapshot();
+        List<T> keys = new ArrayList<>(entries.size());
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            keys.add(entries.get(i).key);
+        }
+        return keys.iterator();
+    }
+
+    @Override
+    public Collection<T> getAll() {
+        return keysOf(sortedSnapshot());
+    }
+
+    @Override
+    public HeapObjectCounter<T> deepCopy() {
+        HeapObjectCounter<T> another = new HeapObjectCounter<>(stripes.length);
+        for (Entry<T> entry : sortedSnapshot()) {
+            another.set(entry.key, entry.value);
+        }
+        return another;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("HeapObjectCounter(").append(System.identityHashCode(this)).append(")")
+                .append(":{counters=[");
+        for (Entry<T> entry : sortedSnapshot()) {
+            if (entry.value != 0) {
+                sb.append(entry.key).append("=").append(entry.value).append(", ");
+            }
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static class Entry<T> implements Comparable<Entry<T>> {
+        private final T key;
+        private final long sequence;
+        private long value;
+        private final int[] positions = new int[2];
+
+        Entry(T key, long value, long sequence) {
+            this.key = key;
+            this.value = value;
+            this.sequence = sequence;
+        }
+
+        Entry<T> copy() {
+            return new Entry<>(key, value, sequence);
+        }
+
+        @Override
+        public int compareTo(Entry<T> other) {
+            int result = Long.compare(value, other.value);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static class Stripe<T> {
+        private final Map<T, Entry<T>> index = new HashMap<>();
+        @SuppressWarnings("unchecked")
+        private final Entry<T>[][] heaps = new Entry[][] { new Entry[16], new Entry[16] };
+        private int size;
+        private long total;
+        private final AtomicLong nextSequence;
+
+        Stripe(AtomicLong nextSequence) {
+            this.nextSequence = nextSequence;
+        }
+
+        synchronized long get(T t) {
+            Entry<T> entry = index.get(t);
+            return entry == null ? 0 : entry.value;
+        }
+
+        synchronized void add(T t, long delta) {
+            Entry<T> entry = index.get(t);
+            if (entry == null) {
+                insert(t, delta);
+            } else {
+                update(entry, entry.value + delta);
+            }
+        }
+
+        synchronized void set(T t, long n) {
+            Entry<T> entry = index.get(t);
+            if (entry == null) {
+                insert(t, n);
+            } else {
+                update(entry, n);
+            }
+        }
+
+        synchronized boolean remove(T t) {
+            Entry<T> entry = index.remove(t);
+            if (entry == null) {
+                return false;
+            }
+            total -= entry.value;
+            size--;
+            for (int heap = MAX_HEAP; heap <= MIN_HEAP; heap++) {
+                int pos = entry.positions[heap];
+                Entry<T> last = heaps[heap][size];
+                heaps[heap][size] = null;
+                if (last != entry) {
+                    place(heap, last, pos);
+                    siftUp(heap, pos);
+                    siftDown(heap, last.positions[heap]);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return a copy of the head of the given heap, which stays valid outside the lock
+         */
+        synchronized Entry<T> head(int heap) {
+            return size == 0 ? null : heaps[heap][0].copy();
+        }
+
+        synchronized long total() {
+            return total;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            index.clear();
+            for (Entry<T>[] heap : heaps) {
+                Arrays.fill(heap, null);
+            }
+            size = 0;
+            total = 0;
+        }
+
+        synchronized void snapshot(List<Entry<T>> entries) {
+            for (int i = 0; i < size; i++) {
+                entries.add(heaps[MAX_HEAP][i].copy());
+            }
+        }
+
+        private void insert(T t, long value) {
+            Entry<T> entry = new Entry<>(t, value, nextSequence.getAndIncrement());
+            index.put(t, entry);
+            total += value;
+            if (size == heaps[MAX_HEAP].length) {
+                heaps[MAX_HEAP] = Arrays.copyOf(heaps[MAX_HEAP], size * 2);
+                heaps[MIN_HEAP] = Arrays.copyOf(heaps[MIN_HEAP], size * 2);
+            }
+            int pos = size++;
+            for (int heap = MAX_HEAP; heap <= MIN_HEAP; heap++) {
+                place(heap, entry, pos);
+                siftUp(heap, pos);
+            }
+        }
+
+        private void update(Entry<T> entry, long newValue) {
+            long oldValue = entry.value;
+            entry.value = newValue;
+            total += newValue - oldValue;
+            if (newValue > oldValue) {
+                siftUp(MAX_HEAP, entry.positions[MAX_HEAP]);
+                siftDown(MIN_HEAP, entry.positions[MIN_HEAP]);
+            } else if (newValue < oldValue) {
+                siftDown(MAX_HEAP, entry.positions[MAX_HEAP]);
+                siftUp(MIN_HEAP, entry.positions[MIN_HEAP]);
+            }
+        }
+
+        /**
+         * @return true if the entry a should be above the entry b in the given heap
+         */
+        private static <T> boolean above(int heap, Entry<T> a, Entry<T> b) {
+            int result = a.compareTo(b);
+            return heap == MAX_HEAP ? result > 0 : result < 0;
+        }
+
+        private void place(int heap, Entry<T> entry, int pos) {
+            heaps[heap][pos] = entry;
+            entry.positions[heap] = pos;
+        }
+
+        private void siftUp(int heap, int pos) {
+            Entry<T>[] array = heaps[heap];
+            Entry<T> entry = array[pos];
+            while (pos > 0) {
+                int parent = (pos - 1) / ARITY;
+                if (!above(heap, entry, array[parent])) {
+                    break;
+                }
+                place(heap, array[parent], pos);
+                pos = parent;
+            }
+            place(heap, entry, pos);
+        }
+
+        private void siftDown(int heap, int pos) {
+            Entry<T>[] array = heaps[heap];
+            Entry<T> entry = array[pos];
+            while (true) {
+                int firstChild = pos * ARITY + 1;
+                if (firstChild >= size) {
+                    break;
+                }
+                int best = firstChild;
+                int lastChild = Math.min(firstChild + ARITY, size);
+                for (int child = firstChild + 1; child < lastChild; child++) {
+                    if (above(heap, array[child], array[best])) {
+                        best = child;
+                    }
+                }
+                if (!above(heap, array[best], entry)) {
+                    break;
+                }
+                place(heap, array[best], pos);
+                pos = best;
+            }
+            place(heap, entry, pos);
+        }
+    }
+}
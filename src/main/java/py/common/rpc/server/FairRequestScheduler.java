@@ -0,0 +1,264 @@
+package py.common.rpc.server;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+
+/**
+ * Shares the threads of a thrift server fairly between its connections.
+ * <p>
+ * Every connection queues its requests separately, and has at most {@code inFlightLimit} of them running at once.
+ * Connections with requests to run take turns in a weighted round-robin: a connection of weight n gets n requests
+ * dispatched before the next connection gets its turn. Requests waiting longer than the task timeout are rejected
+ * when dequeued instead of being run late. No more workers than the maximum pool size of the executor run at once,
+ * each running requests until no connection has any.
+ */
+class FairRequestScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(FairRequestScheduler.class);
+
+    interface Task {
+        long getStartTimeMillis();
+
+        void run();
+
+        void reject(String reason);
+    }
+
+    private final ThreadPoolExecutor exe;
+    private final int maxWorkers;
+    private final int inFlightLimit;
+    private final int pendingLimit;
+    private final long taskTimeoutMillis;
+    private final AtomicInteger workers = new AtomicInteger(0);
+    // connections with requests which can be dispatched, a connection is in it at most once
+    private final ConcurrentLinkedDeque<Connection> ready = new ConcurrentLinkedDeque<>();
+    private ToIntFunction<String> weigher = remoteAddress -> 1;
+
+    // metrics are labelled by remote host as before the scheduler, and registered once for each host rather than on
+    // each connect
+    private final Map<String, ConnectionMetrics> metricsByHost = new ConcurrentHashMap<>();
+    private final PYMetric meterTimeoutRequests;
+    private final PYMetric timerWaitInQueue;
+
+    FairRequestScheduler(ThriftServerDef def) {
+        this.exe = (ThreadPoolExecutor) def.getExecutor();
+        this.maxWorkers = exe.getMaximumPoolSize();
+        this.inFlightLimit = Math.max(def.getQueuedResponseLimit(), 1);
+        this.pendingLimit = Math.max(maxWorkers, inFlightLimit);
+        this.taskTimeoutMillis = (long) (def.getTaskTimeout() == null ? 0 : def.getTaskTimeout().toMillis());
+        logger.info("max workers: {}, in flight limit per connection: {}, pending limit per connection: {}",
+                maxWorkers, inFlightLimit, pendingLimit);
+
+        PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+        String serverPrefix = MetricRegistry.name(NiftyDispatcher.class.getSimpleName(), def.getName());
+        this.meterTimeoutRequests = registry.register(MetricRegistry.name(serverPrefix, "meter_timeout_requests"),
+                Meter.class);
+        this.timerWaitInQueue = registry.register(MetricRegistry.name(serverPrefix, "timer_wait_in_queue"),
+                Timer.class);
+    }
+
+    /**
+     * @param weigher
+     *            weight of a connection from its remote host, 1 by default
+     */
+    void setWeigher(ToIntFunction<String> weigher) {
+        this.weigher = weigher;
+    }
+
+    Connection newConnection(String remoteHost) {
+        ConnectionMetrics metrics = metricsByHost.computeIfAbsent(remoteHost, ConnectionMetrics::new);
+        return new Connection(Math.max(weigher.applyAsInt(remoteHost), 1), metrics);
+    }
+
+    class Connection {
+        private final Queue<Task> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger(0);
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final int weight;
+        private final ConnectionMetrics metrics;
+        // requests left in the current turn, only changed by the worker which took the connection from the ring
+        private int credits;
+        private volatile boolean closed = false;
+
+        Connection(int weight, ConnectionMetrics metrics) {
+            this.weight = weight;
+            this.credits = weight;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Queue a request, or reject it if the connection has too many.
+         */
+        void submit(Task task) {
+            metrics.meterSubmitRequests.mark();
+            if (pendingCount.incrementAndGet() > pendingLimit) {
+                pendingCount.decrementAndGet();
+                metrics.meterRejectRequests.mark();
+                task.reject("server overloaded");
+                return;
+            }
+            pending.offer(task);
+            if (scheduled.compareAndSet(false, true)) {
+                ready.offerLast(this);
+                startWorkers();
+            }
+        }
+
+        /**
+         * Drop the requests not dispatched yet.
+         */
+        void close() {
+            closed = true;
+            while (pending.poll() != null) {
+                pendingCount.decrementAndGet();
+            }
+        }
+
+        PYMetric getTimerSubmitResult() {
+            return metrics.timerSubmitResult;
+        }
+
+        PYMetric getTimerWriteResponse() {
+            return metrics.timerWriteResponse;
+        }
+
+        private boolean dispatchable() {
+            return !closed && inFlight.get() < inFlightLimit && !pending.isEmpty();
+        }
+
+        /**
+         * Put this connection, just taken from the ring, back if it has more requests to dispatch.
+         */
+        private void putBack() {
+            if (!dispatchable()) {
+                scheduled.set(false);
+                // a request may have been queued or finished since the check
+                if (!dispatchable() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+            if (credits > 0) {
+                ready.offerFirst(this);
+            } else {
+                credits = weight;
+                ready.offerLast(this);
+            }
+        }
+
+        private void finished() {
+            inFlight.decrementAndGet();
+            if (dispatchable() && scheduled.compareAndSet(false, true)) {
+                ready.offerLast(this);
+                startWorkers();
+            }
+        }
+    }
+
+    /**
+     * Start one more worker if some connection is ready and not all workers are running. Workers start more workers
+     * as long as requests remain, so a burst of requests spreads over the threads.
+     */
+    private void startWorkers() {
+        while (!ready.isEmpty()) {
+            int current = workers.get();
+            if (current >= maxWorkers) {
+                return;
+            }
+            if (workers.compareAndSet(current, current + 1)) {
+                try {
+                    exe.execute(this::work);
+                } catch (RejectedExecutionException e) {
+                    workers.decrementAndGet();
+                    logger.warn("can not start a worker, {} are running", workers.get(), e);
+                }
+                return;
+            }
+        }
+    }
+
+    private void work() {
+        try {
+            Connection connection;
+            while ((connection = ready.pollFirst()) != null) {
+                Task task = null;
+                if (!connection.closed && connection.inFlight.get() < inFlightLimit) {
+                    task = connection.pending.poll();
+                }
+                if (task == null) {
+                    connection.putBack();
+                    continue;
+                }
+                connection.pendingCount.decrementAndGet();
+                connection.inFlight.incrementAndGet();
+                connection.credits--;
+                connection.putBack();
+                startWorkers();
+
+                try {
+                    dispatch(connection, task);
+                } finally {
+                    connection.finished();
+                }
+            }
+        } finally {
+            workers.decrementAndGet();
+            // a connection may have become ready after the ring was seen empty
+            startWorkers();
+        }
+    }
+
+    private void dispatch(Connection connection, Task task) {
+        long waitTimeMillis = System.currentTimeMillis() - task.getStartTimeMillis();
+        timerWaitInQueue.update(waitTimeMillis, TimeUnit.MILLISECONDS);
+        connection.metrics.timerWaitAvailableThread.update(waitTimeMillis, TimeUnit.MILLISECONDS);
+        if (taskTimeoutMillis > 0 && waitTimeMillis > taskTimeoutMillis) {
+            meterTimeoutRequests.mark();
+            logger.info("request waited {}ms which exceeds the task timeout {}ms", waitTimeMillis, taskTimeoutMillis);
+            task.reject("task timeout");
+            return;
+        }
+        task.run();
+    }
+
+    private static class ConnectionMetrics {
+        private final PYMetric meterSubmitRequests;
+        private final PYMetric meterRejectRequests;
+        private final PYMetric timerWaitAvailableThread;
+        private final PYMetric timerSubmitResult;
+        private final PYMetric timerWriteResponse;
+
+        ConnectionMetrics(String remoteHost) {
+            PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+            String prefix = NiftyDispatcher.class.getSimpleName();
+            meterSubmitRequests = registry.register(MetricRegistry.name(prefix, remoteHost, "meter_submit_requests"),
+                    Meter.class);
+            meterRejectRequests = registry.register(MetricRegistry.name(prefix, remoteHost, "meter_reject_requests"),
+                    Meter.class);
+            timerWaitAvailableThread = registry.register(MetricRegistry.name(prefix, remoteHost,
+                    "timer_wait_available_thread"), Timer.class);
+            timerSubmitResult = registry.register(MetricRegistry.name(prefix, remoteHost, "timer_submit_result"),
+                    Timer.class);
+            timerWriteResponse = registry.register(MetricRegistry.name(prefix, remoteHost, "timer_write_response"),
+                    Timer.class);
+        }
+    }
+}
@@ -85,6 +85,8 @@ public class NettyServerTransport implements ExternalResourceReleasable {
         this.allChannels = allChannels;
         // connectionLimiter must be instantiated exactly once (and thus outside the pipeline factory)
         final ConnectionLimiter connectionLimiter = new ConnectionLimiter(def.getMaxConnections());
+        // the scheduler shares threads between all connections, so it is instantiated once too
+        final FairRequestScheduler scheduler = new FairRequestScheduler(def);
 
         this.channelStatistics = new ChannelStatistics(allChannels);
 
@@ -108,7 +110,7 @@ public class NettyServerTransport implements ExternalResourceReleasable {
                 }
 
                 cp.addLast("authHandler", securityHandlers.getAuthenticationHandler());
-                cp.addLast("dispatcher", new NiftyDispatcher(def));
+                cp.addLast("dispatcher", new NiftyDispatcher(def, scheduler));
                 return cp;
             }
         };
@@ -21,6 +21,8 @@ import org.apache.thrift.protocol.TMessage;
 import org.apache.thrift.protocol.TMessageType;
 import org.apache.thrift.protocol.TProtocol;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
@@ -32,22 +34,11 @@ import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.codahale.metrics.Meter;
-import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.Timer;
-
 import py.common.rpc.share.TDuplexProtocolFactory;
 import py.common.rpc.share.TProtocolPair;
 import py.common.rpc.share.TTransportPair;
-import py.metrics.PYMetric;
-import py.metrics.PYMetricRegistry;
 import py.metrics.PYTimerContext;
 
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
 /**
  * Dispatch TNiftyTransport to the TProcessor and write output back.
  * <p>
@@ -55,32 +46,25 @@ import java.util.concurrent.TimeUnit;
  * out-of-order responses to those requests, so this dispatcher sends the requests ignore the order. (Eventually this
  * will be conditional on a flag in the thrift message header for future async clients that can handle out-of-order
  * responses).
+ * <p>
+ * Requests are run by a {@link FairRequestScheduler} shared by all connections of the server, so that a chatty client
+ * can not take all threads of the server.
  */
 public class NiftyDispatcher extends SimpleChannelUpstreamHandler {
     private final Logger logger = LoggerFactory.getLogger(NiftyDispatcher.class);
     private final NiftyProcessorFactory processorFactory;
-    private final ThreadPoolExecutor exe;
-    private final long taskTimeoutMillis;
     private final TDuplexProtocolFactory duplexProtocolFactory;
-    private final Semaphore semaphore;
-    private PYMetric meterSubmitRequests;
-    private PYMetric meterRejectRequests;
-    private PYMetric timerWaitAvailableThread;
-    private PYMetric timerSubmitResult;
-    private PYMetric timerWriteResponse;
+    private final FairRequestScheduler scheduler;
+    private volatile FairRequestScheduler.Connection connection;
 
-    public NiftyDispatcher(ThriftServerDef def) {
+    public NiftyDispatcher(ThriftServerDef def, FairRequestScheduler scheduler) {
         this.processorFactory = def.getProcessorFactory();
         this.duplexProtocolFactory = def.getDuplexProtocolFactory();
-        this.exe = (ThreadPoolExecutor) def.getExecutor();
-        logger.info("the max pool size is {} ", exe.getMaximumPoolSize());
-        this.semaphore = new Semaphore(exe.getMaximumPoolSize());
-        this.taskTimeoutMillis = (long) (def.getTaskTimeout() == null ? 0 : def.getTaskTimeout().toMillis());
+        this.scheduler = scheduler;
     }
 
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
         String remoteAddress = ctx.getChannel().getRemoteAddress().toString();
         if (!remoteAddress.isEmpty()) {
             // remove the char '\'
@@ -91,25 +75,23 @@ public class NiftyDispatcher extends SimpleChannelUpstreamHandler {
             }
         }
         logger.info("remote address({}) connected", remoteAddress);
-        meterSubmitRequests = registry.register(MetricRegistry.name(NiftyDispatcher.class.getSimpleName(),
-                remoteAddress, "meter_submit_requests"), Meter.class);
-        meterRejectRequests = registry.register(MetricRegistry.name(NiftyDispatcher.class.getSimpleName(),
-                remoteAddress, "meter_reject_requests"), Meter.class);
-        timerWaitAvailableThread = registry.register(MetricRegistry.name(NiftyDispatcher.class.getSimpleName(),
-                remoteAddress, "timer_wait_available_thread"), Timer.class);
-        timerSubmitResult = registry.register(MetricRegistry.name(NiftyDispatcher.class.getSimpleName(),
-                remoteAddress, "timer_submit_result"), Timer.class);
-        timerWriteResponse = registry.register(MetricRegistry.name(NiftyDispatcher.class.getSimpleName(),
-                remoteAddress, "timer_write_response"), Timer.class);
+        connection = scheduler.newConnection(remoteAddress);
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (connection != null) {
+            connection.close();
+        }
+        super.channelClosed(ctx, e);
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         if (e.getMessage() instanceof ThriftMessage) {
             ThriftMessage message = (ThriftMessage) e.getMessage();
-            if (taskTimeoutMillis > 0) {
-                message.setProcessStartTimeMillis(System.currentTimeMillis());
-            }
+            message.setProcessStartTimeMillis(System.currentTimeMillis());
 
             /**
              * create a out transport and separate the in transport and out transport for reusing the input buffer, and
@@ -134,76 +116,63 @@ public class NiftyDispatcher extends SimpleChannelUpstreamHandler {
 
     private void processRequest(final ChannelHandlerContext ctx, final ThriftMessage message,
                                 final TNiftyTransport messageTransport, final TProtocol inProtocol, final TProtocol outProtocol) {
-        try {
-            meterSubmitRequests.mark();
-            PYTimerContext waitTime = timerWaitAvailableThread.time();
-            try {
-                if (!semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)) {
-                    throw new Exception("timeout: 100");
-                }
-            } finally {
-                waitTime.stop();
+        final FairRequestScheduler.Connection connection = this.connection;
+        connection.submit(new FairRequestScheduler.Task() {
+            @Override
+            public long getStartTimeMillis() {
+                return message.getProcessStartTimeMillis();
             }
 
-            exe.execute(new Runnable() {
-                @Override
-                public void run() {
-                    PYTimerContext submitResultContext = null;
-                    try {
-                        /**
-                         * it contains two operators: one for processing the request, another for dealing with send the
-                         * response.
-                         */
-                        processorFactory.getProcessor(messageTransport).process(inProtocol, outProtocol, null);
-                        submitResultContext = timerSubmitResult.time();
-
-                        /**
-                         * now write the message on the channel's I/O thread
-                         */
-                        executeInIoThread(ctx.getChannel(), new Runnable() {
-                            @Override
-                            public void run() {
-                                PYTimerContext writeResponseTimer = timerWriteResponse.time();
-                                try {
-                                    ThriftMessage response = message.getMessageFactory().create(
-                                            messageTransport.getOutputBuffer());
-                                    writeResponse(ctx, response);
-                                } finally {
-                                    writeResponseTimer.stop();
-                                }
+            @Override
+            public void run() {
+                PYTimerContext submitResultContext = null;
+                try {
+                    /**
+                     * it contains two operators: one for processing the request, another for dealing with send the
+                     * response.
+                     */
+                    processorFactory.getProcessor(messageTransport).process(inProtocol, outProtocol, null);
+                    submitResultContext = connection.getTimerSubmitResult().time();
+
+                    /**
+                     * now write the message on the channel's I/O thread
+                     */
+                    executeInIoThread(ctx.getChannel(), new Runnable() {
+                        @Override
+                        public void run() {
+                            PYTimerContext writeResponseTimer = connection.getTimerWriteResponse().time();
+                            try {
+                                ThriftMessage response = message.getMessageFactory().create(
+                                        messageTransport.getOutputBuffer());
+                                writeResponse(ctx, response, messageTransport);
+                            } finally {
+                                writeResponseTimer.stop();
                             }
-                        });
-
-                    } catch (Throwable t) {
-                        try {
-                            logger.warn("can't deal with the request from {}, local: {} {} ",
-                                    ctx.getChannel().getRemoteAddress(), ctx.getChannel().getLocalAddress(), t);
-                        } finally {
-                            onDispatchException(ctx, t);
                         }
+                    });
+
+                } catch (Throwable t) {
+                    try {
+                        logger.warn("can't deal with the request from {}, local: {} {} ",
+                                ctx.getChannel().getRemoteAddress(), ctx.getChannel().getLocalAddress(), t);
                     } finally {
+                        onDispatchException(ctx, t);
+                    }
+                } finally {
+                    if (submitResultContext != null) {
                         submitResultContext.stop();
-                        semaphore.release();
                     }
                 }
-            });
-        } catch (RejectedExecutionException ex) {
-            try {
-                semaphore.release();
-                meterRejectRequests.mark();
-                logger.info("Server: {} overloaded to deal with the request of client: {} ",
-                        ctx.getChannel().getLocalAddress(), ctx.getChannel().getRemoteAddress());
-            } finally {
-                TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR,
-                        "server overloaded");
+            }
+
+            @Override
+            public void reject(String reason) {
+                logger.info("Server: {} rejects the request of client: {}, reason: {}",
+                        ctx.getChannel().getLocalAddress(), ctx.getChannel().getRemoteAddress(), reason);
+                TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR, reason);
                 sendTApplicationException(x, ctx, message, messageTransport, inProtocol, outProtocol);
             }
-        } catch (Exception e) {
-            logger.warn("caught an exception", e);
-            TApplicationException x = new TApplicationException(TApplicationException.INTERNAL_ERROR,
-                    "there is no available thread");
-            sendTApplicationException(x, ctx, message, messageTransport, inProtocol, outProtocol);
-        }
+        });
     }
 
     public void executeInIoThread(Channel channel, Runnable runnable) {
@@ -228,7 +197,7 @@ public class NiftyDispatcher extends SimpleChannelUpstreamHandler {
                 outProtocol.getTransport().flush();
                 // after send, we wait response
                 ThriftMessage response = request.getMessageFactory().create(requestTransport.getOutputBuffer());
-                writeResponse(ctx, response);
+                writeResponse(ctx, response, requestTransport);
             } catch (TException ex) {
                 try {
                     logger.warn("server: {} can't response to client: {} ", ctx.getChannel().getLocalAddress()
@@ -245,9 +214,15 @@ public class NiftyDispatcher extends SimpleChannelUpstreamHandler {
         closeChannel(ctx);
     }
 
-    private void writeResponse(ChannelHandlerContext ctx, ThriftMessage response) {
+    private void writeResponse(ChannelHandlerContext ctx, ThriftMessage response, final TNiftyTransport transport) {
         // No ordering required, just write the response immediately
-        Channels.write(ctx.getChannel(), response);
+        Channels.write(ctx.getChannel(), response).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                // the output buffer has been written or dropped, its chunks can be reused
+                transport.releaseOutputBuffer();
+            }
+        });
     }
 
     @Override
@@ -117,6 +117,13 @@ public class TNiftyTransport extends TTransport {
         return out.getBuffer();
     }
 
+    /**
+     * Return the output buffer to the pool after the response has been written.
+     */
+    public void releaseOutputBuffer() {
+        out.release();
+    }
+
     public ThriftTransportType getTransportType() {
         return thriftTransportType;
     }
@@ -1,67 +1,169 @@
 package py.common.rpc.share;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.lang.Validate;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+
+/**
+ * An output buffer which grows by chunks instead of reallocating.
+ * <p>
+ * The first chunk is a small heap buffer, so small responses cost no more than before. Further chunks are direct
+ * buffers of a fixed size taken from a shared pool. {@link #getBuffer()} exposes all chunks as one gathering buffer, so
+ * the socket writes them with one gathering write, and {@link #release()} returns the chunks to the pool once the
+ * buffer has been written.
+ * <p>
+ * No more direct chunks are created than the pool can keep, so direct memory stays bounded. When all of them are in
+ * use, or the chunks are not of the pooled size, chunks are heap buffers left to the garbage collector.
+ */
 public class PyDynamicBuffer {
-    private ChannelBuffer channelBuffer;
     private static final int DEFAULT_INIT_BUFFER_SIZE = 1024;
-    private static final int MAX_THRESHOLD_SIZE_EXPONENTIAL_INCREASE = 1024 * 1024;
-    private int maxThresholdSizeOfExponentialIncrease = MAX_THRESHOLD_SIZE_EXPONENTIAL_INCREASE;
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    // at most 16MB of direct chunks are created, all of which the pool can keep. Chunks of a buffer never released
+    // are not given back, later chunks are then on the heap
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final Queue<ChannelBuffer> chunkPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunkCount = new AtomicInteger(0);
+    private static final AtomicInteger directChunkCount = new AtomicInteger(0);
+
+    private static final PYMetric counterChunksAllocated;
+    private static final PYMetric counterHeapChunksAllocated;
+    private static final PYMetric counterChunksReused;
+    private static final PYMetric histoChunksPerBuffer;
 
-    public PyDynamicBuffer(int initSize, int maxThresholdSizeOfExponentialIncrease) {
-        Validate.isTrue(initSize <= maxThresholdSizeOfExponentialIncrease);
-        channelBuffer = ChannelBuffers.buffer(((initSize >> 10) << 10));
-        this.maxThresholdSizeOfExponentialIncrease = maxThresholdSizeOfExponentialIncrease;
+    static {
+        PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+        String className = PyDynamicBuffer.class.getSimpleName();
+        counterChunksAllocated = registry.register(MetricRegistry.name(className, "counter_chunks_allocated"),
+                Counter.class);
+        counterHeapChunksAllocated = registry.register(MetricRegistry.name(className,
+                "counter_heap_chunks_allocated"), Counter.class);
+        counterChunksReused = registry.register(MetricRegistry.name(className, "counter_chunks_reused"),
+                Counter.class);
+        histoChunksPerBuffer = registry.register(MetricRegistry.name(className, "histo_chunks_per_buffer"),
+                Histogram.class);
+    }
+
+    private final int chunkSize;
+    private final List<ChannelBuffer> chunks = new ArrayList<>();
+    private ChannelBuffer current;
+    // all chunks as one buffer, built on demand
+    private ChannelBuffer channelBuffer;
+
+    /**
+     * @param chunkSize
+     *            size of the chunks after the first one, only chunks of {@link #DEFAULT_CHUNK_SIZE} are direct and
+     *            pooled
+     */
+    public PyDynamicBuffer(int initSize, int chunkSize) {
+        Validate.isTrue(initSize <= chunkSize);
+        this.chunkSize = chunkSize;
+        current = ChannelBuffers.buffer(((initSize >> 10) << 10));
+        chunks.add(current);
     }
 
     public PyDynamicBuffer(int initSize) {
-        this(initSize, MAX_THRESHOLD_SIZE_EXPONENTIAL_INCREASE);
+        this(initSize, DEFAULT_CHUNK_SIZE);
     }
 
     public PyDynamicBuffer() {
-        this(DEFAULT_INIT_BUFFER_SIZE, MAX_THRESHOLD_SIZE_EXPONENTIAL_INCREASE);
+        this(DEFAULT_INIT_BUFFER_SIZE, DEFAULT_CHUNK_SIZE);
     }
 
+    /**
+     * Only supported before anything is written beyond the first chunk, e.g. to reserve space for a frame length.
+     */
     public void setWriteIndex(int writeIndex) {
-        channelBuffer.writerIndex(writeIndex);
+        Validate.isTrue(chunks.size() == 1 && writeIndex <= current.capacity());
+        current.writerIndex(writeIndex);
+        channelBuffer = null;
     }
 
     public void write(byte[] src, int offset, int length) {
-        int canWriteBytes = channelBuffer.writableBytes();
-        if (canWriteBytes < length) {
-            // Keep the current write index, after the buffer is expanded, the write index should be recoveried.
-            int writeIndex = channelBuffer.writerIndex();
-
-            // For expanding the buffer, the write index should be moved to the capacity.
-            channelBuffer.writerIndex(channelBuffer.capacity());
-
-            // calculate the expend size of channelBuffer buffer
-            int originSize = writeIndex;
-            int increaseSize = channelBuffer.capacity();
-            while ((increaseSize - originSize) < length) {
-                if (increaseSize >= maxThresholdSizeOfExponentialIncrease) {
-                    increaseSize += maxThresholdSizeOfExponentialIncrease;
-                } else {
-                    increaseSize <<= 1;
-                }
+        channelBuffer = null;
+        while (length > 0) {
+            if (!current.writable()) {
+                current = newChunk();
+                chunks.add(current);
             }
-
-            ChannelBuffer expandBuffer = ChannelBuffers.buffer(increaseSize - originSize);
-            expandBuffer.writerIndex(expandBuffer.capacity());
-            channelBuffer = ChannelBuffers.wrappedBuffer(channelBuffer, expandBuffer);
-            channelBuffer.writerIndex(writeIndex);
+            int written = Math.min(current.writableBytes(), length);
+            current.writeBytes(src, offset, written);
+            offset += written;
+            length -= written;
         }
-        channelBuffer.writeBytes(src, offset, length);
     }
 
     public ChannelBuffer getBuffer() {
+        if (channelBuffer == null) {
+            if (chunks.size() == 1) {
+                channelBuffer = current;
+            } else {
+                channelBuffer = ChannelBuffers.wrappedBuffer(true, chunks.toArray(new ChannelBuffer[chunks.size()]));
+            }
+        }
         return channelBuffer;
     }
 
+    /**
+     * Return the chunks to the pool, the buffer must not be used after that.
+     */
+    public void release() {
+        histoChunksPerBuffer.updateHistogram(chunks.size());
+        // the first chunk is not pooled
+        for (int i = 1; i < chunks.size(); i++) {
+            ChannelBuffer chunk = chunks.get(i);
+            if (chunk.capacity() != DEFAULT_CHUNK_SIZE || !chunk.isDirect()) {
+                continue;
+            }
+            if (pooledChunkCount.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                chunk.clear();
+                chunkPool.offer(chunk);
+            } else {
+                pooledChunkCount.decrementAndGet();
+            }
+        }
+        chunks.clear();
+        current = null;
+        channelBuffer = null;
+    }
+
+    private ChannelBuffer newChunk() {
+        if (chunkSize == DEFAULT_CHUNK_SIZE) {
+            ChannelBuffer chunk = chunkPool.poll();
+            if (chunk != null) {
+                pooledChunkCount.decrementAndGet();
+                counterChunksReused.incCounter();
+                return chunk;
+            }
+
+            if (directChunkCount.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                counterChunksAllocated.incCounter();
+                chunk = ChannelBuffers.wrappedBuffer(ByteBuffer.allocateDirect(chunkSize));
+                chunk.clear();
+                return chunk;
+            }
+            directChunkCount.decrementAndGet();
+        }
+        counterHeapChunksAllocated.incCounter();
+        return ChannelBuffers.buffer(chunkSize);
+    }
+
     @Override
     public String toString() {
-        return "PyDynamicBuffer [channelBuffer=" + channelBuffer + "]";
+        return "PyDynamicBuffer [chunks=" + chunks.size() + ", channelBuffer=" + getBuffer() + "]";
     }
 }
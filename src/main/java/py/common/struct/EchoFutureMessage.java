@@ -5,6 +5,7 @@ import io.netty.util.Timeout;
 
 import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -34,7 +35,23 @@ public class EchoFutureMessage {
 	}
 	
 	public void clearTimeout(){
-		receiveTimeout.cancel();
+		if (receiveTimeout != null) {
+			receiveTimeout.cancel();
+		}
+	}
+
+	/**
+	 * Called if no response arrives in time, waiters get a {@link TimeoutException}.
+	 */
+	public void onTimeout() {
+		this.response.setException(new TimeoutException("no response received in time"));
+	}
+
+	/**
+	 * Called if the exchange is given up before a response arrives, waiters get the given cause.
+	 */
+	public void onFailure(Throwable cause) {
+		this.response.setException(cause);
 	}
 	
 	public boolean isArrived(){
@@ -14,6 +14,10 @@ public class EndPoint implements Serializable {
     private static final long serialVersionUID = 1L;
     private int port;
     private String hostName;
+    // cached hash code, 0 if not computed yet
+    private transient int hash;
+    // canonical instances from EndPointParser.intern are shared and can't be changed
+    private transient boolean frozen;
 
     public EndPoint() {
     }
@@ -29,15 +33,14 @@ public class EndPoint implements Serializable {
         this.port = port;
     }
 
+    /**
+     * Parse the end point by {@link EndPointParser#parse(String)}, the new instance can be changed.
+     */
     @JsonIgnore
     public EndPoint(@JsonProperty("hostName") String endPointFormatString) throws InvalidFormatException {
-        String[] tokens = endPointFormatString.split(":");
-        if (tokens == null || tokens.length != 2) {
-            throw new InvalidFormatException("Can't parse as an endpoint: " + endPointFormatString);
-        } else {
-            this.hostName = tokens[0];
-            this.port = Integer.valueOf(tokens[1]).intValue();
-        }
+        EndPoint parsed = fromString(endPointFormatString);
+        this.hostName = parsed.hostName;
+        this.port = parsed.port;
     }
 
     @Override
@@ -45,14 +48,15 @@ public class EndPoint implements Serializable {
         return new EndPoint(hostName, port);
     }
     
+    /**
+     * @return the canonical end point of {@link EndPointParser#parse(String)}, which can't be changed
+     */
     public static EndPoint fromString(String connection) throws InvalidFormatException {
-        if (connection != null) {
-            String[] parts = connection.split(":");
-            if (parts.length == 2) {
-                return new EndPoint(parts[0], Integer.parseInt(parts[1]));
-            }
+        try {
+            return EndPointParser.parse(connection);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidFormatException("Can't parse to an endpoint: " + connection, e);
         }
-        throw new InvalidFormatException("Can't parse to an endpoint: " + connection);
     }
 
     public int getPort() {
@@ -60,7 +64,9 @@ public class EndPoint implements Serializable {
     }
 
     public void setPort(int port) {
+        checkNotFrozen();
         this.port = port;
+        this.hash = 0;
     }
 
     public String getHostName() {
@@ -68,7 +74,24 @@ public class EndPoint implements Serializable {
     }
 
     public void setHostName(String hostName) {
+        checkNotFrozen();
         this.hostName = hostName;
+        this.hash = 0;
+    }
+
+    EndPoint freeze() {
+        frozen = true;
+        return this;
+    }
+
+    boolean isInterned() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("can't change an interned end point " + this);
+        }
     }
 
     @JsonIgnore
@@ -93,10 +116,14 @@ public class EndPoint implements Serializable {
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((hostName == null) ? 0 : hostName.hashCode());
-        result = prime * result + port;
+        int result = hash;
+        if (result == 0) {
+            final int prime = 31;
+            result = 1;
+            result = prime * result + ((hostName == null) ? 0 : hostName.hashCode());
+            result = prime * result + port;
+            hash = result;
+        }
         return result;
     }
 
@@ -109,13 +136,13 @@ public class EndPoint implements Serializable {
         if (getClass() != obj.getClass())
             return false;
         EndPoint other = (EndPoint) obj;
+        if (port != other.port)
+            return false;
         if (hostName == null) {
             if (other.hostName != null)
                 return false;
         } else if (!hostName.equals(other.hostName))
             return false;
-        if (port != other.port)
-            return false;
         return true;
     }
 
@@ -15,6 +15,7 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -71,7 +72,17 @@ public class EndPointParser {
     public static final int MAX_PORT = 65535;
     public static final int IPV4_MAX_MASK_LEN = 32;
     public static final String IPV4_PATTERN = "(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})";
-    private static final Pattern addressPattern = Pattern.compile(IPV4_PATTERN);
+    // max number of interned end points, end points beyond it are still parsed but not interned
+    public static final int MAX_INTERNED = 8192;
+    // how long the addresses of local interfaces are trusted before checking them for changes
+    public static final long LOCAL_ADDRESSES_CHECK_INTERVAL_MS = 30 * 1000;
+
+    private static final ConcurrentHashMap<EndPoint, EndPoint> internedEndPoints = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, EndPoint> parsedEndPoints = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, InetAddress> lanAddresses = new ConcurrentHashMap<>();
+    private static volatile Set<String> localAddresses;
+    private static volatile long localAddressesCheckTime;
     
 //    public static final Set<String> SECONDARY_IPS;
     public static final Set<String> MAIN_IPS;
@@ -81,45 +92,152 @@ public class EndPointParser {
         MAIN_IPS = mainIPs();
     }
 
+    /**
+     * Parse an end point in format 'hostname:port', 'ipv4:port', '[ipv6]:port' or 'ipv6:port', and return its
+     * canonical instance, so that end points of the same string are the same object.
+     * <p>
+     * The string is scanned by hand rather than split or matched by regex, and parsed only the first time.
+     * 
+     * @param endpoint
+     * @return the canonical end point, which can't be changed
+     */
+    public static EndPoint parse(String endpoint) {
+        Validate.isTrue(endpoint != null && !endpoint.isEmpty(), "Endpoint to be parsed cannot be empty");
+        EndPoint parsed = parsedEndPoints.get(endpoint);
+        if (parsed != null) {
+            return parsed;
+        }
+
+        int hostStart = 0;
+        int hostEnd;
+        int colon;
+        if (endpoint.charAt(0) == '[') {
+            hostStart = 1;
+            hostEnd = endpoint.indexOf(']');
+            Validate.isTrue(hostEnd > 0, "Unclosed '[' in endpoint %s", endpoint);
+            colon = hostEnd + 1;
+            Validate.isTrue(colon < endpoint.length() && endpoint.charAt(colon) == ':',
+                    "Format of endpoint must be '[ipv6]:port': %s", endpoint);
+        } else {
+            colon = endpoint.lastIndexOf(':');
+            Validate.isTrue(colon > 0, "Format of endpoint must be 'hostname:port': %s", endpoint);
+            hostEnd = colon;
+        }
+
+        int port = parsePort(endpoint, colon + 1);
+        parsed = intern(endpoint.substring(hostStart, hostEnd), port);
+        if (parsed.isInterned() && parsedEndPoints.size() < MAX_INTERNED) {
+            parsedEndPoints.putIfAbsent(endpoint, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the canonical instance of the given end point, which can't be changed
+     */
+    public static EndPoint intern(EndPoint endPoint) {
+        EndPoint interned = internedEndPoints.get(endPoint);
+        if (interned != null) {
+            return interned;
+        }
+        return intern(endPoint.getHostName(), endPoint.getPort());
+    }
+
+    /**
+     * @return the canonical end point of the given host and port, which can't be changed. An end point without host
+     *         name is not interned, as its host name is left to be filled later.
+     */
+    public static EndPoint intern(String hostName, int port) {
+        EndPoint endPoint = new EndPoint(hostName, port);
+        if (hostName == null || hostName.isEmpty()) {
+            return endPoint;
+        }
+        EndPoint interned = internedEndPoints.get(endPoint);
+        if (interned != null) {
+            return interned;
+        }
+        if (internedEndPoints.size() >= MAX_INTERNED) {
+            logger.debug("too many end points interned, not interning {}", endPoint);
+            return endPoint;
+        }
+        endPoint.freeze();
+        interned = internedEndPoints.putIfAbsent(endPoint, endPoint);
+        return interned == null ? endPoint : interned;
+    }
+
+    private static int parsePort(String endpoint, int from) {
+        int length = endpoint.length();
+        Validate.isTrue(from < length && length - from <= 5, "Invalid port in endpoint %s", endpoint);
+        int port = 0;
+        for (int i = from; i < length; i++) {
+            char c = endpoint.charAt(i);
+            Validate.isTrue('0' <= c && c <= '9', "Invalid port in endpoint %s", endpoint);
+            port = port * 10 + (c - '0');
+        }
+        validatePort(port);
+        return port;
+    }
+
+    /**
+     * Parse an IPV4 address in dotted decimal notation by hand.
+     * 
+     * @return the address as an unsigned integer, or -1 if the string is not an IPV4 address
+     */
+    static long parseIPV4(String ipInStr) {
+        long ip = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = 0; i < ipInStr.length(); i++) {
+            char c = ipInStr.charAt(i);
+            if ('0' <= c && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && value >= 0 && octets < 3) {
+                ip = (ip << 8) | value;
+                octets++;
+                value = -1;
+            } else {
+                return -1;
+            }
+        }
+        if (value < 0 || octets != 3) {
+            return -1;
+        }
+        return (ip << 8) | value;
+    }
+
     /**
      * 
      * @param port
      * @param localIp
-     * @return
+     * @return the canonical end point, which can't be changed
      */
     public static EndPoint parseLocalEndPoint(int port, String localIp) {
         validatePort(port);
-        return new EndPoint(localIp, port);
+        return intern(localIp, port);
     }
 
     /**
+     * Parse an end point in format 'port', ':port' or any format of {@link #parse(String)}, the local IP being the
+     * host of the first two.
      * 
      * @param endpoint
      * @param localIp
-     * @return
+     * @return the canonical end point, which can't be changed
      */
     public static EndPoint parseLocalEndPoint(String endpoint, String localIp) {
-        Validate.notNull(endpoint, "Endpoint to be parsed cannot be null");
-        Validate.notEmpty(endpoint, "Endpoint to be parsed cannot be empty");
-
-        String[] parts = endpoint.split(":");
-        Validate.isTrue(0 < parts.length && parts.length < 3, "Format of endpoint must be 'port' or 'hostname:port'");
+        Validate.isTrue(endpoint != null && !endpoint.isEmpty(), "Endpoint to be parsed cannot be empty");
 
         logger.debug("Parse endpoint {}", endpoint);
-        if (parts.length == 1) {
-            int port = Integer.parseInt(parts[0]);
-
-            return parseLocalEndPoint(port, localIp);
+        int colon = endpoint.indexOf(':');
+        if (colon < 0) {
+            return parseLocalEndPoint(parsePort(endpoint, 0), localIp);
+        } else if (colon == 0) {
+            return parseLocalEndPoint(parsePort(endpoint, 1), localIp);
         } else {
-            String hostName = parts[0];
-            int port = Integer.parseInt(parts[1]);
-
-            if (hostName.isEmpty()) {
-                return parseLocalEndPoint(port, localIp);
-            } else {
-                validatePort(port);
-                return new EndPoint(hostName, port);
-            }
+            return parse(endpoint);
         }
     }
 
@@ -132,32 +250,21 @@ public class EndPointParser {
      * function.
      * 
      * @param endpoint
+     *            in format 'port', ':port' or any format of {@link #parse(String)}
      * @param subnet
-     * @return
+     * @return the canonical end point, which can't be changed
      */
     public static EndPoint parseInSubnet(String endpoint, String subnet) {
-        Validate.notNull(endpoint, "Endpoint to be parsed cannot be null");
-        Validate.notEmpty(endpoint, "Endpoint to be parsed cannot be empty");
-
-        String[] parts = endpoint.split(":");
-        Validate.isTrue(0 < parts.length && parts.length < 3, "Format of endpoint must be 'port' or 'hostname:port'");
+        Validate.isTrue(endpoint != null && !endpoint.isEmpty(), "Endpoint to be parsed cannot be empty");
 
         logger.debug("Parse endpoint {}", endpoint);
-        if (parts.length == 1) {
-            int port = Integer.parseInt(parts[0]);
-
-            return parseInSubnet(port, subnet);
+        int colon = endpoint.indexOf(':');
+        if (colon < 0) {
+            return parseInSubnet(parsePort(endpoint, 0), subnet);
+        } else if (colon == 0) {
+            return parseInSubnet(parsePort(endpoint, 1), subnet);
         } else {
-            int port = Integer.parseInt(parts[1]);
-            validatePort(port);
-
-            try {
-                String hostName = (parts[0].isEmpty()) ? getLocalHostLANAddress(subnet).getHostAddress() : parts[0];
-                return new EndPoint(hostName, port);
-            } catch (UnknownHostException e) {
-                logger.error("Caught an exception", e);
-                throw new RuntimeException(e);
-            }
+            return parse(endpoint);
         }
     }
 
@@ -171,7 +278,7 @@ public class EndPointParser {
      * 
      * @param port
      * @param subnet
-     * @return
+     * @return the canonical end point, which can't be changed
      */
     public static EndPoint parseInSubnet(int port, String subnet) {
         validatePort(port);
@@ -180,7 +287,7 @@ public class EndPointParser {
             logger.debug("Current port: {}, subnet:{}", port, subnet);
             String hostName = getLocalHostLANAddress(subnet).getHostAddress();
 
-            return new EndPoint(hostName, port);
+            return intern(hostName, port);
         } catch (UnknownHostException e) {
             logger.error("Caught an exception", e);
             throw new RuntimeException(e);
@@ -349,10 +456,56 @@ public class EndPointParser {
      * @throws UnknownHostException
      */
     public static InetAddress getLocalHostLANAddress(String subnet) throws UnknownHostException {
+        checkLocalAddresses();
+        InetAddress address = lanAddresses.get(subnet);
+        if (address != null) {
+            return address;
+        }
+
         NetworkInterface networkIface;
 
         networkIface = getLocalHostLANInterface(subnet);
-        return getIPV4Addr(subnet, networkIface);
+        address = getIPV4Addr(subnet, networkIface);
+        lanAddresses.put(subnet, address);
+        return address;
+    }
+
+    /**
+     * Forget the LAN addresses found before if the addresses of local interfaces have changed. Interfaces are
+     * enumerated at most once per {@link #LOCAL_ADDRESSES_CHECK_INTERVAL_MS}.
+     */
+    private static void checkLocalAddresses() {
+        long now = System.currentTimeMillis();
+        if (localAddresses != null && now - localAddressesCheckTime < LOCAL_ADDRESSES_CHECK_INTERVAL_MS) {
+            return;
+        }
+
+        synchronized (lanAddresses) {
+            if (localAddresses != null && now - localAddressesCheckTime < LOCAL_ADDRESSES_CHECK_INTERVAL_MS) {
+                return;
+            }
+            Set<String> addresses = new HashSet<>();
+            try {
+                Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces();
+                while (ifaces != null && ifaces.hasMoreElements()) {
+                    Enumeration<InetAddress> addrEnumeration = ifaces.nextElement().getInetAddresses();
+                    while (addrEnumeration.hasMoreElements()) {
+                        addresses.add(addrEnumeration.nextElement().getHostAddress());
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("Unable to enumerate local network interfaces", e);
+            }
+
+            if (!addresses.equals(localAddresses)) {
+                if (localAddresses != null) {
+                    logger.warn("Addresses of local interfaces changed from {} to {}", localAddresses, addresses);
+                }
+                lanAddresses.clear();
+                localAddresses = addresses;
+            }
+            localAddressesCheckTime = now;
+        }
     }
 
     /**
@@ -421,16 +574,11 @@ public class EndPointParser {
     public static int getIp(String ipInStr) throws UnknownHostException {
         ipInStr = ipInStr.trim();
 
-        validateIP(ipInStr);
-
-        InetAddress inetAddr = InetAddress.getByName(ipInStr);
-        ByteBuffer inetAddrBuffer = ByteBuffer.wrap(inetAddr.getAddress());
-        inetAddrBuffer.clear();
-
-        // return ((inetAddrBytes[0] & 0xFF) << 24) | ((inetAddrBytes[1] & 0xFF) << 16) | ((inetAddrBytes[2] & 0xFF) <<
-        // 8)
-        // | ((inetAddrBytes[3] & 0xFF) << 0);
-        return inetAddrBuffer.getInt();
+        long ip = parseIPV4(ipInStr);
+        if (ip < 0) {
+            throw new UnknownHostException("Unknow IP " + ipInStr);
+        }
+        return (int) ip;
     }
 
     /**
@@ -461,8 +609,7 @@ public class EndPointParser {
     }
 
     private static void validateIP(String ipInStr) throws UnknownHostException {
-        Matcher matcher = addressPattern.matcher(ipInStr);
-        if (!matcher.matches()) {
+        if (parseIPV4(ipInStr) < 0) {
             throw new UnknownHostException("Unknow IP " + ipInStr);
         }
     }
@@ -0,0 +1,266 @@
+package py.common.tlsf.bytebuffer.manager;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import py.common.tlsf.OutOfSpaceException;
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+import py.metrics.PYNullMetric;
+
+/**
+ * A {@link TLSFByteBufferManager} for concurrent use.
+ * <p>
+ * Released buffers of the common aligned sizes (between {@link #MIN_CACHED_SIZE} and {@link #MAX_CACHED_SIZE}) are
+ * kept in per-size lock-free free lists and handed out again without touching the synchronized TLSF allocator. Odd
+ * sizes and free list overflow go to TLSF as before. When TLSF runs out of space, the free lists are drained back to
+ * it before giving up.
+ * <p>
+ * Blocked allocators are served strictly in arrival order: only the oldest waiter tries to allocate, and new
+ * allocators queue behind existing waiters instead of barging in.
+ */
+public class ConcurrentTLSFByteBufferManager extends TLSFByteBufferManager {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentTLSFByteBufferManager.class);
+
+    public static final int MIN_CACHED_SIZE = 512;
+    public static final int MAX_CACHED_SIZE = 128 * 1024;
+
+    private final Queue<ByteBuffer>[] freeLists;
+    private final AtomicInteger[] freeListSizes;
+    private final int minCachedIndex;
+    private final int maxCachedBytesPerSize;
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    private PYMetric meterCacheHit = new PYNullMetric();
+    private PYMetric meterCacheMiss = new PYNullMetric();
+    private PYMetric timerBlockingWait = new PYNullMetric();
+    private PYMetric counterWaiters = new PYNullMetric();
+    private PYMetric meterAllocateTimeout = new PYNullMetric();
+
+    /**
+     * @param maxCachedBytesPerSize
+     *            the most bytes kept in the free list of each size
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentTLSFByteBufferManager(int sizeAlignment, int size, boolean addressAligned,
+            int maxCachedBytesPerSize) {
+        super(sizeAlignment, size, addressAligned);
+        Validate.isTrue(sizeAlignment > 0 && sizeAlignment <= MAX_CACHED_SIZE);
+        this.maxCachedBytesPerSize = maxCachedBytesPerSize;
+        this.minCachedIndex = Math.max(1, MIN_CACHED_SIZE / sizeAlignment);
+        int count = MAX_CACHED_SIZE / sizeAlignment + 1;
+        this.freeLists = new Queue[count];
+        this.freeListSizes = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<>();
+            freeListSizes[i] = new AtomicInteger(0);
+        }
+    }
+
+    @Override
+    public void initAllocateAlignedBufferMetric(int size) {
+        super.initAllocateAlignedBufferMetric(size);
+        PYMetricRegistry metricRegistry = PYMetricRegistry.getMetricRegistry();
+        String className = ConcurrentTLSFByteBufferManager.class.getSimpleName();
+        meterCacheHit = metricRegistry.register(MetricRegistry.name(className, "meter_cache_hit"), Meter.class);
+        meterCacheMiss = metricRegistry.register(MetricRegistry.name(className, "meter_cache_miss"), Meter.class);
+        timerBlockingWait = metricRegistry.register(MetricRegistry.name(className, "timer_blocking_wait"),
+                Timer.class);
+        counterWaiters = metricRegistry.register(MetricRegistry.name(className, "counter_waiters"), Counter.class);
+        meterAllocateTimeout = metricRegistry.register(MetricRegistry.name(className, "meter_allocate_timeout"),
+                Meter.class);
+    }
+
+    /**
+     * @return index of the free list for buffers of the given size, or -1 if the size is not cached
+     */
+    private int freeListIndex(int size) {
+        if (size % sizeAlignment != 0) {
+            return -1;
+        }
+        int index = size / sizeAlignment;
+        return (index >= minCachedIndex && index < freeLists.length) ? index : -1;
+    }
+
+    private int alignUp(int size) {
+        return (size + sizeAlignment - 1) / sizeAlignment * sizeAlignment;
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) throws OutOfSpaceException, IllegalArgumentException {
+        if (size <= 0) {
+            logger.error("Illegal size {}! Size should be positive.", size);
+            throw new IllegalArgumentException("Invaid size: " + size);
+        }
+
+        int index = freeListIndex(alignUp(size));
+        if (index > 0) {
+            ByteBuffer cached = freeLists[index].poll();
+            if (cached != null) {
+                freeListSizes[index].decrementAndGet();
+                meterCacheHit.mark();
+                cached.clear();
+                return cached;
+            }
+            meterCacheMiss.mark();
+        }
+
+        try {
+            return super.allocate(size);
+        } catch (OutOfSpaceException e) {
+            if (drainFreeLists() == 0) {
+                throw e;
+            }
+            return super.allocate(size);
+        }
+    }
+
+    @Override
+    public List<ByteBuffer> tryAllocate(int size) throws OutOfSpaceException, IllegalArgumentException {
+        try {
+            return super.tryAllocate(size);
+        } catch (OutOfSpaceException e) {
+            if (drainFreeLists() == 0) {
+                throw e;
+            }
+            return super.tryAllocate(size);
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) throws IllegalArgumentException {
+        int index = freeListIndex(buffer.capacity());
+        if (index > 0 && (freeListSizes[index].get() + 1) * buffer.capacity() <= maxCachedBytesPerSize) {
+            // make sure nobody hands us a foreign buffer
+            addressOf(buffer);
+            onReleased(buffer.capacity());
+            freeListSizes[index].incrementAndGet();
+            freeLists[index].offer(buffer);
+            // allocators blocked in the methods of the base class only wait for this
+            notifyReleasingEventListeners();
+        } else {
+            super.release(buffer);
+        }
+        wakeUpFirstWaiter();
+    }
+
+    /**
+     * Return all buffers in free lists to TLSF, so that they can be merged into larger blocks.
+     *
+     * @return the number of buffers returned
+     */
+    public int drainFreeLists() {
+        int drained = 0;
+        for (int i = minCachedIndex; i < freeLists.length; i++) {
+            ByteBuffer cached;
+            while ((cached = freeLists[i].poll()) != null) {
+                freeListSizes[i].decrementAndGet();
+                // already counted as released when it was cached
+                releaseToSpace(cached);
+                drained++;
+            }
+        }
+        if (drained > 0) {
+            logger.debug("drained {} cached buffers back to TLSF", drained);
+        }
+        return drained;
+    }
+
+    /**
+     * Allocate a buffer, waiting in arrival order until space is available.
+     */
+    @Override
+    public ByteBuffer blockingAllocate(int size) throws IllegalArgumentException {
+        return blockingAllocate(size, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Allocate a buffer, waiting in arrival order for at most the given time.
+     *
+     * @return the buffer, or null if no space became available in time
+     */
+    public ByteBuffer blockingAllocate(int size, long timeout, TimeUnit unit) throws IllegalArgumentException {
+        if (waiters.isEmpty()) {
+            try {
+                return allocated(allocate(size));
+            } catch (OutOfSpaceException e) {
+                logger.debug("no space for {} bytes, start waiting", size);
+            }
+        }
+
+        Waiter waiter = new Waiter(Thread.currentThread());
+        waiters.offer(waiter);
+        counterWaiters.incCounter();
+        long startTime = System.nanoTime();
+        long waitNanos = unit.toNanos(timeout);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                if (waiters.peek() == waiter) {
+                    try {
+                        return allocated(allocate(size));
+                    } catch (OutOfSpaceException e) {
+                        logger.trace("still no space for {} bytes", size);
+                    }
+                }
+
+                long remaining = waitNanos - (System.nanoTime() - startTime);
+                if (remaining <= 0) {
+                    meterAllocateTimeout.mark();
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                // park returns at once while the flag is set, so clear it to keep waiting and restore it at the end
+                interrupted |= Thread.interrupted();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            waiters.remove(waiter);
+            counterWaiters.decCounter();
+            timerBlockingWait.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            // the next waiter may fit into what is left
+            wakeUpFirstWaiter();
+        }
+    }
+
+    private ByteBuffer allocated(ByteBuffer buffer) {
+        onAllocated(buffer.capacity());
+        return buffer;
+    }
+
+    private void wakeUpFirstWaiter() {
+        Waiter first = waiters.peek();
+        if (first != null) {
+            LockSupport.unpark(first.thread);
+        }
+    }
+
+    public int getWaiterCount() {
+        return waiters.size();
+    }
+
+    private static class Waiter {
+        private final Thread thread;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
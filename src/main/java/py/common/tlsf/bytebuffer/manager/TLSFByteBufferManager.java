@@ -40,6 +40,8 @@ public class TLSFByteBufferManager {
 
     private final long basePhysicalAddr;
 
+    protected final int sizeAlignment;
+
     private BlockingQueue<Semaphore> releasingEventListeners = new LinkedBlockingQueue<>();
 
     private PYMetric meterAllocateAlignedBuffer = new PYNullMetric();
@@ -64,6 +66,7 @@ public class TLSFByteBufferManager {
         this.buffer = (addressAligned) ? DirectAlignedBufferAllocator.allocateAlignedByteBuffer(size)
                 : ByteBuffer.allocateDirect(size);
         this.basePhysicalAddr = DirectAlignedBufferAllocator.getAddress(buffer);
+        this.sizeAlignment = sizeAlignment;
         this.baseTLSFSpaceManager = new BaseTLSFSpaceManager(new SimpleTLSFMetadata(), new ByteBufferDivisionMetadata(),
                 sizeAlignment, 0l, size);
     }
@@ -129,7 +132,9 @@ public class TLSFByteBufferManager {
             while (true) {
                 synchronized (this) {
                     try {
-                        return allocate(size);
+                        ByteBuffer allocated = allocate(size);
+                        onAllocated(allocated.capacity());
+                        return allocated;
                     } catch (OutOfSpaceException e) {
                         if (semaphore == null) {
                             semaphore = new Semaphore(0);
@@ -143,8 +148,6 @@ public class TLSFByteBufferManager {
         } finally {
             meterAllocateAlignedBuffer.mark();
             timeAllocateBuffer.stop();
-            usedAllocateAlignedBuffer.incCounter(size);
-            restAllocateAlignedBuffer.decCounter(size);
         }
     }
 
@@ -157,6 +160,45 @@ public class TLSFByteBufferManager {
      *             if the buffer was not allocated from the manager before
      */
     public synchronized void release(ByteBuffer buffer) throws IllegalArgumentException {
+        onReleased(buffer.capacity());
+        releaseToSpace(buffer);
+    }
+
+    /**
+     * Return the buffer to the TLSF space and wake up the blocked allocators, without counting it as released.
+     */
+    protected synchronized void releaseToSpace(ByteBuffer buffer) throws IllegalArgumentException {
+        baseTLSFSpaceManager.release(addressOf(buffer));
+        notifyReleasingEventListeners();
+    }
+
+    /**
+     * Wake up the allocators blocked in {@link #blockingAllocate(int)} and {@link #blockingTryAllocate(int)}.
+     */
+    protected void notifyReleasingEventListeners() {
+        Semaphore listener;
+        while ((listener = releasingEventListeners.poll()) != null) {
+            listener.release();
+        }
+    }
+
+    protected void onAllocated(long size) {
+        usedAllocateAlignedBuffer.incCounter(size);
+        restAllocateAlignedBuffer.decCounter(size);
+    }
+
+    protected void onReleased(long size) {
+        usedAllocateAlignedBuffer.decCounter(size);
+        restAllocateAlignedBuffer.incCounter(size);
+    }
+
+    /**
+     * Get the offset of the given buffer in the space of this manager.
+     *
+     * @throws IllegalArgumentException
+     *             if the buffer was not allocated from the manager before
+     */
+    protected int addressOf(ByteBuffer buffer) throws IllegalArgumentException {
         if (!buffer.isDirect()) {
             logger.error("Illegal byte buffer! Expect a direct byte buffer, but it was not!");
             throw new IllegalArgumentException();
@@ -169,17 +211,7 @@ public class TLSFByteBufferManager {
             logger.error("Illegal byte buffer! Address of it {} is out of bound.", address);
             throw new IllegalArgumentException("Invalid buffer");
         }
-
-        long size = buffer.capacity();
-        usedAllocateAlignedBuffer.decCounter(size);
-        restAllocateAlignedBuffer.incCounter(size);
-
-        baseTLSFSpaceManager.release(address);
-
-        while (releasingEventListeners.peek() != null) {
-            Semaphore listener = releasingEventListeners.poll();
-            listener.release();
-        }
+        return address;
     }
 
     /**
@@ -16,6 +16,15 @@ public class TLSFByteBufferManagerFactory {
     private static TLSFByteBufferManager tlsfByteBufferManager = null;
 
     public static void init(int sizeAlignment, int size, boolean addressAligned) {
+        init(sizeAlignment, size, addressAligned, 0);
+    }
+
+    /**
+     * @param maxCachedBytesPerSize
+     *            if positive, a {@link ConcurrentTLSFByteBufferManager} caching up to this many bytes of each common
+     *            size is created instead of a plain {@link TLSFByteBufferManager}
+     */
+    public static void init(int sizeAlignment, int size, boolean addressAligned, int maxCachedBytesPerSize) {
         if (size < 0) {
             throw new RuntimeException("size is too large, and it is overflowed");
         }
@@ -27,7 +36,9 @@ public class TLSFByteBufferManagerFactory {
             }
         }
 
-        tlsfByteBufferManager = new TLSFByteBufferManager(sizeAlignment, size, addressAligned);
+        tlsfByteBufferManager = (maxCachedBytesPerSize > 0)
+                ? new ConcurrentTLSFByteBufferManager(sizeAlignment, size, addressAligned, maxCachedBytesPerSize)
+                : new TLSFByteBufferManager(sizeAlignment, size, addressAligned);
         tlsfByteBufferManager.initAllocateAlignedBufferMetric(size);
     } 
     
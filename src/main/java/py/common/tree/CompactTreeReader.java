@@ -0,0 +1,135 @@
+package py.common.tree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.Validate;
+
+import py.common.ByteArrayParser;
+import py.common.Utils;
+
+/**
+ * A streaming reader of trees in the compact format written by {@link GenericTree#toCompactByteArray}.
+ * <p>
+ * The format starts with a magic and a version, followed by the nodes in pre-order. A node is its varint content
+ * length, its content, its varint number of children and the varint length of all its descendants, so a reader can
+ * skip a subtree without looking at it:
+ *
+ * <pre>
+ * CompactTreeReader reader = new CompactTreeReader(bytes);
+ * while (reader.next()) {
+ *     if (reader.depth() == 1 &amp;&amp; !wanted(reader.content(parser))) {
+ *         reader.skipChildren();
+ *     }
+ * }
+ * </pre>
+ *
+ * Contents are not parsed unless asked for.
+ */
+public class CompactTreeReader {
+    static final byte[] MAGIC = { 'P', 'T' };
+    static final byte VERSION = 1;
+
+    private final ByteBuffer buffer;
+    private boolean started = false;
+
+    private int depth = -1;
+    // siblings not read yet at each depth
+    private int[] remaining = new int[8];
+
+    private int contentOffset;
+    private int contentLength;
+    private int childCount;
+    private int childrenEnd;
+    private boolean childrenSkipped;
+
+    public CompactTreeReader(byte[] byteArray) {
+        this(ByteBuffer.wrap(byteArray));
+    }
+
+    public CompactTreeReader(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        for (byte b : MAGIC) {
+            Validate.isTrue(this.buffer.get() == b, "not a compact tree");
+        }
+        byte version = this.buffer.get();
+        Validate.isTrue(version == VERSION, "unsupported compact tree version %s", version);
+    }
+
+    /**
+     * Move to the next node in pre-order.
+     *
+     * @return false if there are no more nodes
+     */
+    public boolean next() {
+        if (!started) {
+            started = true;
+            depth = 0;
+            readNode();
+            return true;
+        }
+
+        if (childCount > 0 && !childrenSkipped) {
+            depth++;
+            if (depth == remaining.length) {
+                remaining = Arrays.copyOf(remaining, depth * 2);
+            }
+            remaining[depth] = childCount;
+        }
+        while (depth > 0 && remaining[depth] == 0) {
+            depth--;
+        }
+        if (depth == 0) {
+            return false;
+        }
+        remaining[depth]--;
+        readNode();
+        return true;
+    }
+
+    /**
+     * Skip all descendants of the current node, the next node will be its next sibling.
+     */
+    public void skipChildren() {
+        buffer.position(childrenEnd);
+        childrenSkipped = true;
+    }
+
+    /**
+     * @return depth of the current node, the root is at depth 0
+     */
+    public int depth() {
+        return depth;
+    }
+
+    public int childCount() {
+        return childCount;
+    }
+
+    /**
+     * @return the raw content of the current node, sharing the underlying bytes
+     */
+    public ByteBuffer content() {
+        ByteBuffer content = buffer.duplicate();
+        content.limit(contentOffset + contentLength).position(contentOffset);
+        return content.slice();
+    }
+
+    public <K> K content(ByteArrayParser<K> kParser) {
+        byte[] bytes = new byte[contentLength];
+        ByteBuffer content = buffer.duplicate();
+        content.position(contentOffset);
+        content.get(bytes);
+        return kParser.parse(bytes);
+    }
+
+    private void readNode() {
+        contentLength = Utils.readVarint(buffer);
+        contentOffset = buffer.position();
+        buffer.position(contentOffset + contentLength);
+        childCount = Utils.readVarint(buffer);
+        int childrenLength = Utils.readVarint(buffer);
+        childrenEnd = buffer.position() + childrenLength;
+        childrenSkipped = false;
+    }
+}
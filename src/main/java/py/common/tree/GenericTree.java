@@ -11,6 +11,7 @@ import py.common.Utils;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Stack;
@@ -188,6 +189,83 @@ public class GenericTree<K> {
         return byteArray.toByteArray();
     }
 
+    /**
+     * Serialize this tree in the compact format, which a {@link CompactTreeReader} can read node by node and skip
+     * subtrees of.
+     */
+    public byte[] toCompactByteArray(ToByteArray<K> toByteArray) {
+        List<CompactNode> nodes = new ArrayList<>();
+        int length = CompactTreeReader.MAGIC.length + 1 + measure(root, toByteArray, nodes);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(CompactTreeReader.MAGIC);
+        buffer.put(CompactTreeReader.VERSION);
+        for (CompactNode node : nodes) {
+            Utils.writeVarint(buffer, node.content.length);
+            buffer.put(node.content);
+            Utils.writeVarint(buffer, node.childCount);
+            Utils.writeVarint(buffer, node.childrenLength);
+        }
+        Validate.isTrue(!buffer.hasRemaining());
+        return buffer.array();
+    }
+
+    public static <K> GenericTree<K> parseFromCompact(byte[] byteArray, ByteArrayParser<K> kParser) {
+        CompactTreeReader reader = new CompactTreeReader(byteArray);
+        List<TreeNode<K>> path = new ArrayList<>();
+        while (reader.next()) {
+            K content = reader.content(kParser);
+            int depth = reader.depth();
+            while (path.size() > depth) {
+                path.remove(path.size() - 1);
+            }
+            TreeNode<K> node = depth == 0 ? new TreeNode<>(content) : path.get(depth - 1).addChild(content);
+            path.add(node);
+        }
+        Validate.isTrue(!path.isEmpty(), "empty compact tree");
+        return new GenericTree<>(path.get(0));
+    }
+
+    /**
+     * @return a serializer of trees in the compact format, e.g. for trees nested in other trees
+     */
+    public static <K> ToByteArray<GenericTree<K>> compactToByteArray(ToByteArray<K> toByteArray) {
+        return tree -> tree.toCompactByteArray(toByteArray);
+    }
+
+    public static <K> ByteArrayParser<GenericTree<K>> compactParser(ByteArrayParser<K> kParser) {
+        return byteArray -> parseFromCompact(byteArray, kParser);
+    }
+
+    /**
+     * Collect nodes in pre-order with their serialized contents.
+     *
+     * @return the serialized length of the given node and its descendants
+     */
+    private static <K> int measure(TreeNode<K> node, ToByteArray<K> toByteArray, List<CompactNode> nodes) {
+        CompactNode compactNode = new CompactNode(toByteArray.toByteArray(node.content));
+        nodes.add(compactNode);
+        if (!node.isLeafNode()) {
+            for (TreeNode<K> child : node.children) {
+                compactNode.childrenLength += measure(child, toByteArray, nodes);
+                compactNode.childCount++;
+            }
+        }
+        return Utils.varintSize(compactNode.content.length) + compactNode.content.length
+                + Utils.varintSize(compactNode.childCount) + Utils.varintSize(compactNode.childrenLength)
+                + compactNode.childrenLength;
+    }
+
+    private static class CompactNode {
+        private final byte[] content;
+        private int childCount;
+        private int childrenLength;
+
+        CompactNode(byte[] content) {
+            this.content = content;
+        }
+    }
+
     private void appendByteArrayFromTree(ByteArrayOutputStream byteArray, TreeNode<K> rootNode,
             ToByteArray<K> toByteArray) {
         byte[] rootValue = toByteArray.toByteArray(rootNode.content);
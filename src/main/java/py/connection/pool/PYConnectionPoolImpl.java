@@ -15,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import py.common.struct.EndPoint;
+import py.common.struct.EndPointParser;
 import py.connection.pool.udp.detection.NetworkIoHealthChecker;
 
 /**
@@ -338,7 +339,8 @@ public class PYConnectionPoolImpl implements PYConnectionPool, ReconnectionHandl
     public PYConnection get(EndPoint endPoint) {
         PYChannelPool channelPool = mapEndPointToChannelPool.get(endPoint);
         if (channelPool == null) {
-            // not associated pool exists
+            // not associated pool exists, key the pool by the canonical end point, whose lookups hit by identity
+            endPoint = EndPointParser.intern(endPoint);
             channelPool = new PYChannelPool(poolSizePerOneEndPoint, endPoint, this);
             PYChannelPool prevAssociatedChannelPool = mapEndPointToChannelPool.putIfAbsent(endPoint, channelPool);
 
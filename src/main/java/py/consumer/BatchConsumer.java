@@ -0,0 +1,17 @@
+package py.consumer;
+
+/**
+ * A consumer told when an element is the last one available for now, so that it can flush the work it has gathered,
+ * e.g. write a batch of pages with one call.
+ *
+ * @param <E> the type of element
+ */
+@FunctionalInterface
+public interface BatchConsumer<E> {
+
+    /**
+     * @param element    the element
+     * @param endOfBatch true if no more elements are available for now
+     */
+    void accept(E element, boolean endOfBatch);
+}
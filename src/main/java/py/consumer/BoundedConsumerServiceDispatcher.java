@@ -0,0 +1,396 @@
+package py.consumer;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <p>A dispatcher like {@link ConsumerServiceDispatcher}, but each type has a bounded queue, so a slow type can not
+ * pile up elements without limit.
+ *
+ * <p>When the queue of a type is full, a submit blocks, drops the oldest element of the type or is rejected, according
+ * to the {@link OverflowPolicy}. Each type is consumed in order by its own thread, which is started on the first
+ * element of the type and stopped after the type has been idle for a while.
+ *
+ * <p>Queue depth, queuing latency, drops and rejections are reported per type.
+ *
+ * @param <T> The element type, each element is supposed to belong to [one and only one] type
+ * @param <E> The element
+ */
+public class BoundedConsumerServiceDispatcher<T, E> implements ConsumerService<E> {
+    private static final Logger logger = LoggerFactory.getLogger(BoundedConsumerServiceDispatcher.class);
+
+    private static final String className = BoundedConsumerServiceDispatcher.class.getSimpleName();
+
+    /**
+     * How often a submitter blocked on a full queue checks whether the lane has been closed.
+     */
+    private static final long BLOCK_CHECK_INTERVAL_MS = 100;
+
+    /**
+     * What to do with an element whose type's queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until there is room in the queue.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued element of the type to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Reject the element, the submit returns false.
+         */
+        REJECT
+    }
+
+    private final ConcurrentHashMap<T, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final Function<E, ? extends T> typeIdentifier;
+
+    private final Function<? super T, ? extends Consumer<? super E>> consumerFactory;
+
+    private final int queueCapacity;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final long idleTimeoutMs;
+
+    private final String name;
+
+    private ScheduledExecutorService reaper;
+
+    private volatile boolean isStopped = true;
+
+    /**
+     * @param typeIdentifier  type identifier to figure out which type an element belongs to
+     * @param consumerFactory factory of the consumer of each type
+     * @param queueCapacity   max number of queued elements of each type
+     * @param overflowPolicy  what to do with an element whose type's queue is full
+     * @param idleTimeoutMs   how long a type without elements keeps its consumer thread
+     * @param name            the name, also used as the prefix of threads' names and metrics' names
+     */
+    public BoundedConsumerServiceDispatcher(Function<E, ? extends T> typeIdentifier,
+            Function<? super T, ? extends Consumer<? super E>> consumerFactory, int queueCapacity,
+            OverflowPolicy overflowPolicy, long idleTimeoutMs, String name) {
+        Validate.isTrue(queueCapacity > 0, "queue capacity must be positive: %s", queueCapacity);
+        Validate.isTrue(idleTimeoutMs > 0, "idle timeout must be positive: %s", idleTimeoutMs);
+        this.typeIdentifier = typeIdentifier;
+        this.consumerFactory = consumerFactory;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = Validate.notNull(overflowPolicy);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.name = name;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!isStopped) {
+            logger.warn("already started, no need to start again {}", name);
+            return;
+        }
+        isStopped = false;
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeoutMs / 2, 1);
+        reaper.scheduleAtFixedRate(this::reapIdleLanes, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop all consumers after they consumed the queued elements. Submitters blocked on a full queue give up, and an
+     * element is only reported as submitted if it will be consumed. After stopped, this dispatcher could be restarted.
+     */
+    @Override
+    public synchronized void stop() {
+        if (isStopped) {
+            logger.warn("already stopped or not started, no need to stop {}", name);
+            return;
+        }
+        isStopped = true;
+        reaper.shutdownNow();
+        for (T type : new ArrayList<>(lanes.keySet())) {
+            Lane lane = lanes.remove(type);
+            if (lane != null) {
+                lane.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean submit(E element) {
+        if (isStopped) {
+            logger.warn("consumer service has been stopped, refuse the request {}", element);
+            return false;
+        }
+
+        T type = typeIdentifier.apply(element);
+        if (type == null) {
+            return false;
+        }
+        Lane lane = enter(type);
+        if (lane == null) {
+            return false;
+        }
+        try {
+            return lane.offer(element);
+        } finally {
+            lane.exit();
+        }
+    }
+
+    /**
+     * Submit elements, which are grouped by type in one pass and offered to each type's queue together.
+     *
+     * @return success count
+     */
+    @Override
+    public int submit(Collection<E> elements) {
+        if (isStopped) {
+            logger.warn("consumer service has been stopped, refuse {} requests", elements.size());
+            return 0;
+        }
+
+        Map<T, List<E>> partitions = new HashMap<>();
+        for (E element : elements) {
+            T type = typeIdentifier.apply(element);
+            if (type != null) {
+                partitions.computeIfAbsent(type, t -> new ArrayList<>()).add(element);
+            }
+        }
+
+        int successCount = 0;
+        for (Map.Entry<T, List<E>> partition : partitions.entrySet()) {
+            Lane lane = enter(partition.getKey());
+            if (lane == null) {
+                continue;
+            }
+            try {
+                for (E element : partition.getValue()) {
+                    successCount += lane.offer(element) ? 1 : 0;
+                }
+            } finally {
+                lane.exit();
+            }
+        }
+        return successCount;
+    }
+
+    /**
+     * @return the number of queued elements of the given type
+     */
+    public int size(T type) {
+        Lane lane = lanes.get(type);
+        return lane == null ? 0 : lane.queue.size();
+    }
+
+    /**
+     * @return the number of types which have a consumer now
+     */
+    public int typeCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Get the lane of the type, creating it if absent, and keep it from being reaped until {@link Lane#exit()}.
+     */
+    private Lane enter(T type) {
+        while (!isStopped) {
+            Lane lane = lanes.computeIfAbsent(type, t -> {
+                Consumer<? super E> consumer = consumerFactory.apply(t);
+                return consumer == null ? null : new Lane(t, consumer);
+            });
+            if (lane == null) {
+                logger.warn("got a null consumer for type {}, the lanes {}", type, lanes.keySet());
+                return null;
+            }
+            if (lane.enter()) {
+                if (isStopped) {
+                    // the lane may have been created after stop() closed the others
+                    lane.exit();
+                    if (lanes.remove(type, lane)) {
+                        lane.close();
+                    }
+                    return null;
+                }
+                return lane;
+            }
+            // the lane was reaped just now, make sure it is out of the map before creating a new one
+            lanes.remove(type, lane);
+        }
+        return null;
+    }
+
+    private void reapIdleLanes() {
+        long now = System.currentTimeMillis();
+        for (Lane lane : lanes.values()) {
+            if (now - lane.lastSubmitTime >= idleTimeoutMs && lane.queue.isEmpty() && lane.reap()) {
+                lanes.remove(lane.type, lane);
+                lane.stopConsumer();
+                logger.info("reaped the idle consumer of type {} in {}", lane.type, name);
+            }
+        }
+    }
+
+    private static class Queued<E> {
+        private final E element;
+        private final long enqueueTimeNanos;
+
+        private Queued(E element) {
+            this.element = element;
+            this.enqueueTimeNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The queue and consumer of a type.
+     */
+    private class Lane {
+        private final T type;
+
+        private final BlockingQueue<Queued<E>> queue;
+
+        private final SingleThreadConsumerService<Queued<E>> consumerService;
+
+        /**
+         * Number of submitters in the lane, or -1 once reaped.
+         */
+        private final AtomicInteger users = new AtomicInteger();
+
+        private volatile boolean closed;
+
+        private volatile long lastSubmitTime = System.currentTimeMillis();
+
+        private final PYMetric histoQueueDepth;
+        private final PYMetric timerQueueLatency;
+        private final PYMetric counterDropped;
+        private final PYMetric counterRejected;
+
+        private Lane(T type, Consumer<? super E> consumer) {
+            this.type = type;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+            PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+            String prefix = MetricRegistry.name(className, name, String.valueOf(type));
+            histoQueueDepth = registry.register(MetricRegistry.name(prefix, "histo_queue_depth"), Histogram.class);
+            timerQueueLatency = registry.register(MetricRegistry.name(prefix, "timer_queue_latency"), Timer.class);
+            counterDropped = registry.register(MetricRegistry.name(prefix, "counter_dropped"), Counter.class);
+            counterRejected = registry.register(MetricRegistry.name(prefix, "counter_rejected"), Counter.class);
+
+            this.consumerService = new SingleThreadConsumerService<>(queued -> {
+                timerQueueLatency.update(System.nanoTime() - queued.enqueueTimeNanos, TimeUnit.NANOSECONDS);
+                consumer.accept(queued.element);
+            }, queue, name + "-" + type);
+            consumerService.start();
+        }
+
+        private boolean enter() {
+            while (true) {
+                int count = users.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (users.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void exit() {
+            lastSubmitTime = System.currentTimeMillis();
+            users.decrementAndGet();
+        }
+
+        private boolean reap() {
+            return users.compareAndSet(0, -1);
+        }
+
+        private boolean offer(E element) {
+            if (closed) {
+                counterRejected.incCounter();
+                return false;
+            }
+            Queued<E> queued = new Queued<>(element);
+            boolean offered = false;
+            switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    while (!closed && !(offered = queue.offer(queued, BLOCK_CHECK_INTERVAL_MS,
+                            TimeUnit.MILLISECONDS))) {
+                        logger.trace("queue of type {} is still full", type);
+                    }
+                    if (!offered) {
+                        counterRejected.incCounter();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    offered = false;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!(offered = queue.offer(queued))) {
+                    Queued<E> dropped = queue.poll();
+                    if (dropped != null) {
+                        counterDropped.incCounter();
+                        logger.debug("queue of type {} is full, dropped {}", type, dropped.element);
+                    }
+                }
+                break;
+            default:
+                offered = queue.offer(queued);
+                if (!offered) {
+                    counterRejected.incCounter();
+                }
+                break;
+            }
+            histoQueueDepth.updateHistogram(queue.size());
+            return offered;
+        }
+
+        /**
+         * Reject new elements, wait for the submitters in the lane to leave and stop the consumer after it consumed
+         * the queued elements.
+         */
+        private void close() {
+            closed = true;
+            while (!reap()) {
+                if (users.get() < 0) {
+                    // reaped by the reaper, which stops the consumer
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            stopConsumer();
+        }
+
+        private void stopConsumer() {
+            closed = true;
+            consumerService.stop();
+        }
+    }
+}
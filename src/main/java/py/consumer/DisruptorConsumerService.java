@@ -0,0 +1,203 @@
+package py.consumer;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.dsl.EventHandlerGroup;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.engine.disruptor.PYDisruptor;
+import py.engine.disruptor.PYEvent;
+import py.engine.disruptor.PYWaitStrategy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * <p>An implementation of {@link ConsumerService} on a {@link PYDisruptor} ring buffer instead of a
+ * {@link java.util.concurrent.BlockingQueue}.
+ *
+ * <p>Elements pass through the stages added by {@link #addStage}, e.g. decode, checksum and persist. Each consumer of
+ * a stage runs on its own thread and sees every element, and a stage only sees an element after all consumers of the
+ * previous stage have consumed it. Consumers are told the end of each batch, see {@link BatchConsumer}.
+ *
+ * <p>Elements are let go of once the last stage has consumed them. If the last stage has more than one consumer, this
+ * takes one more thread.
+ *
+ * <p>Stages are added before {@link #start()}. The ring buffer can not be restarted once stopped.
+ *
+ * @param <E> the type of element
+ */
+public class DisruptorConsumerService<E> implements ConsumerService<E> {
+    private static final Logger logger = LoggerFactory.getLogger(DisruptorConsumerService.class);
+
+    private final EventTranslatorOneArg<PYEvent, E> translator = (event, sequence, element) -> event.setData(element);
+
+    private final PYDisruptor disruptor;
+
+    private final String name;
+
+    private final List<List<BatchConsumer<? super E>>> stages = new ArrayList<>();
+
+    private volatile boolean isStopped = true;
+
+    private boolean started;
+
+    /**
+     * @param bufferSize   size of the ring buffer, must be a power of 2
+     * @param producerType {@link ProducerType#SINGLE} if only one thread submits elements
+     * @param waitStrategy how consumers wait for elements
+     * @param name         the name, also used as the prefix of threads' names
+     */
+    public DisruptorConsumerService(int bufferSize, ProducerType producerType, PYWaitStrategy waitStrategy,
+            String name) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.disruptor = new PYDisruptor(producerType, 0, waitStrategy.newWaitStrategy(), bufferSize,
+                r -> new Thread(r, name + "-" + threadIndex.getAndIncrement()));
+        this.name = name;
+    }
+
+    /**
+     * Create a service with a single stage of one consumer.
+     */
+    public DisruptorConsumerService(Consumer<? super E> consumer, int bufferSize, ProducerType producerType,
+            PYWaitStrategy waitStrategy, String name) {
+        this(bufferSize, producerType, waitStrategy, name);
+        addStage((element, endOfBatch) -> consumer.accept(element));
+    }
+
+    /**
+     * Add a stage after the stages added before.
+     *
+     * @param consumers consumers of the stage, which consume each element in parallel
+     * @return this
+     */
+    @SafeVarargs
+    public final synchronized DisruptorConsumerService<E> addStage(BatchConsumer<? super E>... consumers) {
+        Validate.isTrue(!started, "can not add a stage to a started consumer service %s", name);
+        Validate.isTrue(consumers.length > 0, "a stage needs a consumer");
+        List<BatchConsumer<? super E>> stage = new ArrayList<>();
+        for (BatchConsumer<? super E> consumer : consumers) {
+            stage.add(Validate.notNull(consumer));
+        }
+        stages.add(stage);
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void start() {
+        if (started) {
+            logger.warn("already started, can not start again {}", name);
+            return;
+        }
+        Validate.isTrue(!stages.isEmpty(), "no stage to consume elements of %s", name);
+
+        EventHandlerGroup<PYEvent> group = null;
+        for (int stageIndex = 0; stageIndex < stages.size(); stageIndex++) {
+            List<BatchConsumer<? super E>> stage = stages.get(stageIndex);
+            // the only consumer of the last stage lets go of the element itself once it has consumed it
+            boolean release = stageIndex == stages.size() - 1 && stage.size() == 1;
+            EventHandler<PYEvent>[] handlers = new EventHandler[stage.size()];
+            for (int i = 0; i < handlers.length; i++) {
+                BatchConsumer<? super E> consumer = stage.get(i);
+                handlers[i] = (event, sequence, endOfBatch) -> {
+                    consume(consumer, (E) event.getData(), endOfBatch);
+                    if (release) {
+                        event.setData(null);
+                    }
+                };
+            }
+            group = group == null ? disruptor.getDisruptor().handleEventsWith(handlers) : group.then(handlers);
+        }
+        if (stages.get(stages.size() - 1).size() > 1) {
+            // consumers of the last stage can not tell which of them is the last to consume an element, so one more
+            // handler, on a thread of its own, lets go of the element once all of them are done with it
+            group.then((EventHandler<PYEvent>) (event, sequence, endOfBatch) -> event.setData(null));
+        }
+
+        disruptor.start();
+        started = true;
+        isStopped = false;
+    }
+
+    /**
+     * Stop after all submitted elements have passed all stages.
+     */
+    @Override
+    public synchronized void stop() {
+        if (isStopped) {
+            logger.warn("already stopped or not started, no need to stop {}", name);
+            return;
+        }
+        isStopped = true;
+        disruptor.shutdown();
+    }
+
+    /**
+     * @return false if stopped or the ring buffer is full
+     */
+    @Override
+    public boolean submit(E element) {
+        if (isStopped) {
+            return false;
+        }
+        return ringBuffer().tryPublishEvent(translator, element);
+    }
+
+    /**
+     * Submit elements in chunks of at most the ring buffer size. A chunk is published together if there is room for
+     * all of it, or one by one otherwise.
+     *
+     * @return success count
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int submit(Collection<E> elements) {
+        if (isStopped || elements.isEmpty()) {
+            return 0;
+        }
+        E[] array = (E[]) elements.toArray();
+        RingBuffer<PYEvent> ringBuffer = ringBuffer();
+        // a batch larger than the ring buffer is rejected with an IllegalArgumentException
+        int chunkSize = ringBuffer.getBufferSize();
+        int successCount = 0;
+        for (int from = 0; from < array.length; from += chunkSize) {
+            int count = Math.min(chunkSize, array.length - from);
+            if (ringBuffer.tryPublishEvents(translator, from, count, array)) {
+                successCount += count;
+                continue;
+            }
+            for (int i = from; i < from + count; i++) {
+                successCount += submit(array[i]) ? 1 : 0;
+            }
+        }
+        return successCount;
+    }
+
+    /**
+     * @return the number of elements not yet through all stages
+     */
+    public long size() {
+        RingBuffer<PYEvent> ringBuffer = ringBuffer();
+        return ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+    }
+
+    private RingBuffer<PYEvent> ringBuffer() {
+        return disruptor.getDisruptor().getRingBuffer();
+    }
+
+    private void consume(BatchConsumer<? super E> consumer, E element, boolean endOfBatch) {
+        try {
+            consumer.accept(element, endOfBatch);
+        } catch (Throwable t) {
+            // an exception out of a handler would halt its thread and stall all stages behind it
+            logger.error("caught an throwable consuming {} in {}", element, name, t);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by zhongyuan on 17-6-8.
@@ -21,9 +22,20 @@ public class PYDisruptor {
     private int numProcessor;
 
     public PYDisruptor(ProducerType producerType, int numProcessor, WaitStrategy waitStrategy) {
+        this(producerType, numProcessor, waitStrategy, ringBufferSize, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param bufferSize
+     *            size of the ring buffer, must be a power of 2
+     * @param threadFactory
+     *            factory of the threads running the event handlers
+     */
+    public PYDisruptor(ProducerType producerType, int numProcessor, WaitStrategy waitStrategy, int bufferSize,
+            ThreadFactory threadFactory) {
+        Validate.isTrue(Integer.bitCount(bufferSize) == 1, "ring buffer size must be a power of 2: %s", bufferSize);
         PYEventFactory pyEventFactory = new PYEventFactory();
-        this.disruptor = new Disruptor(pyEventFactory, ringBufferSize, Executors.defaultThreadFactory(), producerType,
-                waitStrategy);
+        this.disruptor = new Disruptor(pyEventFactory, bufferSize, threadFactory, producerType, waitStrategy);
         this.numProcessor = numProcessor;
     }
 
@@ -0,0 +1,63 @@
+package py.engine.disruptor;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.PhasedBackoffWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How consumers of a {@link PYDisruptor} wait for events, by name so that it can be chosen in configuration.
+ * <p>
+ * Busy spin and yielding give the lowest latency but keep a core busy for each consumer, so they only fit deployments
+ * with spare cores. Phased backoff spins, then yields, then blocks. Blocking and sleeping leave the cores to others.
+ */
+public enum PYWaitStrategy {
+    BUSY_SPIN {
+        @Override
+        public WaitStrategy newWaitStrategy() {
+            return new BusySpinWaitStrategy();
+        }
+    },
+    YIELDING {
+        @Override
+        public WaitStrategy newWaitStrategy() {
+            return new YieldingWaitStrategy();
+        }
+    },
+    PHASED_BACKOFF {
+        @Override
+        public WaitStrategy newWaitStrategy() {
+            return PhasedBackoffWaitStrategy.withLock(10, 100, TimeUnit.MICROSECONDS);
+        }
+    },
+    SLEEPING {
+        @Override
+        public WaitStrategy newWaitStrategy() {
+            return new SleepingWaitStrategy();
+        }
+    },
+    BLOCKING {
+        @Override
+        public WaitStrategy newWaitStrategy() {
+            return new BlockingWaitStrategy();
+        }
+    };
+
+    public abstract WaitStrategy newWaitStrategy();
+
+    /**
+     * @return the strategy of the given name ignoring case, or {@link #BLOCKING} if there is none
+     */
+    public static PYWaitStrategy findByName(String name) {
+        for (PYWaitStrategy strategy : values()) {
+            if (strategy.name().equalsIgnoreCase(name)) {
+                return strategy;
+            }
+        }
+        return BLOCKING;
+    }
+}
@@ -46,6 +46,10 @@ public class UtilityInstanceFilters {
             }
             return true;
         }
+
+        public InstanceFilter[] getFilters() {
+            return filters.clone();
+        }
     }
 
     /**
@@ -113,6 +117,10 @@ public class UtilityInstanceFilters {
                 return false;
             return instance.getStatus() == status;
         }
+
+        public InstanceStatus getStatus() {
+            return status;
+        }
     }
 
     /**
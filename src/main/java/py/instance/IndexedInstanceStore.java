@@ -0,0 +1,504 @@
+package py.instance;
+
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import py.common.struct.EndPoint;
+import py.filter.InstanceFilter;
+import py.filter.UtilityInstanceFilters.AndFilter;
+import py.filter.UtilityInstanceFilters.InstanceStatusFilter;
+
+/**
+ * In memory instance store indexed by id, name, status, end point, host and group.
+ * <p>
+ * All instances and indexes are kept in an immutable {@link Snapshot}, which a save or delete replaces with a new one.
+ * It copies the id, end point and host indexes in full, and of the name, status and group indexes only the map of
+ * buckets and the buckets it changes, so an update costs O(n). Readers never lock and never copy: the sets returned are
+ * unmodifiable views of the current snapshot, and {@link #getSnapshot()} gives a consistent view of all of them with
+ * its version.
+ * <p>
+ * Each save or delete bumps the version and records an {@link InstanceChangeEvent}. Subscribers keep the version they
+ * have seen and fetch the events after it by {@link #getChangesSince(long)}, instead of polling {@link #getAll()}.
+ * <p>
+ * Instances are stored as given, like {@link DummyInstanceStore}. An instance changed after being saved must be saved
+ * again to be indexed by its new values. The indexes keep instances by identity, since a change alters their hash
+ * codes, but the sets returned compare instances by {@link Instance#equals} like any other set.
+ */
+public class IndexedInstanceStore implements InstanceStore {
+    private static final Logger logger = LoggerFactory.getLogger(IndexedInstanceStore.class);
+
+    public static final int DEFAULT_MAX_CHANGES = 1024;
+
+    private final int maxChanges;
+
+    private final ArrayDeque<InstanceChangeEvent> changes;
+
+    private volatile Snapshot snapshot = new Snapshot();
+
+    public IndexedInstanceStore() {
+        this(DEFAULT_MAX_CHANGES);
+    }
+
+    /**
+     * @param maxChanges
+     *            the number of latest changes kept for {@link #getChangesSince(long)}
+     */
+    public IndexedInstanceStore(int maxChanges) {
+        Validate.isTrue(maxChanges > 0, "max changes must be positive: %s", maxChanges);
+        this.maxChanges = maxChanges;
+        this.changes = new ArrayDeque<>(maxChanges);
+    }
+
+    /**
+     * An immutable view of all instances and their indexes at some version of the store.
+     */
+    public static final class Snapshot {
+        private final long version;
+
+        private final Map<InstanceId, Entry> byId;
+
+        private final Map<String, Set<Instance>> byName;
+
+        private final Map<InstanceStatus, Set<Instance>> byStatus;
+
+        private final Map<Integer, Set<Instance>> byGroup;
+
+        private final Map<EndPoint, Instance> byEndPoint;
+
+        // host name -> instance name -> instance
+        private final Map<String, Map<String, Instance>> byHost;
+
+        private final Set<Instance> all;
+
+        private Snapshot() {
+            this(0, new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>(),
+                    new HashMap<>(), new HashMap<>());
+        }
+
+        private Snapshot(long version, Map<InstanceId, Entry> byId, Map<String, Set<Instance>> byName,
+                Map<InstanceStatus, Set<Instance>> byStatus, Map<Integer, Set<Instance>> byGroup,
+                Map<EndPoint, Instance> byEndPoint, Map<String, Map<String, Instance>> byHost) {
+            this.version = version;
+            this.byId = byId;
+            this.byName = byName;
+            this.byStatus = byStatus;
+            this.byGroup = byGroup;
+            this.byEndPoint = byEndPoint;
+            this.byHost = byHost;
+            this.all = new InstanceSetView(byId, null);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Set<Instance> getAll() {
+            return all;
+        }
+
+        public Set<Instance> getAll(String name) {
+            return bucket(byName, name);
+        }
+
+        public Set<Instance> getAll(InstanceStatus status) {
+            return bucket(byStatus, status);
+        }
+
+        public Set<Instance> getAll(Group group) {
+            return group == null ? Collections.emptySet() : bucket(byGroup, group.getGroupId());
+        }
+
+        public Set<Instance> getAll(String name, InstanceStatus status) {
+            Set<Instance> byName = getAll(name);
+            Set<Instance> byStatus = getAll(status);
+            Set<Instance> smaller = byName.size() <= byStatus.size() ? byName : byStatus;
+            Set<Instance> larger = smaller == byName ? byStatus : byName;
+
+            Set<Instance> result = new HashSet<>();
+            for (Instance instance : smaller) {
+                if (larger.contains(instance)) {
+                    result.add(instance);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Get the instances passing the filter. A status filter, alone or among the filters of an and filter, narrows
+         * the instances checked down to those of its status.
+         */
+        public Set<Instance> getAll(InstanceFilter filter) {
+            Set<Instance> candidates = all;
+            if (filter instanceof InstanceStatusFilter) {
+                candidates = getAll(((InstanceStatusFilter) filter).getStatus());
+            } else if (filter instanceof AndFilter) {
+                for (InstanceFilter child : ((AndFilter) filter).getFilters()) {
+                    if (child instanceof InstanceStatusFilter) {
+                        Set<Instance> byStatus = getAll(((InstanceStatusFilter) child).getStatus());
+                        if (byStatus.size() < candidates.size()) {
+                            candidates = byStatus;
+                        }
+                    }
+                }
+            }
+
+            Set<Instance> result = new HashSet<>();
+            for (Instance instance : candidates) {
+                if (filter.passed(instance)) {
+                    result.add(instance);
+                }
+            }
+            return result;
+        }
+
+        public Instance get(InstanceId id) {
+            Entry entry = byId.get(id);
+            return entry == null ? null : entry.instance;
+        }
+
+        public Instance get(EndPoint endPoint) {
+            return byEndPoint.get(endPoint);
+        }
+
+        public Instance getByHostNameAndServiceName(String hostName, String name) {
+            Map<String, Instance> byName = byHost.get(hostName);
+            return byName == null ? null : byName.get(name);
+        }
+
+        private <K> Set<Instance> bucket(Map<K, Set<Instance>> index, K key) {
+            Set<Instance> bucket = index.get(key);
+            return bucket == null ? Collections.emptySet() : new InstanceSetView(byId, bucket);
+        }
+    }
+
+    /**
+     * An unmodifiable view of a bucket kept by identity, or of all instances of a snapshot. An instance is in the view
+     * if the one saved under its id is in it and equals to it.
+     */
+    private static final class InstanceSetView extends AbstractSet<Instance> {
+        private final Map<InstanceId, Entry> byId;
+
+        // null for all instances
+        private final Set<Instance> bucket;
+
+        private InstanceSetView(Map<InstanceId, Entry> byId, Set<Instance> bucket) {
+            this.byId = byId;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public Iterator<Instance> iterator() {
+            if (bucket != null) {
+                return Collections.unmodifiableSet(bucket).iterator();
+            }
+            Iterator<Entry> entries = byId.values().iterator();
+            return new Iterator<Instance>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Instance next() {
+                    return entries.next().instance;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return bucket == null ? byId.size() : bucket.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Instance) || ((Instance) o).getId() == null) {
+                return false;
+            }
+            Entry entry = byId.get(((Instance) o).getId());
+            return entry != null && (bucket == null || bucket.contains(entry.instance)) && entry.instance.equals(o);
+        }
+    }
+
+    /**
+     * An instance with the values it was indexed by, which stay the same if the instance is changed afterwards.
+     */
+    private static final class Entry {
+        private final Instance instance;
+
+        private final String name;
+
+        private final InstanceStatus status;
+
+        private final Integer groupId;
+
+        private final List<EndPoint> endPoints;
+
+        private Entry(Instance instance) {
+            this.instance = instance;
+            this.name = instance.getName();
+            this.status = instance.getStatus();
+            this.groupId = instance.getGroup() == null ? null : instance.getGroup().getGroupId();
+            this.endPoints = new ArrayList<>();
+            for (EndPoint endPoint : instance.getEndPoints().values()) {
+                if (endPoint != null) {
+                    endPoints.add(new EndPoint(endPoint));
+                }
+            }
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * Get the changes made after the given version, oldest first.
+     *
+     * @return the changes, or null if some of them are no longer kept, and the caller has to start over from
+     *         {@link #getSnapshot()}
+     */
+    public synchronized List<InstanceChangeEvent> getChangesSince(long version) {
+        long current = snapshot.version;
+        if (version >= current) {
+            return Collections.emptyList();
+        }
+        if (changes.isEmpty() || changes.peekFirst().getVersion() > version + 1) {
+            return null;
+        }
+
+        List<InstanceChangeEvent> result = new ArrayList<>((int) (current - version));
+        for (InstanceChangeEvent event : changes) {
+            if (event.getVersion() > version) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<Instance> getAll() {
+        return snapshot.getAll();
+    }
+
+    @Override
+    public Set<Instance> getAll(String name) {
+        return snapshot.getAll(name);
+    }
+
+    @Override
+    public Set<Instance> getAll(InstanceStatus status) {
+        return snapshot.getAll(status);
+    }
+
+    @Override
+    public Set<Instance> getAll(String name, InstanceStatus status) {
+        return snapshot.getAll(name, status);
+    }
+
+    public Set<Instance> getAll(Group group) {
+        return snapshot.getAll(group);
+    }
+
+    public Set<Instance> getAll(InstanceFilter filter) {
+        return snapshot.getAll(filter);
+    }
+
+    @Override
+    public Instance get(InstanceId id) {
+        return snapshot.get(id);
+    }
+
+    @Override
+    public Instance get(EndPoint endPoint) {
+        return snapshot.get(endPoint);
+    }
+
+    @Override
+    public Instance getByHostNameAndServiceName(String hostName, String name) {
+        return snapshot.getByHostNameAndServiceName(hostName, name);
+    }
+
+    @Override
+    public synchronized void save(Instance instance) {
+        Validate.notNull(instance.getId(), "instance has no id: %s", instance);
+        Snapshot current = snapshot;
+        Entry previous = current.byId.get(instance.getId());
+        Entry entry = new Entry(instance);
+
+        Map<InstanceId, Entry> byId = new HashMap<>(current.byId);
+        byId.put(instance.getId(), entry);
+        Map<String, Set<Instance>> byName = current.byName;
+        Map<InstanceStatus, Set<Instance>> byStatus = current.byStatus;
+        Map<Integer, Set<Instance>> byGroup = current.byGroup;
+        Map<EndPoint, Instance> byEndPoint = current.byEndPoint;
+        Map<String, Map<String, Instance>> byHost = current.byHost;
+
+        if (previous != null) {
+            byName = removeFromBucket(byName, previous.name, previous.instance);
+            byStatus = removeFromBucket(byStatus, previous.status, previous.instance);
+            byGroup = removeFromBucket(byGroup, previous.groupId, previous.instance);
+            byEndPoint = removeEndPoints(byEndPoint, previous);
+            byHost = removeHosts(byHost, previous);
+        }
+        byName = addToBucket(byName, entry.name, instance);
+        byStatus = addToBucket(byStatus, entry.status, instance);
+        byGroup = addToBucket(byGroup, entry.groupId, instance);
+        byEndPoint = addEndPoints(byEndPoint, entry);
+        byHost = addHosts(byHost, entry);
+
+        publish(new Snapshot(current.version + 1, byId, byName, byStatus, byGroup, byEndPoint, byHost),
+                InstanceChangeEvent.Type.SAVED, instance);
+    }
+
+    @Override
+    public synchronized void delete(Instance instance) {
+        Snapshot current = snapshot;
+        Entry previous = current.byId.get(instance.getId());
+        if (previous == null) {
+            logger.debug("instance {} to delete is not in the store", instance.getId());
+            return;
+        }
+
+        Map<InstanceId, Entry> byId = new HashMap<>(current.byId);
+        byId.remove(instance.getId());
+        publish(new Snapshot(current.version + 1, byId,
+                removeFromBucket(current.byName, previous.name, previous.instance),
+                removeFromBucket(current.byStatus, previous.status, previous.instance),
+                removeFromBucket(current.byGroup, previous.groupId, previous.instance),
+                removeEndPoints(current.byEndPoint, previous), removeHosts(current.byHost, previous)),
+                InstanceChangeEvent.Type.DELETED, previous.instance);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void publish(Snapshot next, InstanceChangeEvent.Type type, Instance instance) {
+        if (changes.size() == maxChanges) {
+            changes.pollFirst();
+        }
+        changes.addLast(new InstanceChangeEvent(next.version, type, instance));
+        snapshot = next;
+    }
+
+    private static <K> Map<K, Set<Instance>> addToBucket(Map<K, Set<Instance>> index, K key, Instance instance) {
+        if (key == null) {
+            return index;
+        }
+        Set<Instance> bucket = newBucket();
+        Set<Instance> old = index.get(key);
+        if (old != null) {
+            bucket.addAll(old);
+        }
+        bucket.add(instance);
+
+        Map<K, Set<Instance>> copy = new HashMap<>(index);
+        copy.put(key, Collections.unmodifiableSet(bucket));
+        return copy;
+    }
+
+    private static <K> Map<K, Set<Instance>> removeFromBucket(Map<K, Set<Instance>> index, K key,
+            Instance instance) {
+        Set<Instance> old = key == null ? null : index.get(key);
+        if (old == null || !old.contains(instance)) {
+            return index;
+        }
+
+        Map<K, Set<Instance>> copy = new HashMap<>(index);
+        if (old.size() == 1) {
+            copy.remove(key);
+        } else {
+            Set<Instance> bucket = newBucket();
+            bucket.addAll(old);
+            bucket.remove(instance);
+            copy.put(key, Collections.unmodifiableSet(bucket));
+        }
+        return copy;
+    }
+
+    private static Map<EndPoint, Instance> addEndPoints(Map<EndPoint, Instance> index, Entry entry) {
+        if (entry.endPoints.isEmpty()) {
+            return index;
+        }
+        Map<EndPoint, Instance> copy = new HashMap<>(index);
+        for (EndPoint endPoint : entry.endPoints) {
+            copy.put(endPoint, entry.instance);
+        }
+        return copy;
+    }
+
+    private static Map<EndPoint, Instance> removeEndPoints(Map<EndPoint, Instance> index, Entry entry) {
+        if (entry.endPoints.isEmpty()) {
+            return index;
+        }
+        Map<EndPoint, Instance> copy = new HashMap<>(index);
+        for (EndPoint endPoint : entry.endPoints) {
+            // another instance may have taken the end point over
+            copy.remove(endPoint, entry.instance);
+        }
+        return copy;
+    }
+
+    private static Map<String, Map<String, Instance>> addHosts(Map<String, Map<String, Instance>> index,
+            Entry entry) {
+        if (entry.name == null || entry.endPoints.isEmpty()) {
+            return index;
+        }
+        Map<String, Map<String, Instance>> copy = new HashMap<>(index);
+        for (EndPoint endPoint : entry.endPoints) {
+            Map<String, Instance> byName = new HashMap<>(copy.getOrDefault(endPoint.getHostName(),
+                    Collections.emptyMap()));
+            byName.put(entry.name, entry.instance);
+            copy.put(endPoint.getHostName(), byName);
+        }
+        return copy;
+    }
+
+    private static Map<String, Map<String, Instance>> removeHosts(Map<String, Map<String, Instance>> index,
+            Entry entry) {
+        if (entry.name == null || entry.endPoints.isEmpty()) {
+            return index;
+        }
+        Map<String, Map<String, Instance>> copy = new HashMap<>(index);
+        for (EndPoint endPoint : entry.endPoints) {
+            Map<String, Instance> old = copy.get(endPoint.getHostName());
+            if (old == null || old.get(entry.name) != entry.instance) {
+                continue;
+            }
+            Map<String, Instance> byName = new HashMap<>(old);
+            byName.remove(entry.name);
+            if (byName.isEmpty()) {
+                copy.remove(endPoint.getHostName());
+            } else {
+                copy.put(endPoint.getHostName(), byName);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Instances may be changed after being saved, which changes their hash codes, so they are kept by identity. The
+     * buckets are only read through {@link InstanceSetView}.
+     */
+    private static Set<Instance> newBucket() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+}
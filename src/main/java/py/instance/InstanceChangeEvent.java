@@ -0,0 +1,42 @@
+package py.instance;
+
+/**
+ * A change of an {@link IndexedInstanceStore}, numbered by the version of the store it produced.
+ */
+public class InstanceChangeEvent {
+    public enum Type {
+        SAVED, DELETED
+    }
+
+    private final long version;
+
+    private final Type type;
+
+    private final Instance instance;
+
+    public InstanceChangeEvent(long version, Type type, Instance instance) {
+        this.version = version;
+        this.type = type;
+        this.instance = instance;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the instance saved, or the instance deleted
+     */
+    public Instance getInstance() {
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return "InstanceChangeEvent [version=" + version + ", type=" + type + ", instance=" + instance.getId() + "]";
+    }
+}
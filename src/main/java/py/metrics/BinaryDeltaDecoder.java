@@ -0,0 +1,165 @@
+package py.metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.Validate;
+
+import py.metrics.BinaryDeltaReporter.MetricType;
+
+/**
+ * Rebuilds the values of the series from the batches of a {@link BinaryDeltaReporter}, on the receiving side.
+ * <p>
+ * Batches must be decoded in the order they were written. Decoding starts from a full batch, which also drops
+ * everything decoded before it. Values are as reported: counts are exact, other values are fixed point numbers in
+ * thousandths.
+ */
+public class BinaryDeltaDecoder {
+    /**
+     * The series of a batch.
+     */
+    public static class Batch {
+        private final boolean full;
+        private final long timestamp;
+        private final List<String> series;
+
+        private Batch(boolean full, long timestamp, List<String> series) {
+            this.full = full;
+            this.timestamp = timestamp;
+            this.series = series;
+        }
+
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * @return the absolute timestamp in ms
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return names of the series reported in the batch, as "metric.field", in the order they were reported
+         */
+        public List<String> getSeries() {
+            return series;
+        }
+    }
+
+    private static class Definition {
+        private final String name;
+        private final MetricType type;
+        private final int id;
+
+        Definition(String name, MetricType type, int id) {
+            this.name = name;
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    // first id of a metric -> the metric
+    private final TreeMap<Integer, Definition> definitions = new TreeMap<>();
+    private final Map<String, Definition> definitionsByName = new HashMap<>();
+    private final Map<Integer, Long> values = new HashMap<>();
+    private boolean started = false;
+    private long lastTimestamp;
+
+    /**
+     * Decode a batch, starting at its length prefix.
+     */
+    public Batch decode(ByteBuffer batch) {
+        int length = batch.getInt();
+        Validate.isTrue(length <= batch.remaining(), "batch of %s bytes, but only %s left", length, batch.remaining());
+        int end = batch.position() + length;
+        Validate.isTrue(batch.getInt() == BinaryDeltaReporter.MAGIC, "not a binary metric batch");
+        byte version = batch.get();
+        Validate.isTrue(version == BinaryDeltaReporter.VERSION, "unsupported version %s", version);
+        boolean full = (batch.get() & BinaryDeltaReporter.FLAG_FULL) != 0;
+        if (full) {
+            definitions.clear();
+            definitionsByName.clear();
+            values.clear();
+            started = true;
+        }
+        Validate.validState(started, "decoding must start from a full batch");
+        long timestamp = getVarLong(batch);
+        lastTimestamp = full ? timestamp : lastTimestamp + timestamp;
+
+        long definitionCount = getVarLong(batch);
+        for (long i = 0; i < definitionCount; i++) {
+            int id = (int) getVarLong(batch);
+            MetricType type = MetricType.values()[batch.get()];
+            byte[] name = new byte[(int) getVarLong(batch)];
+            batch.get(name);
+            Definition definition = new Definition(new String(name, StandardCharsets.UTF_8), type, id);
+            definitions.put(id, definition);
+            definitionsByName.put(definition.name, definition);
+        }
+
+        int seriesCount = (int) getVarLong(batch);
+        int[] ids = new int[seriesCount];
+        int id = 0;
+        for (int i = 0; i < seriesCount; i++) {
+            id += (int) unzigzag(getVarLong(batch));
+            ids[i] = id;
+        }
+        List<String> series = new ArrayList<>(seriesCount);
+        for (int i = 0; i < seriesCount; i++) {
+            long delta = unzigzag(getVarLong(batch));
+            values.merge(ids[i], delta, Long::sum);
+            series.add(nameOf(ids[i]));
+        }
+        Validate.validState(batch.position() == end, "batch has %s bytes left", end - batch.position());
+        return new Batch(full, lastTimestamp, series);
+    }
+
+    /**
+     * @return the latest value of a series, 0 if it was defined but never reported, or null if it is unknown
+     */
+    public Long getValue(String metric, String field) {
+        Definition definition = definitionsByName.get(metric);
+        if (definition == null) {
+            return null;
+        }
+        String[] fields = definition.type.getFields();
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field)) {
+                return values.getOrDefault(definition.id + i, 0L);
+            }
+        }
+        return null;
+    }
+
+    private String nameOf(int id) {
+        Map.Entry<Integer, Definition> entry = definitions.floorEntry(id);
+        Validate.validState(entry != null, "series %s is not defined", id);
+        Definition definition = entry.getValue();
+        String[] fields = definition.type.getFields();
+        Validate.validState(id - definition.id < fields.length, "series %s is not defined", id);
+        return definition.name + "." + fields[id - definition.id];
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
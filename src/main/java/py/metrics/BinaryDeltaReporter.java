@@ -0,0 +1,485 @@
+package py.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * A reporter which exports the registry as compact binary batches, containing only the series changed since the last
+ * batch. It is meant for nodes with tens of thousands of series, where text based reporters spend most of their time
+ * formatting values nobody changed.
+ * <p>
+ * Every metric is expanded into a fixed list of series according to its type, see {@link MetricType}. A series is
+ * identified by a number, which is the id of its metric plus the index of the series in that list. Values of counts
+ * are exact, other values are stored as fixed point numbers in thousandths.
+ * <p>
+ * A batch is laid out as below, all varints are unsigned LEB128 and signed ones are zigzag encoded:
+ *
+ * <pre>
+ * int     length of the rest of the batch
+ * int     magic, "PYDB"
+ * byte    version
+ * byte    flags, 1 if this is a full batch
+ * varint  timestamp in ms, absolute in a full batch, otherwise the delta from the previous batch
+ * varint  number of metric definitions, each of which is
+ *             varint  id of the metric
+ *             byte    type of the metric
+ *             varint  length of the name, followed by the name in UTF-8
+ * varint  number of series in this batch
+ *         ids column: signed varint delta of each id from the previous one, starting from 0
+ *         values column: signed varint delta of each value from the last one reported for the series
+ * </pre>
+ *
+ * A full batch defines all metrics and reports all series as deltas from 0, so a receiver may start decoding from any
+ * full batch. Full batches are sent periodically, and whenever the sink was (re)opened or failed to write.
+ */
+public class BinaryDeltaReporter extends ScheduledReporter {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryDeltaReporter.class);
+
+    public static final int MAGIC = 0x50594442;
+    public static final byte VERSION = 1;
+    public static final byte FLAG_FULL = 1;
+    private static final double FIXED_POINT_SCALE = 1000.0;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FIELD_COUNT = 9;
+
+    /**
+     * Types of metrics, and the series each of them is expanded into.
+     */
+    public enum MetricType {
+        GAUGE("value"), COUNTER("count"), HISTOGRAM("count", "min", "max", "mean", "p50", "p95", "p99", "p999"),
+        METER("count", "m1_rate", "m5_rate", "m15_rate", "mean_rate"),
+        TIMER("count", "m1_rate", "min", "max", "mean", "p50", "p95", "p99", "p999");
+
+        private final String[] fields;
+
+        MetricType(String... fields) {
+            this.fields = fields;
+        }
+
+        public String[] getFields() {
+            return fields.clone();
+        }
+    }
+
+    /**
+     * Where the batches go.
+     */
+    public interface Sink extends Closeable {
+        /**
+         * Make sure the underlying stream is open.
+         *
+         * @return true if the stream was (re)opened, so that the receiver has no state and needs a full batch
+         */
+        boolean open() throws IOException;
+
+        void write(ByteBuffer batch) throws IOException;
+    }
+
+    public static Builder forRegistry(MetricRegistry registry) {
+        return new Builder(registry);
+    }
+
+    public static class Builder {
+        private final MetricRegistry registry;
+        private MetricFilter filter = MetricFilter.ALL;
+        private TimeUnit rateUnit = TimeUnit.SECONDS;
+        private TimeUnit durationUnit = TimeUnit.MILLISECONDS;
+        private int fullBatchInterval = 60;
+
+        private Builder(MetricRegistry registry) {
+            this.registry = registry;
+        }
+
+        public Builder filter(MetricFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        public Builder convertRatesTo(TimeUnit rateUnit) {
+            this.rateUnit = rateUnit;
+            return this;
+        }
+
+        public Builder convertDurationsTo(TimeUnit durationUnit) {
+            this.durationUnit = durationUnit;
+            return this;
+        }
+
+        /**
+         * Send a full batch at least once per the given number of batches.
+         */
+        public Builder fullBatchInterval(int fullBatchInterval) {
+            this.fullBatchInterval = fullBatchInterval;
+            return this;
+        }
+
+        public BinaryDeltaReporter build(Sink sink) {
+            return new BinaryDeltaReporter(registry, filter, rateUnit, durationUnit, fullBatchInterval, sink);
+        }
+    }
+
+    private final Sink sink;
+    private final int fullBatchInterval;
+
+    private final Map<String, Series> seriesByName = new HashMap<>();
+    private int nextId = 0;
+    private long generation = 0;
+    private long lastTimestamp = 0;
+    private int batchesSinceFull = 0;
+    private boolean forceFull = true;
+
+    // scratch space reused among batches
+    private final long[] values = new long[MAX_FIELD_COUNT];
+    private final List<Series> definitions = new ArrayList<>();
+    private int[] changedIds = new int[1024];
+    private long[] changedDeltas = new long[1024];
+    private int changedCount;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    private BinaryDeltaReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit,
+            TimeUnit durationUnit, int fullBatchInterval, Sink sink) {
+        super(registry, "binary-delta-reporter", filter, rateUnit, durationUnit);
+        this.sink = sink;
+        this.fullBatchInterval = fullBatchInterval;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public synchronized void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+            SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+        boolean full;
+        try {
+            full = sink.open() || forceFull || batchesSinceFull >= fullBatchInterval;
+        } catch (IOException e) {
+            logger.warn("Can't open the sink of binary metrics, skip this batch", e);
+            return;
+        }
+
+        generation++;
+        changedCount = 0;
+        definitions.clear();
+
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            Object value = entry.getValue().getValue();
+            if (value instanceof Number) {
+                values[0] = fixedPoint(((Number) value).doubleValue());
+                collect(entry.getKey(), MetricType.GAUGE, full);
+            }
+        }
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values[0] = entry.getValue().getCount();
+            collect(entry.getKey(), MetricType.COUNTER, full);
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            Snapshot snapshot = histogram.getSnapshot();
+            values[0] = histogram.getCount();
+            values[1] = fixedPoint(snapshot.getMin());
+            values[2] = fixedPoint(snapshot.getMax());
+            values[3] = fixedPoint(snapshot.getMean());
+            values[4] = fixedPoint(snapshot.getMedian());
+            values[5] = fixedPoint(snapshot.get95thPercentile());
+            values[6] = fixedPoint(snapshot.get99thPercentile());
+            values[7] = fixedPoint(snapshot.get999thPercentile());
+            collect(entry.getKey(), MetricType.HISTOGRAM, full);
+        }
+        for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+            Meter meter = entry.getValue();
+            values[0] = meter.getCount();
+            values[1] = fixedPoint(convertRate(meter.getOneMinuteRate()));
+            values[2] = fixedPoint(convertRate(meter.getFiveMinuteRate()));
+            values[3] = fixedPoint(convertRate(meter.getFifteenMinuteRate()));
+            values[4] = fixedPoint(convertRate(meter.getMeanRate()));
+            collect(entry.getKey(), MetricType.METER, full);
+        }
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer timer = entry.getValue();
+            Snapshot snapshot = timer.getSnapshot();
+            values[0] = timer.getCount();
+            values[1] = fixedPoint(convertRate(timer.getOneMinuteRate()));
+            values[2] = fixedPoint(convertDuration(snapshot.getMin()));
+            values[3] = fixedPoint(convertDuration(snapshot.getMax()));
+            values[4] = fixedPoint(convertDuration(snapshot.getMean()));
+            values[5] = fixedPoint(convertDuration(snapshot.getMedian()));
+            values[6] = fixedPoint(convertDuration(snapshot.get95thPercentile()));
+            values[7] = fixedPoint(convertDuration(snapshot.get99thPercentile()));
+            values[8] = fixedPoint(convertDuration(snapshot.get999thPercentile()));
+            collect(entry.getKey(), MetricType.TIMER, full);
+        }
+
+        // forget metrics removed from the registry
+        Iterator<Series> iterator = seriesByName.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().generation != generation) {
+                iterator.remove();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        encode(full, full ? now : now - lastTimestamp);
+        try {
+            sink.write(buffer);
+            lastTimestamp = now;
+            forceFull = false;
+            batchesSinceFull = full ? 0 : batchesSinceFull + 1;
+        } catch (IOException e) {
+            logger.warn("Can't write binary metrics to the sink, a full batch will be sent next time", e);
+            forceFull = true;
+        }
+    }
+
+    private void collect(String name, MetricType type, boolean full) {
+        Series series = seriesByName.get(name);
+        if (series == null || series.type != type) {
+            series = new Series(name, type, nextId);
+            nextId += type.fields.length;
+            seriesByName.put(name, series);
+            definitions.add(series);
+        } else if (full) {
+            definitions.add(series);
+        }
+        series.generation = generation;
+
+        for (int i = 0; i < type.fields.length; i++) {
+            long last = full ? 0 : series.lastValues[i];
+            if (values[i] != last || full) {
+                addChanged(series.id + i, values[i] - last);
+            }
+            series.lastValues[i] = values[i];
+        }
+    }
+
+    private void addChanged(int id, long delta) {
+        if (changedCount == changedIds.length) {
+            changedIds = Arrays.copyOf(changedIds, changedCount * 2);
+            changedDeltas = Arrays.copyOf(changedDeltas, changedCount * 2);
+        }
+        changedIds[changedCount] = id;
+        changedDeltas[changedCount] = delta;
+        changedCount++;
+    }
+
+    private void encode(boolean full, long timestamp) {
+        buffer.clear();
+        ensureCapacity(64);
+        buffer.putInt(0);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(full ? FLAG_FULL : 0);
+        putVarLong(timestamp);
+
+        putVarLong(definitions.size());
+        for (Series series : definitions) {
+            putVarLong(series.id);
+            ensureCapacity(1);
+            buffer.put((byte) series.type.ordinal());
+            putVarLong(series.encodedName.length);
+            ensureCapacity(series.encodedName.length);
+            buffer.put(series.encodedName);
+        }
+
+        putVarLong(changedCount);
+        int previousId = 0;
+        for (int i = 0; i < changedCount; i++) {
+            putVarLong(zigzag(changedIds[i] - previousId));
+            previousId = changedIds[i];
+        }
+        for (int i = 0; i < changedCount; i++) {
+            putVarLong(zigzag(changedDeltas[i]));
+        }
+
+        buffer.flip();
+        buffer.putInt(0, buffer.limit() - Integer.BYTES);
+    }
+
+    private static long fixedPoint(double value) {
+        return Math.round(value * FIXED_POINT_SCALE);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void putVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            super.stop();
+        } finally {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                logger.warn("Can't close the sink of binary metrics", e);
+            }
+        }
+    }
+
+    private static class Series {
+        private final MetricType type;
+        private final int id;
+        private final byte[] encodedName;
+        private final long[] lastValues;
+        private long generation;
+
+        Series(String name, MetricType type, int id) {
+            this.type = type;
+            this.id = id;
+            this.encodedName = name.getBytes(StandardCharsets.UTF_8);
+            this.lastValues = new long[type.fields.length];
+        }
+    }
+
+    /**
+     * Streams batches to a collector over one TCP connection, reconnecting on the next batch after a failure.
+     */
+    public static class SocketSink implements Sink {
+        private final InetSocketAddress address;
+        private final int connectTimeoutMs;
+        private SocketChannel channel;
+
+        public SocketSink(InetSocketAddress address, int connectTimeoutMs) {
+            this.address = address;
+            this.connectTimeoutMs = connectTimeoutMs;
+        }
+
+        @Override
+        public boolean open() throws IOException {
+            if (channel != null && channel.isConnected()) {
+                return false;
+            }
+            close();
+            SocketChannel newChannel = SocketChannel.open();
+            try {
+                newChannel.socket().setTcpNoDelay(true);
+                newChannel.socket().connect(address, connectTimeoutMs);
+            } catch (IOException e) {
+                newChannel.close();
+                throw e;
+            }
+            channel = newChannel;
+            logger.info("Connected to binary metric collector {}", address);
+            return true;
+        }
+
+        @Override
+        public void write(ByteBuffer batch) throws IOException {
+            try {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                SocketChannel oldChannel = channel;
+                channel = null;
+                oldChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Appends batches to a local spool file, which is rotated to a file with suffix ".1" once it exceeds the given
+     * size, so that a collector can pick it up later.
+     */
+    public static class SpoolFileSink implements Sink {
+        private final File file;
+        private final long maxBytes;
+        private FileChannel channel;
+
+        public SpoolFileSink(File file, long maxBytes) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public boolean open() throws IOException {
+            if (channel != null && channel.size() < maxBytes) {
+                return false;
+            }
+            if (channel != null) {
+                close();
+                Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            return true;
+        }
+
+        @Override
+        public void write(ByteBuffer batch) throws IOException {
+            long start = channel.size();
+            try {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+            } catch (IOException e) {
+                // do not leave a partial batch behind, readers could not find the next one
+                channel.truncate(start);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                FileChannel oldChannel = channel;
+                channel = null;
+                oldChannel.close();
+            }
+        }
+    }
+}
@@ -287,6 +287,72 @@ public class PYMetricConfigruation {
         }
     }
 
+    /**
+     * Configuration for binary delta reporter. Batches are streamed to a local collector if its port is set, otherwise
+     * appended to a spool file.
+     *
+     * @author zjm
+     */
+    @Configuration
+    @Profile({ "metric.binary" })
+    public static class BinaryReporterConfiguration {
+        @Value("${metric.binary.interval.seconds:10}")
+        private long interval = 10;
+
+        @Value("${metric.binary.collector.ip:localhost}")
+        private String collectorIp = "localhost";
+
+        @Value("${metric.binary.collector.port:0}")
+        private int collectorPort = 0;
+
+        @Value("${metric.binary.spool.file:/tmp/metrics.bin}")
+        private String spoolFile = "/tmp/metrics.bin";
+
+        @Value("${metric.binary.spool.max.bytes:67108864}")
+        private long spoolMaxBytes = 64 * 1024 * 1024;
+
+        @Value("${metric.binary.full.batch.interval:60}")
+        private int fullBatchInterval = 60;
+
+        @Value("${metric.binary.filter.regex:}")
+        private String filterRegex = "";
+
+        @Autowired
+        private PYMetricRegistry metrics;
+
+        @Bean
+        public MetricFilter metricFilter() {
+            PYMetricReporterFilter.Binary.compilePattern(filterRegex);
+            return PYMetricReporterFilter.Binary;
+        }
+
+        @Bean
+        public BinaryDeltaReporter binaryDeltaReporter() {
+            BinaryDeltaReporter.Sink sink;
+            if (collectorPort > 0) {
+                sink = new BinaryDeltaReporter.SocketSink(new InetSocketAddress(collectorIp, collectorPort), 1000);
+            } else {
+                sink = new BinaryDeltaReporter.SpoolFileSink(new File(spoolFile), spoolMaxBytes);
+            }
+
+            logger.warn("Going to start binary delta reporter, configuration: {}", toString());
+            BinaryDeltaReporter reporter = BinaryDeltaReporter.forRegistry(metrics).filter(metricFilter())
+                    .convertRatesTo(TimeUnit.SECONDS).convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .fullBatchInterval(fullBatchInterval).build(sink);
+            reporter.start(interval, TimeUnit.SECONDS);
+            metrics.addReporter(reporter);
+            return reporter;
+        }
+
+        @Override
+        public String toString() {
+            return "BinaryReporterConfiguration [interval=" + interval + ", collectorIp=" + collectorIp
+                    + ", collectorPort=" + collectorPort + ", spoolFile=" + spoolFile + ", spoolMaxBytes="
+                    + spoolMaxBytes + ", fullBatchInterval=" + fullBatchInterval + ", filterRegex=" + filterRegex
+                    + "]";
+        }
+    }
+
     /**
      * Configuration for console.
      *
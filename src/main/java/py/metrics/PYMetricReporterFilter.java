@@ -6,7 +6,7 @@ import java.util.regex.Pattern;
 
 public enum PYMetricReporterFilter implements MetricFilter {
 
-  Graphite, CSV, Ganglia;
+  Graphite, CSV, Ganglia, Binary;
 
   private String regex;
   private Pattern pattern;
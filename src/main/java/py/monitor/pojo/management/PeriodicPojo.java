@@ -45,7 +45,11 @@ public abstract class PeriodicPojo extends TimerTask {
     @Override
     public void run() {
         try {
-            modifyData();
+            // hold the monitor so that the attributes are read as a consistent snapshot, see
+            // IntrospectedDynamicMBean#getAttributes
+            synchronized (this) {
+                modifyData();
+            }
 
             logger.debug("Reporter switch : {}", autoReport);
             if (autoReport == true) {
@@ -7,9 +7,11 @@ import java.beans.Introspector;
 import java.beans.MethodDescriptor;
 import java.beans.PropertyDescriptor;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.AnnotatedElement;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -20,6 +22,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.Attribute;
 import javax.management.AttributeChangeNotification;
@@ -64,12 +67,25 @@ import py.monitor.pojo.util.Objects;
  */
 public class IntrospectedDynamicMBean extends NotificableDynamicMBean {
     private static final Logger logger = LoggerFactory.getLogger(IntrospectedDynamicMBean.class);
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType OPERATION_TYPE = MethodType.methodType(Object.class, Object.class,
+            Object[].class);
+
+    /**
+     * Introspection results shared by all MBeans of the same POJO class, so that registering thousands of resource
+     * scoped MBeans introspects and compiles each class only once.
+     */
+    private static final Map<Class<?>, Introspection> introspections = new ConcurrentHashMap<>();
+
     private final PeriodicPojo pojo;
     private final Class<?> mbeanClass;
     private final MBeanRegistration registrationDelegate;
     private final Map<String, PropertyDescriptor> propertyDescriptors;
     private final Map<String, Method> operationMethods;
     private final MBeanInfo mbeanInfo;
+    private final Introspection introspection;
 
     /**
      * Constructs a Dynamic MBean by introspecting a POJO MBean {@code annotatedMBean}. If {@code mbean} implements
@@ -92,16 +108,32 @@ public class IntrospectedDynamicMBean extends NotificableDynamicMBean {
         }
         registrationDelegate = (MBeanRegistration) ((pojo instanceof MBeanRegistration) ? pojo
                 : new MBeanRegistrationBase());
+        introspection = introspect(mbeanClass);
+        propertyDescriptors = introspection.propertyDescriptors;
+        operationMethods = introspection.operationMethods;
+        mbeanInfo = introspection.mbeanInfo;
+    }
+
+    private static Introspection introspect(Class<?> mbeanClass) throws ManagementException {
+        Introspection introspection = introspections.get(mbeanClass);
+        if (introspection != null) {
+            return introspection;
+        }
         try {
             BeanInfo beanInfo = Introspector.getBeanInfo(mbeanClass);
-            propertyDescriptors = createPropertyDescriptors(beanInfo);
-            operationMethods = createOperationMethods(beanInfo);
-            mbeanInfo = createMbeanInfo(mbeanClass, propertyDescriptors, operationMethods);
+            Map<String, PropertyDescriptor> propertyDescriptors = createPropertyDescriptors(beanInfo);
+            Map<String, Method> operationMethods = createOperationMethods(beanInfo);
+            MBeanInfo mbeanInfo = createMbeanInfo(mbeanClass, propertyDescriptors, operationMethods);
+            introspection = new Introspection(propertyDescriptors, operationMethods, mbeanInfo);
         } catch (IntrospectionException e) {
             throw new ManagementException(e);
         } catch (java.beans.IntrospectionException e) {
             throw new ManagementException(e);
+        } catch (IllegalAccessException e) {
+            throw new ManagementException(e);
         }
+        Introspection existing = introspections.putIfAbsent(mbeanClass, introspection);
+        return existing == null ? introspection : existing;
     }
 
     /**
@@ -113,23 +145,29 @@ public class IntrospectedDynamicMBean extends NotificableDynamicMBean {
     public Object getAttribute(String attribute)
             throws AttributeNotFoundException, MBeanException, ReflectionException {
         logger.debug("attribute is : {}", attribute);
-        PropertyDescriptor propertyDescriptor = propertyDescriptors.get(attribute);
-        if (propertyDescriptor == null) {
+        return get(getterOf(attribute));
+    }
+
+    private MethodHandle getterOf(String attribute) throws AttributeNotFoundException {
+        if (!propertyDescriptors.containsKey(attribute)) {
             throw new AttributeNotFoundException(attribute);
         }
-        Method getter = propertyDescriptor.getReadMethod();
+        MethodHandle getter = introspection.getters.get(attribute);
         if (getter == null) {
             throw new AttributeNotFoundException(format("Getter method for attribute %s of %s", attribute, mbeanClass));
         }
+        return getter;
+    }
+
+    private Object get(MethodHandle getter) throws MBeanException {
         try {
-            if (!getter.isAccessible()) {
-                getter.setAccessible(true);
-            }
-            return getter.invoke(pojo);
-        } catch (InvocationTargetException e) {
-            throw new MBeanException((Exception) e.getCause());
+            return (Object) getter.invokeExact((Object) pojo);
         } catch (Exception e) {
-            throw new RuntimeException(format("Unable to obtain value of attribute %s of %s", attribute, mbeanClass));
+            throw new MBeanException(e);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new MBeanException(new Exception(t));
         }
     }
 
@@ -142,14 +180,20 @@ public class IntrospectedDynamicMBean extends NotificableDynamicMBean {
     public AttributeList getAttributes(String[] attributeNames) {
         logger.debug("IntrospectedDynamicMBean getAttributes");
         AttributeList attributes = new AttributeList(attributeNames.length);
-        for (String attributeName : attributeNames) {
-            try {
-                Attribute attribute = new Attribute(attributeName, getAttribute(attributeName));
-                attributes.add(attribute);
-            } catch (Exception e) {
-                // Must be a mistake that the signature doesn't allow throwing exceptions
-                throw new IllegalArgumentException(e);
+        try {
+            MethodHandle[] getters = new MethodHandle[attributeNames.length];
+            for (int i = 0; i < attributeNames.length; i++) {
+                getters[i] = getterOf(attributeNames[i]);
             }
+            // read all attributes as one snapshot, the pojo updates its data holding its own monitor
+            synchronized (pojo) {
+                for (int i = 0; i < attributeNames.length; i++) {
+                    attributes.add(new Attribute(attributeNames[i], get(getters[i])));
+                }
+            }
+        } catch (Exception e) {
+            // Must be a mistake that the signature doesn't allow throwing exceptions
+            throw new IllegalArgumentException(e);
         }
         return attributes;
     }
@@ -167,35 +211,25 @@ public class IntrospectedDynamicMBean extends NotificableDynamicMBean {
             throw new AttributeNotFoundException(name);
         }
         Method setter = propertyDescriptor.getWriteMethod();
-        if (setter == null) {
+        MethodHandle setterHandle = introspection.setters.get(name);
+        if (setter == null || setterHandle == null) {
             throw new AttributeNotFoundException(format("setter method for attribute %s of %s", name, mbeanClass));
         }
         Object value = attribute.getValue();
-        try {
-            if (!setter.isAccessible()) {
-                setter.setAccessible(true);
-            }
-            setter.invoke(pojo, value);
-            // try {
-            // logger.debug("----------------------------------");
-            // AttributeChangeNotification notification = new AttributeChangeNotification(this,
-            // sequenceNumber.getAndIncrement(), System.currentTimeMillis(),
-            // AttributeChangeNotification.ATTRIBUTE_CHANGE, "Server Host Change", this.getClass().getName(), null,
-            // null);
-            // this.sendNotification(notification);
-            // //this.sendNotify();
-            // } catch (Exception e) {
-            // logger.error("!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-            // }
-        } catch (IllegalArgumentException e) {
+        if (!isAssignable(setter.getParameterTypes()[0], value)) {
             throw new InvalidAttributeValueException(String.format("attribute %s, value = (%s)%s, expected (%s)", name,
-                    value.getClass().getName(), value, setter.getParameterTypes()[0].getName()));
-        } catch (IllegalAccessException e) {
-            throw new ReflectionException(e,
-                    format("attribute %s of %s, value = (%s)%s", name, mbeanClass, value.getClass().getName(), value));
-        } catch (InvocationTargetException e) {
-            throw new MBeanException((Exception) e.getCause(),
-                    format("attribute %s of %s, value = (%s)%s", name, mbeanClass, value.getClass().getName(), value));
+                    value == null ? null : value.getClass().getName(), value,
+                    setter.getParameterTypes()[0].getName()));
+        }
+        try {
+            setterHandle.invokeExact((Object) pojo, value);
+        } catch (Exception e) {
+            throw new MBeanException(e, format("attribute %s of %s, value = (%s)%s", name, mbeanClass,
+                    value == null ? null : value.getClass().getName(), value));
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new MBeanException(new Exception(t));
         }
     }
 
@@ -231,17 +265,34 @@ public class IntrospectedDynamicMBean extends NotificableDynamicMBean {
         if (method == null) {
             throw new IllegalArgumentException("No such operation: " + actionName);
         }
-        try {
-            if (!method.isAccessible()) {
-                method.setAccessible(true);
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        int paramCount = params == null ? 0 : params.length;
+        if (paramCount != parameterTypes.length) {
+            throw new IllegalArgumentException(format("Operation %s expects %d parameters but got %d", actionName,
+                    parameterTypes.length, paramCount));
+        }
+        for (int i = 0; i < paramCount; i++) {
+            if (!isAssignable(parameterTypes[i], params[i])) {
+                throw new IllegalArgumentException(format("Parameter %d of operation %s is not a %s", i, actionName,
+                        parameterTypes[i].getName()));
             }
-            return method.invoke(pojo, params);
-        } catch (InvocationTargetException e) {
-            throw new MBeanException((Exception) e.getCause());
+        }
+        try {
+            return (Object) introspection.operations.get(actionName).invokeExact((Object) pojo, params);
         } catch (Exception e) {
-            throw new IllegalArgumentException(e);
+            throw new MBeanException(e);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new MBeanException(new Exception(t));
         }
+    }
 
+    private static boolean isAssignable(Class<?> type, Object value) {
+        if (value == null) {
+            return !type.isPrimitive();
+        }
+        return MethodType.methodType(type).wrap().returnType().isInstance(value);
     }
 
     /**
@@ -602,6 +653,50 @@ public class IntrospectedDynamicMBean extends NotificableDynamicMBean {
         registrationDelegate.preDeregister();
     }
 
+    /**
+     * Everything learned by introspecting a POJO class, with its accessors and operations compiled to method handles.
+     */
+    private static class Introspection {
+        private final Map<String, PropertyDescriptor> propertyDescriptors;
+        private final Map<String, Method> operationMethods;
+        private final MBeanInfo mbeanInfo;
+        private final Map<String, MethodHandle> getters = new HashMap<String, MethodHandle>();
+        private final Map<String, MethodHandle> setters = new HashMap<String, MethodHandle>();
+        private final Map<String, MethodHandle> operations = new HashMap<String, MethodHandle>();
+
+        Introspection(Map<String, PropertyDescriptor> propertyDescriptors, Map<String, Method> operationMethods,
+                MBeanInfo mbeanInfo) throws IllegalAccessException {
+            this.propertyDescriptors = propertyDescriptors;
+            this.operationMethods = operationMethods;
+            this.mbeanInfo = mbeanInfo;
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            for (Map.Entry<String, PropertyDescriptor> entry : propertyDescriptors.entrySet()) {
+                Method getter = entry.getValue().getReadMethod();
+                if (getter != null) {
+                    getters.put(entry.getKey(), lookup.unreflect(accessible(getter)).asType(GETTER_TYPE));
+                }
+                Method setter = entry.getValue().getWriteMethod();
+                if (setter != null) {
+                    setters.put(entry.getKey(), lookup.unreflect(accessible(setter)).asType(SETTER_TYPE));
+                }
+            }
+            for (Map.Entry<String, Method> entry : operationMethods.entrySet()) {
+                Method method = entry.getValue();
+                MethodHandle handle = lookup.unreflect(accessible(method))
+                        .asSpreader(Object[].class, method.getParameterTypes().length);
+                operations.put(entry.getKey(), handle.asType(OPERATION_TYPE));
+            }
+        }
+
+        private static Method accessible(Method method) {
+            if (!method.isAccessible()) {
+                method.setAccessible(true);
+            }
+            return method;
+        }
+    }
+
     @Override
     public String toString() {
         return "IntrospectedDynamicMBean [pojo=" + pojo + ", mbeanClass=" + mbeanClass + ", registrationDelegate="
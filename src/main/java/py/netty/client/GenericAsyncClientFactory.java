@@ -21,6 +21,9 @@ import py.netty.core.*;
 import py.netty.core.twothreads.TTEventGroup;
 import py.netty.memory.PooledByteBufAllocatorWrapper;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -31,6 +34,8 @@ import java.util.concurrent.atomic.AtomicInteger;
     private final static Logger logger = LoggerFactory.getLogger(GenericAsyncClientFactory.class);
     private Class<T> service;
     private ProtocolFactory protocolFactory;
+    // constructor of the service stub, resolved once and typed (PYConnection, Protocol)Object for invokeExact
+    private MethodHandle serviceConstructor;
 
     private final TransferenceConfiguration cfg;
 
@@ -88,7 +93,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 
     public void validateService() {
         try {
-            service.getConstructor(PYConnection.class, Protocol.class);
+            serviceConstructor = MethodHandles.publicLookup()
+                    .unreflectConstructor(service.getConstructor(PYConnection.class, Protocol.class))
+                    .asType(MethodType.methodType(Object.class, PYConnection.class, Protocol.class));
         } catch (Exception e) {
             logger.error("caught an exception", e);
             throw new RuntimeException();
@@ -164,11 +171,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 
         try {
             PYConnection connection = connectionPool.get(endPoint);
-            Object[] intArgs = new Object[] { connection, protocolFactory.getProtocol() };
-            existing[currentIndex] = (T) service.getConstructor(PYConnection.class, Protocol.class)
-                    .newInstance(intArgs);
+            existing[currentIndex] = (T) (Object) serviceConstructor.invokeExact(connection,
+                    protocolFactory.getProtocol());
             return existing[currentIndex];
-        } catch (Exception e) {
+        } catch (Throwable e) {
             logger.error("caught an exception", e);
             throw new RuntimeException();
         }
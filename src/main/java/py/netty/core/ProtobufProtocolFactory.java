@@ -0,0 +1,246 @@
+package py.netty.core;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.function.ToIntFunction;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ByteStringHelper;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Parser;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import py.netty.exception.AbstractNettyException;
+import py.netty.exception.InvalidProtocolException;
+import py.netty.exception.NotSupportedException;
+import py.netty.message.Header;
+import py.netty.message.Message;
+import py.netty.message.MethodType;
+
+/**
+ * A protocol of protobuf metadata which avoids copying through byte arrays.
+ * <p>
+ * A packet is the header, then the metadata, then the data if any. Metadata is serialized by {@link CodedOutputStream}
+ * straight into a pooled direct buffer sized by the memoized serialized size, and parsed by {@link CodedInputStream}
+ * straight from the received buffer. The methods of a service take a protobuf request and a callback of a protobuf
+ * response, or only the callback, and the parsers of requests and responses are found from the method signatures:
+ *
+ * <pre>
+ * void write(WriteRequest request, MethodCallback&lt;WriteResponse&gt; callback);
+ * </pre>
+ */
+public class ProtobufProtocolFactory extends ProtocolFactory {
+    private static final Logger logger = LoggerFactory.getLogger(ProtobufProtocolFactory.class);
+    private static final int MAX_METHOD_TYPE = Byte.MAX_VALUE;
+
+    private final ServiceMethod[] methods = new ServiceMethod[MAX_METHOD_TYPE + 1];
+    private final Protocol protocol = new ProtobufProtocol();
+
+    /**
+     * @param methodTypeOf
+     *            the method type of each method of the service, or a negative value for methods not served
+     */
+    public ProtobufProtocolFactory(Class<?> serviceInterface, ToIntFunction<Method> methodTypeOf) {
+        this.allocator = PooledByteBufAllocator.DEFAULT;
+        for (Method method : serviceInterface.getMethods()) {
+            int methodType = methodTypeOf.applyAsInt(method);
+            if (methodType < 0) {
+                continue;
+            }
+            Validate.isTrue(methodType <= MAX_METHOD_TYPE, "method type %s of %s", methodType, method);
+            Validate.isTrue(methods[methodType] == null, "duplicate method type %s", methodType);
+            methods[methodType] = new ServiceMethod(method);
+            logger.info("method type {} is {}", methodType, method.getName());
+        }
+    }
+
+    /**
+     * Methods are named after {@link MethodType} values ignoring case, e.g. {@code ping} for {@link MethodType#PING}.
+     */
+    public ProtobufProtocolFactory(Class<?> serviceInterface) {
+        this(serviceInterface, method -> {
+            for (MethodType methodType : MethodType.values()) {
+                if (methodType != MethodType.INVALID && methodType.name().equalsIgnoreCase(method.getName())) {
+                    return methodType.getValue();
+                }
+            }
+            return -1;
+        });
+    }
+
+    @Override
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Wrap data as a {@link ByteString} without copying it if the buffer is not composite. The byte string shares the
+     * memory of the buffer, so it must not be used after the buffer is released.
+     */
+    public static ByteString wrapData(ByteBuf data) {
+        if (data.hasArray()) {
+            return ByteStringHelper.wrap(data.array(), data.arrayOffset() + data.readerIndex(), data.readableBytes());
+        }
+        return ByteStringHelper.wrap(data.nioBuffer());
+    }
+
+    /**
+     * Parse a message from the next {@code length} readable bytes of the buffer, which may be composite, and skip them.
+     */
+    static <T> T parse(Parser<T> parser, ByteBuf buffer, int length) throws IOException {
+        CodedInputStream input;
+        if (buffer.nioBufferCount() == 1) {
+            input = CodedInputStream.newInstance(buffer.nioBuffer(buffer.readerIndex(), length));
+        } else {
+            // components are streamed rather than merged into one buffer
+            input = CodedInputStream.newInstance(new ByteBufInputStream(buffer.slice(buffer.readerIndex(), length)));
+        }
+        T message = parser.parseFrom(input);
+        buffer.skipBytes(length);
+        return message;
+    }
+
+    private class ProtobufProtocol implements Protocol {
+        @Override
+        public ByteBuf encodeRequest(Header header, AbstractMessage metadata) throws InvalidProtocolException {
+            return encode(header, metadata);
+        }
+
+        @Override
+        public ByteBuf encodeResponse(Header header, AbstractMessage metadata) throws InvalidProtocolException {
+            return encode(header, metadata);
+        }
+
+        @Override
+        public Object decodeRequest(Message msg) throws InvalidProtocolException {
+            ServiceMethod method = methodOf(msg.getHeader());
+            return method.requestParser == null ? null : decode(method.requestParser, msg);
+        }
+
+        @Override
+        public Object decodeResponse(Message msg) throws InvalidProtocolException {
+            return decode(methodOf(msg.getHeader()).responseParser, msg);
+        }
+
+        @Override
+        public AbstractNettyException decodeException(ByteBuf buffer) throws InvalidProtocolException {
+            try {
+                return AbstractNettyException.parse(buffer);
+            } catch (Exception e) {
+                throw new InvalidProtocolException("can not parse the exception: " + e);
+            }
+        }
+
+        @Override
+        public ByteBuf encodeException(long requestId, AbstractNettyException e) {
+            Header header = new Header((byte) MethodType.INVALID.getValue(), 0, 0, requestId);
+            ByteBuf buffer = allocator.directBuffer(Header.headerLength() + e.getSize());
+            header.toBuffer(buffer);
+            e.toBuffer(buffer);
+            // the message may be longer in UTF-8 than the size of the exception counts
+            header.setMetadataLength(buffer.writerIndex() - Header.headerLength());
+            // the metadata length follows the magics, the method type and the reserved byte
+            buffer.setInt(4, header.getMetadataLength());
+            return buffer;
+        }
+
+        @Override
+        public Method getMethod(int methodType) throws NotSupportedException {
+            if (methodType < 0 || methodType > MAX_METHOD_TYPE || methods[methodType] == null) {
+                throw new NotSupportedException(methodType);
+            }
+            return methods[methodType].method;
+        }
+
+        private ServiceMethod methodOf(Header header) throws InvalidProtocolException {
+            int methodType = header.getMethodType();
+            if (methodType < 0 || methods[methodType] == null) {
+                throw new InvalidProtocolException("unknown method type: " + header);
+            }
+            return methods[methodType];
+        }
+
+        private ByteBuf encode(Header header, AbstractMessage metadata) throws InvalidProtocolException {
+            // the serialized size is memoized by the message, so writeTo() does not compute it again
+            int size = metadata == null ? 0 : metadata.getSerializedSize();
+            header.setMetadataLength(size);
+            ByteBuf buffer = allocator.directBuffer(Header.headerLength() + size);
+            header.toBuffer(buffer);
+            if (size == 0) {
+                return buffer;
+            }
+
+            try {
+                ByteBuffer target = buffer.nioBuffer(buffer.writerIndex(), size);
+                CodedOutputStream output = CodedOutputStream.newInstance(target);
+                metadata.writeTo(output);
+                output.flush();
+                output.checkNoSpaceLeft();
+            } catch (Exception e) {
+                buffer.release();
+                logger.error("can not encode {}", header, e);
+                throw new InvalidProtocolException("can not encode the metadata: " + e);
+            }
+            buffer.writerIndex(buffer.writerIndex() + size);
+            return buffer;
+        }
+
+        /**
+         * Parse the metadata and leave the reader index of the buffer at the data.
+         */
+        private Object decode(Parser<?> parser, Message msg) throws InvalidProtocolException {
+            int length = msg.getHeader().getMetadataLength();
+            ByteBuf buffer = msg.getBuffer();
+            try {
+                if (length == 0 || buffer == null) {
+                    return parser.parseFrom(ByteString.EMPTY);
+                }
+                return parse(parser, buffer, length);
+            } catch (IOException e) {
+                logger.error("can not decode {}", msg, e);
+                throw new InvalidProtocolException("can not decode the metadata: " + e);
+            }
+        }
+    }
+
+    private static class ServiceMethod {
+        private final Method method;
+        private final Parser<?> requestParser;
+        private final Parser<?> responseParser;
+
+        ServiceMethod(Method method) {
+            this.method = method;
+            Type[] parameterTypes = method.getGenericParameterTypes();
+            Validate.isTrue(parameterTypes.length == 1 || parameterTypes.length == 2, "not a service method: %s",
+                    method);
+            this.requestParser = parameterTypes.length == 2 ? parserOf(parameterTypes[0]) : null;
+
+            Type callbackType = parameterTypes[parameterTypes.length - 1];
+            Validate.isTrue(callbackType instanceof ParameterizedType, "no response type: %s", method);
+            this.responseParser = parserOf(((ParameterizedType) callbackType).getActualTypeArguments()[0]);
+        }
+
+        private static Parser<?> parserOf(Type type) {
+            Validate.isTrue(type instanceof Class && AbstractMessage.class.isAssignableFrom((Class<?>) type),
+                    "not a protobuf message: %s", type);
+            try {
+                AbstractMessage defaultInstance = (AbstractMessage) ((Class<?>) type).getMethod("getDefaultInstance")
+                        .invoke(null);
+                return defaultInstance.getParserForType();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("can not get the parser of " + type, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package py.netty.memory;
+
+import java.nio.ByteBuffer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledUnsafeDirectByteBuf;
+
+/**
+ * A {@link ByteBuf} viewing native memory owned by somebody else, usually a {@link py.common.FastBuffer}. The memory is
+ * never freed by this buffer, instead the given releaser is run once the reference count drops to zero.
+ */
+public class FastBufferByteBuf extends UnpooledUnsafeDirectByteBuf {
+    private final Runnable releaser;
+
+    FastBufferByteBuf(ByteBuffer view, Runnable releaser) {
+        super(UnpooledByteBufAllocator.DEFAULT, view, view.capacity());
+        this.releaser = releaser;
+        writerIndex(view.capacity());
+    }
+
+    @Override
+    protected void deallocate() {
+        releaser.run();
+    }
+
+    @Override
+    public ByteBuf capacity(int newCapacity) {
+        throw new UnsupportedOperationException("fast buffer view");
+    }
+}
@@ -0,0 +1,88 @@
+package py.netty.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import py.common.AbstractFastBuffer;
+import py.common.ByteBufFastBuffer;
+import py.common.FastBuffer;
+import py.common.FastBufferImpl;
+import py.common.FastBufferManager;
+
+/**
+ * Converts between {@link FastBuffer}s and netty {@link ByteBuf}s without copying the data, so that pages cached in
+ * native memory can be written to the network as they are, and received data can be kept as it arrived.
+ */
+public class FastBufferByteBufBridge {
+    private static final Logger logger = LoggerFactory.getLogger(FastBufferByteBufBridge.class);
+
+    /**
+     * Expose a fast buffer as a {@link ByteBuf}. The returned buffer takes over the ownership of the fast buffer: once
+     * it is released, the fast buffer is released to the given manager, and the fast buffer must not be used by the
+     * caller anymore.
+     * <p>
+     * Fast buffers not backed by native memory are copied into a heap buffer and released immediately.
+     */
+    public static ByteBuf wrap(FastBuffer fastBuffer, FastBufferManager manager) {
+        if (fastBuffer instanceof ByteBufFastBuffer) {
+            ByteBuf byteBuf = ((ByteBufFastBuffer) fastBuffer).getByteBuf();
+            return byteBuf.slice(byteBuf.readerIndex(), (int) fastBuffer.size());
+        }
+
+        if (fastBuffer instanceof FastBufferImpl && PlatformDependent.useDirectBufferNoCleaner()) {
+            return view((FastBufferImpl) fastBuffer, () -> manager.releaseBuffer(fastBuffer));
+        }
+
+        if (fastBuffer instanceof AbstractFastBuffer && PlatformDependent.useDirectBufferNoCleaner()) {
+            List<FastBuffer> pieces = ((AbstractFastBuffer) fastBuffer).getFastBuffers();
+            boolean allNative = true;
+            for (FastBuffer piece : pieces) {
+                allNative &= piece instanceof FastBufferImpl;
+            }
+            if (allNative) {
+                // the whole composite is released once all pieces are
+                AtomicInteger remainingPieces = new AtomicInteger(pieces.size());
+                Runnable releaser = () -> {
+                    if (remainingPieces.decrementAndGet() == 0) {
+                        manager.releaseBuffer(fastBuffer);
+                    }
+                };
+                List<ByteBuf> components = new ArrayList<>(pieces.size());
+                for (FastBuffer piece : pieces) {
+                    components.add(view((FastBufferImpl) piece, releaser));
+                }
+                if (components.size() == 1) {
+                    return components.get(0);
+                }
+                return new PyCompositeByteBuf(UnpooledByteBufAllocator.DEFAULT, true, components.size(), components);
+            }
+        }
+
+        logger.debug("copy {} since it can not be viewed as a direct buffer", fastBuffer);
+        ByteBuf copy = Unpooled.wrappedBuffer(fastBuffer.array());
+        manager.releaseBuffer(fastBuffer);
+        return copy;
+    }
+
+    private static ByteBuf view(FastBufferImpl fastBuffer, Runnable releaser) {
+        ByteBuffer view = PlatformDependent.directBuffer(fastBuffer.getAccessibleMemAddress(),
+                (int) fastBuffer.size());
+        return new FastBufferByteBuf(view, releaser);
+    }
+
+    /**
+     * Adopt the readable bytes of a {@link ByteBuf} as a fast buffer, taking over one reference of it.
+     */
+    public static FastBuffer adopt(ByteBuf byteBuf) {
+        return new ByteBufFastBuffer(byteBuf);
+    }
+}
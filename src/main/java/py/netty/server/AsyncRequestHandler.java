@@ -1,6 +1,6 @@
 package py.netty.server;
 
-import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.codahale.metrics.Counter;
@@ -19,7 +19,6 @@ import py.consumer.ConsumerService;
 import py.metrics.PYMetric;
 import py.metrics.PYMetricRegistry;
 import py.metrics.PYTimerContext;
-import py.netty.core.AbstractMethodCallback;
 import py.netty.core.MethodCallback;
 import py.netty.core.Protocol;
 import py.netty.exception.*;
@@ -36,6 +35,7 @@ public class AsyncRequestHandler extends SimpleChannelInboundHandler<Message> {
     private final static Logger logger = LoggerFactory.getLogger(AsyncRequestHandler.class);
     private final Object serviceObject;
     private final Protocol protocol;
+    private final MethodDispatcher dispatcher;
     private AtomicInteger pendingRequestsCount;
     private int maxPendingRequestsCount;
     private ConsumerService<Runnable> requestExecutor;
@@ -54,6 +54,7 @@ public class AsyncRequestHandler extends SimpleChannelInboundHandler<Message> {
         super(false);
         this.serviceObject = serviceObject;
         this.protocol = protocol;
+        this.dispatcher = new MethodDispatcher(protocol);
         this.pendingRequestsCount = new AtomicInteger(0);
     }
 
@@ -106,9 +107,9 @@ public class AsyncRequestHandler extends SimpleChannelInboundHandler<Message> {
             return;
         }
 
-        Method method;
+        MethodDispatcher.Invoker invoker;
         try {
-            method = protocol.getMethod(header.getMethodType());
+            invoker = dispatcher.getInvoker(header.getMethodType());
         } catch (NotSupportedException e) {
             logger.error("can not support the method: {}", msg, e);
             e.setServer(true);
@@ -117,69 +118,82 @@ public class AsyncRequestHandler extends SimpleChannelInboundHandler<Message> {
             return;
         }
 
+        header.setDataLength(0);
+        header.setMetadataLength(0);
+        MethodCallback<Object> callback = new RequestCallback(this, msg, ctx);
         try {
-            MethodCallback<Object> callback = generateCallback(msg, ctx);
-            Object[] args;
-            if (object == null) {
-                args = new Object[] { callback };
-            } else {
-                args = new Object[] { object, callback };
-            }
-
             PYTimerContext context = timerInvokeMethod.time();
-            method.invoke(serviceObject, args);
+            invoker.invoke(serviceObject, object, callback);
             context.stop();
 
         } catch (Throwable e) {
             logger.warn("can not invoke the method", e);
-            fireResponse(msg, ctx, protocol.encodeException(header.getRequestId(), new ServerProcessException(e)));
+            // through the callback, the method may have answered the request before throwing
+            callback.fail(new ServerProcessException(e));
         }
 
         serviceContext.stop();
     }
 
-    private MethodCallback<Object> generateCallback(Message msg, ChannelHandlerContext ctx) {
-        final Header header = msg.getHeader();
-        header.setDataLength(0);
-        header.setMetadataLength(0);
+    /**
+     * The callback of a request. Only the first complete or fail fires a response, later ones are ignored.
+     */
+    private static class RequestCallback implements MethodCallback<Object> {
+        private final AsyncRequestHandler handler;
+        private final Message msg;
+        private final ChannelHandlerContext ctx;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private RequestCallback(AsyncRequestHandler handler, Message msg, ChannelHandlerContext ctx) {
+            this.handler = handler;
+            this.msg = msg;
+            this.ctx = ctx;
+        }
 
-        MethodCallback<Object> callback = new AbstractMethodCallback<Object>() {
-            @Override
-            public void complete(Object object) {
-                Object response;
-                try {
-                    response = protocol.encodeResponse(header, (AbstractMessage) object);
-                    logger.trace("@@ complete header: {} for request", header);
-                } catch (InvalidProtocolException e) {
-                    logger.error("caught an exception", e);
-                    response = protocol.encodeException(header.getRequestId(), e);
-                } catch (Throwable e) {
-                    logger.error("caught an exception", e);
-                    response = protocol.encodeException(header.getRequestId(), new ServerProcessException(e));
-                }
-                fireResponse(msg, ctx, response);
+        @Override
+        public void complete(Object object) {
+            if (!done.compareAndSet(false, true)) {
+                logger.warn("request {} has been answered, ignore the response", msg.getRequestId());
+                return;
             }
-
-            @Override
-            public void fail(Exception e) {
-                logger.info("caught an exception for msg: {}", msg.getRequestId(), e);
-                Object response;
-                if (e instanceof AbstractNettyException) {
-                    response = protocol.encodeException(header.getRequestId(), (AbstractNettyException) e);
-                } else {
-                    response = protocol.encodeException(header.getRequestId(), new ServerProcessException(e));
-                }
-
-                fireResponse(msg, ctx, response);
+            Protocol protocol = handler.protocol;
+            Header header = msg.getHeader();
+            Object response;
+            try {
+                response = protocol.encodeResponse(header, (AbstractMessage) object);
+                logger.trace("@@ complete header: {} for request", header);
+            } catch (InvalidProtocolException e) {
+                logger.error("caught an exception", e);
+                response = protocol.encodeException(header.getRequestId(), e);
+            } catch (Throwable e) {
+                logger.error("caught an exception", e);
+                response = protocol.encodeException(header.getRequestId(), new ServerProcessException(e));
             }
+            handler.fireResponse(msg, ctx, response);
+        }
 
-            @Override
-            public ByteBufAllocator getAllocator() {
-                return ctx.alloc();
+        @Override
+        public void fail(Exception e) {
+            if (!done.compareAndSet(false, true)) {
+                logger.warn("request {} has been answered, ignore the failure", msg.getRequestId(), e);
+                return;
             }
-        };
+            logger.info("caught an exception for msg: {}", msg.getRequestId(), e);
+            Protocol protocol = handler.protocol;
+            Header header = msg.getHeader();
+            Object response;
+            if (e instanceof AbstractNettyException) {
+                response = protocol.encodeException(header.getRequestId(), (AbstractNettyException) e);
+            } else {
+                response = protocol.encodeException(header.getRequestId(), new ServerProcessException(e));
+            }
+            handler.fireResponse(msg, ctx, response);
+        }
 
-        return callback;
+        @Override
+        public ByteBufAllocator getAllocator() {
+            return ctx.alloc();
+        }
     }
 
     @Override
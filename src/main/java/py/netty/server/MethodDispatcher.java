@@ -0,0 +1,136 @@
+package py.netty.server;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import py.netty.core.MethodCallback;
+import py.netty.core.Protocol;
+import py.netty.exception.NotSupportedException;
+
+/**
+ * Dispatches requests to the methods of a service object without reflection.
+ * <p>
+ * An invoker class is generated by {@link LambdaMetafactory} once for every service method, and invokers are kept in
+ * an array indexed by method type, so dispatching a request is an array read and a direct call. Service methods take
+ * the request and the callback, or only the callback if the request has no body. Invokers are only generated for public
+ * methods of public classes, since a generated class can not access others; any other method is called through a
+ * method handle.
+ */
+class MethodDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(MethodDispatcher.class);
+    private static final int MAX_INDEXED_METHOD_TYPE = 1024;
+
+    // shared by all dispatchers, generated classes are never unloaded anyway
+    private static final Map<Method, Invoker> generatedInvokers = new ConcurrentHashMap<>();
+
+    private static final MethodType REQUEST_INVOKER_TYPE = MethodType.methodType(void.class, Object.class,
+            Object.class, MethodCallback.class);
+    private static final MethodType CALLBACK_INVOKER_TYPE = MethodType.methodType(void.class, Object.class,
+            MethodCallback.class);
+
+    private final Protocol protocol;
+    private volatile Invoker[] invokers = new Invoker[16];
+
+    interface Invoker {
+        void invoke(Object service, Object request, MethodCallback<Object> callback) throws Throwable;
+    }
+
+    interface CallbackInvoker {
+        void invoke(Object service, MethodCallback<Object> callback) throws Throwable;
+    }
+
+    MethodDispatcher(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    Invoker getInvoker(int methodType) throws NotSupportedException {
+        Invoker[] current = invokers;
+        if (methodType >= 0 && methodType < current.length) {
+            Invoker invoker = current[methodType];
+            if (invoker != null) {
+                return invoker;
+            }
+        }
+        return resolve(methodType);
+    }
+
+    private synchronized Invoker resolve(int methodType) throws NotSupportedException {
+        Method method = protocol.getMethod(methodType);
+        Invoker invoker = generatedInvokers.computeIfAbsent(method, MethodDispatcher::generate);
+        if (methodType >= 0 && methodType < MAX_INDEXED_METHOD_TYPE) {
+            Invoker[] current = invokers;
+            if (methodType >= current.length) {
+                current = Arrays.copyOf(current, Math.max(current.length * 2, methodType + 1));
+            } else {
+                current = current.clone();
+            }
+            current[methodType] = invoker;
+            invokers = current;
+        }
+        return invoker;
+    }
+
+    private static Invoker generate(Method method) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length != 1 && parameterTypes.length != 2) {
+            throw new IllegalArgumentException("not a service method: " + method);
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle target;
+        try {
+            target = lookup.unreflect(method);
+        } catch (IllegalAccessException e) {
+            method.setAccessible(true);
+            try {
+                target = lookup.unreflect(method);
+            } catch (IllegalAccessException e1) {
+                throw new IllegalArgumentException("can not access " + method, e1);
+            }
+        }
+
+        if (Modifier.isPublic(method.getModifiers()) && Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+            MethodType instantiatedType = MethodType.methodType(void.class, method.getDeclaringClass(),
+                    parameterTypes);
+            try {
+                if (parameterTypes.length == 2) {
+                    CallSite site = LambdaMetafactory.metafactory(lookup, "invoke",
+                            MethodType.methodType(Invoker.class), REQUEST_INVOKER_TYPE, target, instantiatedType);
+                    return (Invoker) site.getTarget().invoke();
+                } else {
+                    CallSite site = LambdaMetafactory.metafactory(lookup, "invoke",
+                            MethodType.methodType(CallbackInvoker.class), CALLBACK_INVOKER_TYPE, target,
+                            instantiatedType);
+                    CallbackInvoker callbackInvoker = (CallbackInvoker) site.getTarget().invoke();
+                    return (service, request, callback) -> callbackInvoker.invoke(service, callback);
+                }
+            } catch (Throwable t) {
+                logger.info("can not generate an invoker for {}, fall back to a method handle", method, t);
+            }
+        }
+
+        // block bodies, an expression body would make javac type the exact invocations as returning Object
+        if (parameterTypes.length == 2) {
+            MethodHandle handle = target.asType(REQUEST_INVOKER_TYPE);
+            return (service, request, callback) -> {
+                handle.invokeExact(service, request, callback);
+            };
+        } else {
+            MethodHandle handle = target.asType(CALLBACK_INVOKER_TYPE);
+            return (service, request, callback) -> {
+                handle.invokeExact(service, callback);
+            };
+        }
+    }
+}
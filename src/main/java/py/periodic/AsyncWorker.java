@@ -0,0 +1,22 @@
+package py.periodic;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A worker whose unit of work completes asynchronously, e.g. a health check waiting for a remote response.
+ *
+ * When run by {@link py.periodic.impl.SharedPeriodicWorkExecutor}, no thread is held while the returned future is
+ * pending, and the next run is scheduled once the future completes. Executors only knowing {@link Worker} block on the
+ * future instead.
+ */
+public interface AsyncWorker extends Worker {
+    /**
+     * Start a unit of work. The returned future completes normally if the work succeeds, otherwise exceptionally.
+     */
+    CompletableFuture<?> doWorkAsync() throws Exception;
+
+    @Override
+    default void doWork() throws Exception {
+        doWorkAsync().get();
+    }
+}
@@ -0,0 +1,406 @@
+package py.periodic.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import py.common.NamedThreadFactory;
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+import py.metrics.PYNullMetric;
+import py.periodic.AsyncWorker;
+import py.periodic.PeriodicWorkExecutor;
+import py.periodic.UnableToStartException;
+import py.periodic.Worker;
+import py.periodic.WorkerFactory;
+
+/**
+ * A PeriodicWorkExecutor which does not own any thread.
+ *
+ * All instances share one timer thread, which only decides when a worker is due, and one elastic pool of runner
+ * threads, which run the workers. So hundreds of periodic jobs cost a handful of threads instead of one pool each. An
+ * {@link AsyncWorker} does not even hold a runner thread while its work is pending.
+ *
+ * The shared pool has a fixed number of runner threads, max(4, 2 * processors), and queues the workers due when all of
+ * them are busy. A worker which blocks for long, e.g. on I/O or a lock, holds a runner thread all the while and delays
+ * the workers of every other executor, so such a worker should be an {@link AsyncWorker} or be given a runner of its
+ * own by {@link #SharedPeriodicWorkExecutor(ExecutionOptionsReader, WorkerFactory, String, Executor)}.
+ *
+ * Each run of a worker may be delayed by a random jitter, so that jobs with the same period do not all fire at the
+ * same moment. With a fixed rate, a run finishing after the next run was due is an overrun, handled according to the
+ * {@link OverrunPolicy}. Like {@link PeriodicWorkExecutorImpl}, runs of one worker never overlap.
+ */
+public class SharedPeriodicWorkExecutor implements PeriodicWorkExecutor {
+    private static final Logger logger = Logger.getLogger(SharedPeriodicWorkExecutor.class);
+
+    /**
+     * What to do with the runs missed by a worker running longer than its fixed rate.
+     */
+    public enum OverrunPolicy {
+        /**
+         * Drop the missed runs and keep to the original schedule.
+         */
+        SKIP,
+        /**
+         * Run the missed runs back to back until the worker is on schedule again, as
+         * {@link java.util.concurrent.ScheduledExecutorService#scheduleAtFixedRate} does.
+         */
+        CATCH_UP
+    }
+
+    private static final ScheduledThreadPoolExecutor sharedTimer;
+    private static final ThreadPoolExecutor sharedRunner;
+
+    static {
+        sharedTimer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Periodic Timer-", true));
+        sharedTimer.setRemoveOnCancelPolicy(true);
+
+        int runnerCount = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        sharedRunner = new ThreadPoolExecutor(runnerCount, runnerCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("Periodic Runner-", true));
+        sharedRunner.allowCoreThreadTimeOut(true);
+    }
+
+    private final String className = getClass().getSimpleName();
+    private final String name;
+    private final Executor runner;
+
+    private WorkerFactory workerFactory;
+    private ExecutionOptionsReader executionOptionsReader;
+    private long jitterMs = 0;
+    private OverrunPolicy overrunPolicy = OverrunPolicy.SKIP;
+    private boolean metricEnabled = false;
+
+    private int maxNumWorkers;
+    private final List<WorkerTask> tasks = new ArrayList<>();
+    private final AtomicInteger activeCount = new AtomicInteger(0);
+    private volatile boolean stopped = false;
+    private volatile CountDownLatch terminationLatch;
+
+    public SharedPeriodicWorkExecutor(ExecutionOptionsReader optionReader, WorkerFactory factory, String name) {
+        this(optionReader, factory, name, sharedRunner);
+    }
+
+    /**
+     * @param runner
+     *            the executor to run workers in, instead of the shared runner pool
+     */
+    public SharedPeriodicWorkExecutor(ExecutionOptionsReader optionReader, WorkerFactory factory, String name,
+            Executor runner) {
+        this.executionOptionsReader = optionReader;
+        this.workerFactory = factory;
+        this.name = name;
+        this.runner = runner;
+    }
+
+    @Override
+    public void setWorkerFactory(WorkerFactory workerFactory) {
+        this.workerFactory = workerFactory;
+    }
+
+    public void setExecutionOptionsReader(ExecutionOptionsReader reader) {
+        this.executionOptionsReader = reader;
+    }
+
+    /**
+     * Delay the first run and every later run of each worker by a random time between 0 and the given jitter.
+     */
+    public void setJitterMs(long jitterMs) {
+        this.jitterMs = jitterMs;
+    }
+
+    public void setOverrunPolicy(OverrunPolicy overrunPolicy) {
+        this.overrunPolicy = overrunPolicy;
+    }
+
+    /**
+     * Register the run time, lateness and overrun metrics of each worker when started.
+     */
+    public void initMetric() {
+        this.metricEnabled = true;
+    }
+
+    @Override
+    public synchronized void start() throws UnableToStartException {
+        logger.trace("Periodic Work is kicked off");
+        if (workerFactory == null || executionOptionsReader == null) {
+            String errMsg = "workerFactory and executionOptionReader must be set before start workers";
+            logger.error(errMsg);
+            throw new UnableToStartException(errMsg);
+        }
+        if (terminationLatch != null) {
+            throw new UnableToStartException("executor " + name + " has been started");
+        }
+
+        ExecutionOptions executionOptions;
+        try {
+            executionOptions = executionOptionsReader.read();
+        } catch (InvalidExecutionOptionsException e) {
+            logger.error(e.getMessage());
+            throw new UnableToStartException(e.getMessage(), e);
+        }
+
+        maxNumWorkers = executionOptions.getMaxNumWorkers();
+        terminationLatch = new CountDownLatch(executionOptions.getNumWorkers());
+        for (int i = 0; i < executionOptions.getNumWorkers(); i++) {
+            WorkerTask task = new WorkerTask(i, workerFactory.createWorker(), executionOptions);
+            tasks.add(task);
+            task.scheduleAt(System.nanoTime());
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        for (WorkerTask task : snapshotTasks()) {
+            task.cancelPending();
+        }
+    }
+
+    @Override
+    public void stopNow() {
+        stopped = true;
+        for (WorkerTask task : snapshotTasks()) {
+            task.cancelPending();
+            task.interruptRun();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch = terminationLatch;
+        return latch == null ? true : latch.await(timeout, unit);
+    }
+
+    /**
+     * @return the max number of workers that could concurrently run
+     */
+    public int getMaxWorkersCount() {
+        return maxNumWorkers;
+    }
+
+    /**
+     * @return the number of workers currently working
+     */
+    public int getActiveWorkersCount() {
+        return activeCount.get();
+    }
+
+    private synchronized List<WorkerTask> snapshotTasks() {
+        return new ArrayList<>(tasks);
+    }
+
+    private long jitterNanos() {
+        return jitterMs <= 0 ? 0 : TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(jitterMs + 1));
+    }
+
+    private class WorkerTask {
+        private final Worker worker;
+        private final Long fixedRateNanos;
+        private final Long fixedDelayNanos;
+        private final AtomicBoolean terminated = new AtomicBoolean(false);
+
+        // the time of the next run by the schedule, and the time it is actually fired with the jitter
+        private long scheduledNanos;
+        private long fireNanos;
+        private volatile ScheduledFuture<?> pending;
+
+        // the runner thread in the doWork() of this task, and whether stopNow() interrupted it, guarded by runLock
+        private final Object runLock = new Object();
+        private Thread runningThread;
+        private boolean interruptedRun;
+
+        private final PYMetric timerRun;
+        private final PYMetric histoLatenessMs;
+        private final PYMetric counterOverrun;
+        private final PYMetric counterSkipped;
+
+        WorkerTask(int index, Worker worker, ExecutionOptions options) {
+            this.worker = worker;
+            this.fixedRateNanos = options.getFixedRate() == null ? null
+                    : TimeUnit.MILLISECONDS.toNanos(options.getFixedRate());
+            this.fixedDelayNanos = options.getFixedDelay() == null ? null
+                    : TimeUnit.MILLISECONDS.toNanos(options.getFixedDelay());
+
+            if (metricEnabled) {
+                PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+                String workerName = "worker" + index;
+                timerRun = registry.register(MetricRegistry.name(className, name, workerName, "timer_run"),
+                        Timer.class);
+                histoLatenessMs = registry.register(
+                        MetricRegistry.name(className, name, workerName, "histo_lateness_ms"), Histogram.class);
+                counterOverrun = registry.register(
+                        MetricRegistry.name(className, name, workerName, "counter_overrun"), Counter.class);
+                counterSkipped = registry.register(
+                        MetricRegistry.name(className, name, workerName, "counter_skipped"), Counter.class);
+            } else {
+                timerRun = PYNullMetric.defaultNullMetric;
+                histoLatenessMs = PYNullMetric.defaultNullMetric;
+                counterOverrun = PYNullMetric.defaultNullMetric;
+                counterSkipped = PYNullMetric.defaultNullMetric;
+            }
+        }
+
+        void scheduleAt(long scheduledNanos) {
+            this.scheduledNanos = scheduledNanos;
+            this.fireNanos = scheduledNanos + jitterNanos();
+            try {
+                pending = sharedTimer.schedule(this::fire, fireNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                logger.error("failed to schedule a worker of " + name, e);
+                terminate();
+                return;
+            }
+            if (stopped) {
+                cancelPending();
+            }
+        }
+
+        void cancelPending() {
+            ScheduledFuture<?> future = pending;
+            if (future != null && future.cancel(false)) {
+                terminate();
+            }
+        }
+
+        private void fire() {
+            if (stopped) {
+                terminate();
+                return;
+            }
+            try {
+                runner.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                logger.error("runner of " + name + " rejected a worker, the worker will be re-submitted", e);
+                scheduleNext(System.nanoTime());
+            }
+        }
+
+        private void run() {
+            if (stopped) {
+                // executor has been stopped, do not do anything and return
+                terminate();
+                return;
+            }
+
+            enterRun();
+            if (stopped) {
+                // stopNow() may have missed this run
+                exitRun();
+                terminate();
+                return;
+            }
+
+            long startNanos = System.nanoTime();
+            histoLatenessMs.updateHistogram(TimeUnit.NANOSECONDS.toMillis(Math.max(0, startNanos - fireNanos)));
+            activeCount.incrementAndGet();
+            try {
+                if (worker instanceof AsyncWorker) {
+                    CompletableFuture<?> future = ((AsyncWorker) worker).doWorkAsync();
+                    exitRun();
+                    future.whenComplete((result, t) -> finish(startNanos, t));
+                    return;
+                }
+                worker.doWork();
+                exitRun();
+                finish(startNanos, null);
+            } catch (Throwable t) {
+                exitRun();
+                finish(startNanos, t);
+            }
+        }
+
+        private void enterRun() {
+            synchronized (runLock) {
+                runningThread = Thread.currentThread();
+                interruptedRun = false;
+            }
+        }
+
+        private void exitRun() {
+            boolean interrupted;
+            synchronized (runLock) {
+                runningThread = null;
+                interrupted = interruptedRun;
+                interruptedRun = false;
+            }
+            if (interrupted) {
+                // the interrupt was meant for this run only, not for the next work of the shared runner thread
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * Interrupt the runner thread only while it is in the doWork() of this task, since the thread is shared.
+         */
+        void interruptRun() {
+            synchronized (runLock) {
+                if (runningThread != null) {
+                    interruptedRun = true;
+                    runningThread.interrupt();
+                }
+            }
+        }
+
+        private void finish(long startNanos, Throwable t) {
+            long endNanos = System.nanoTime();
+            activeCount.decrementAndGet();
+            timerRun.update(endNanos - startNanos, TimeUnit.NANOSECONDS);
+            if (t != null) {
+                String errMsg = "An exception " + t.getClass().getName() + " thrown by a worker of " + name
+                        + " is caught. The worker will be re-submitted.";
+                logger.error(errMsg, t);
+            }
+
+            if (stopped) {
+                terminate();
+                return;
+            }
+            scheduleNext(endNanos);
+        }
+
+        private void scheduleNext(long nowNanos) {
+            if (fixedDelayNanos != null) {
+                scheduleAt(nowNanos + fixedDelayNanos);
+                return;
+            }
+
+            long rate = fixedRateNanos;
+            long next = scheduledNanos + rate;
+            if (rate > 0 && next < nowNanos) {
+                counterOverrun.incCounter();
+                if (overrunPolicy == OverrunPolicy.SKIP) {
+                    long missed = (nowNanos - next + rate - 1) / rate;
+                    counterSkipped.incCounter(missed);
+                    logger.debug("a worker of " + name + " overran, skip " + missed + " runs");
+                    next += missed * rate;
+                }
+            }
+            scheduleAt(next);
+        }
+
+        private void terminate() {
+            if (terminated.compareAndSet(false, true)) {
+                terminationLatch.countDown();
+            }
+        }
+    }
+}
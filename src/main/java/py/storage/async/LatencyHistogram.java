@@ -0,0 +1,128 @@
+package py.storage.async;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, log-linear bucketed histogram for I/O latencies.
+ * <p>
+ * Each power of two is split into {@link #SUB_BUCKETS} linear sub buckets, so every recorded value is kept with a
+ * relative error below 1/{@link #SUB_BUCKETS}. Recording is a single atomic increment and never allocates, which makes
+ * it cheap enough to sit on every I/O completion.
+ * <p>
+ * Values are accumulated into the current window until {@link #rotate()} is called, which drains the window into an
+ * immutable snapshot that percentile queries are served from.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray current = new AtomicLongArray(BUCKET_COUNT);
+    private volatile Snapshot snapshot = new Snapshot(new long[BUCKET_COUNT], 0);
+
+    public void record(long value) {
+        current.incrementAndGet(indexOf(value < 0 ? 0 : value));
+    }
+
+    /**
+     * Drain the current window into a new snapshot. Values recorded concurrently with the drain land either in this
+     * snapshot or in the next one, never in both.
+     *
+     * @return the snapshot of the window just closed
+     */
+    public Snapshot rotate() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = current.getAndSet(i, 0);
+            counts[i] = count;
+            total += count;
+        }
+        Snapshot newSnapshot = new Snapshot(counts, total);
+        this.snapshot = newSnapshot;
+        return newSnapshot;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that maps into the given bucket
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int msb = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index & (SUB_BUCKETS - 1);
+        long lower = (SUB_BUCKETS | sub) << (msb - SUB_BUCKET_BITS);
+        return lower + (1L << (msb - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Immutable bucket counts of one closed window.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        Snapshot(long[] counts, long total) {
+            this.counts = counts;
+            this.total = total;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * @param quantile a value in [0, 1]
+         * @return the upper bound of the bucket holding the given quantile, 0 if the window is empty
+         */
+        public long getValue(double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBoundOf(i);
+                }
+            }
+            return upperBoundOf(counts.length - 1);
+        }
+
+        public long getMedian() {
+            return getValue(0.5);
+        }
+
+        public long get99thPercentile() {
+            return getValue(0.99);
+        }
+
+        public long get999thPercentile() {
+            return getValue(0.999);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{count=" + total + ", p50=" + getMedian() + ", p99=" + get99thPercentile() + ", p999="
+                    + get999thPercentile() + "}";
+        }
+    }
+}
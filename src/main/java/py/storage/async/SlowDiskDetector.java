@@ -0,0 +1,182 @@
+package py.storage.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.NamedThreadFactory;
+import py.exception.StorageException;
+import py.storage.Storage;
+import py.storage.StorageExceptionHandlerChain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects slow disks by comparing the read latency of every tracked storage with its peers.
+ * <p>
+ * Every period all {@link StorageLatencyTracker}s are rotated, and a storage whose p99 read latency exceeds
+ * {@code outlierFactor} times the median p99 of all its peers (and an absolute floor) is an outlier. A storage has to
+ * stay an outlier for {@code confirmRounds} consecutive periods before it is declared degraded, and it recovers as soon
+ * as one period looks normal again. What happens to a degraded storage depends on the {@link Policy}.
+ * <p>
+ * Unlike {@link AsyncIOStat#slowDiskChecker}, this never issues I/O of its own.
+ */
+public class SlowDiskDetector {
+    private static final Logger logger = LoggerFactory.getLogger(SlowDiskDetector.class);
+
+    public enum Policy {
+        /**
+         * only log and report through {@link #isDegraded(Storage)}
+         */
+        REPORT,
+        /**
+         * additionally let readers shed reads away from the degraded storage, e.g.
+         * {@link py.storage.impl.HedgedReadStorage}
+         */
+        SHED,
+        /**
+         * additionally feed the storage into the {@link StorageExceptionHandlerChain} like the native slow disk
+         * checker does through {@link SlowDiskCallback}
+         */
+        REPORT_EXCEPTION
+    }
+
+    private final Map<Storage, StorageLatencyTracker> trackers = new ConcurrentHashMap<>();
+    private final Map<Storage, Integer> outlierRounds = new ConcurrentHashMap<>();
+    private final Map<Storage, Boolean> degraded = new ConcurrentHashMap<>();
+
+    private final Policy policy;
+    private final double outlierFactor;
+    private final long minLatencyUs;
+    private final long minSamples;
+    private final int confirmRounds;
+    private StorageExceptionHandlerChain handlerChain;
+    private ScheduledExecutorService scheduler;
+
+    public SlowDiskDetector(Policy policy, double outlierFactor, long minLatencyUs, long minSamples,
+            int confirmRounds) {
+        this.policy = policy;
+        this.outlierFactor = outlierFactor;
+        this.minLatencyUs = minLatencyUs;
+        this.minSamples = minSamples;
+        this.confirmRounds = confirmRounds;
+    }
+
+    public SlowDiskDetector setHandlerChain(StorageExceptionHandlerChain handlerChain) {
+        this.handlerChain = handlerChain;
+        return this;
+    }
+
+    /**
+     * Get the tracker of the given storage, creating it on first use.
+     */
+    public StorageLatencyTracker track(Storage storage) {
+        return trackers.computeIfAbsent(storage, s -> {
+            StorageLatencyTracker tracker = new StorageLatencyTracker(s);
+            tracker.initMetric();
+            return tracker;
+        });
+    }
+
+    public void untrack(Storage storage) {
+        StorageLatencyTracker tracker = trackers.remove(storage);
+        if (tracker != null) {
+            tracker.releaseMetric();
+        }
+        outlierRounds.remove(storage);
+        degraded.remove(storage);
+    }
+
+    public StorageLatencyTracker getTracker(Storage storage) {
+        return trackers.get(storage);
+    }
+
+    public boolean isDegraded(Storage storage) {
+        return degraded.containsKey(storage);
+    }
+
+    /**
+     * @return true if readers should avoid the given storage when they have an alternative
+     */
+    public boolean shouldShed(Storage storage) {
+        return policy == Policy.SHED && isDegraded(storage);
+    }
+
+    public void start(long period, TimeUnit unit) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("slow-disk-detector-", true));
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                check();
+            } catch (Throwable t) {
+                logger.error("caught an exception when checking slow disks", t);
+            }
+        }, period, period, unit);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Close the current latency window of every storage and re-evaluate which of them are degraded.
+     */
+    void check() {
+        // a copy, so storages tracked meanwhile neither overflow p99s nor get judged against a median without them
+        List<StorageLatencyTracker> all = new ArrayList<>(trackers.values());
+        long[] p99s = new long[all.size()];
+        int sampled = 0;
+        for (StorageLatencyTracker tracker : all) {
+            tracker.rotate();
+            LatencyHistogram.Snapshot snapshot = tracker.getReadSnapshot();
+            if (snapshot.getCount() >= minSamples) {
+                p99s[sampled++] = snapshot.get99thPercentile();
+            }
+        }
+
+        // an outlier needs peers to stand out from
+        if (sampled < 3) {
+            return;
+        }
+
+        Arrays.sort(p99s, 0, sampled);
+        long peerMedian = p99s[sampled / 2];
+        long threshold = Math.max(minLatencyUs, (long) (peerMedian * outlierFactor));
+
+        for (StorageLatencyTracker tracker : all) {
+            Storage storage = tracker.getStorage();
+            LatencyHistogram.Snapshot snapshot = tracker.getReadSnapshot();
+            if (snapshot.getCount() < minSamples) {
+                continue;
+            }
+
+            if (snapshot.get99thPercentile() > threshold) {
+                int rounds = outlierRounds.merge(storage, 1, Integer::sum);
+                if (rounds >= confirmRounds && degraded.putIfAbsent(storage, Boolean.TRUE) == null) {
+                    logger.warn("storage {} is slow, {}, peer median p99 {}us", storage, snapshot, peerMedian);
+                    onDegraded(storage);
+                }
+            } else {
+                outlierRounds.remove(storage);
+                if (degraded.remove(storage) != null) {
+                    logger.warn("storage {} recovered from slow, {}, peer median p99 {}us", storage, snapshot,
+                            peerMedian);
+                }
+            }
+        }
+    }
+
+    private void onDegraded(Storage storage) {
+        if (policy == Policy.REPORT_EXCEPTION && handlerChain != null) {
+            StorageException storageException = new StorageException();
+            storageException.setIoException(true);
+            handlerChain.processException(storage, storageException);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package py.storage.async;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import py.metrics.PYMetricRegistry;
+import py.storage.Storage;
+
+/**
+ * Tracks read and write latencies of one {@link Storage} from the completions of the real I/O it serves, so no
+ * synthetic I/O is needed to tell how a device behaves.
+ * <p>
+ * Latencies are kept in microseconds. Percentiles are computed over the last closed window, see {@link #rotate()}.
+ */
+public class StorageLatencyTracker {
+    public static final String className = "StorageLatencyTracker";
+    private static final String[] TYPES = { "read", "write" };
+    private static final String[] PERCENTILES = { "p50_us", "p99_us", "p999_us" };
+
+    private final Storage storage;
+    private final LatencyHistogram readHistogram = new LatencyHistogram();
+    private final LatencyHistogram writeHistogram = new LatencyHistogram();
+
+    public StorageLatencyTracker(Storage storage) {
+        this.storage = storage;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public void recordRead(long startNanos) {
+        readHistogram.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void recordWrite(long startNanos) {
+        writeHistogram.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Close the current window of both read and write histograms. Should be called periodically by a single thread,
+     * usually {@link SlowDiskDetector}.
+     */
+    public void rotate() {
+        readHistogram.rotate();
+        writeHistogram.rotate();
+    }
+
+    public LatencyHistogram.Snapshot getReadSnapshot() {
+        return readHistogram.getSnapshot();
+    }
+
+    public LatencyHistogram.Snapshot getWriteSnapshot() {
+        return writeHistogram.getSnapshot();
+    }
+
+    /**
+     * Export p50/p99/p999 of reads and writes as gauges named after the device.
+     */
+    public void initMetric() {
+        PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+        String device = Storage.getDeviceName(storage.identifier());
+        registerGauges(registry, device, TYPES[0], readHistogram);
+        registerGauges(registry, device, TYPES[1], writeHistogram);
+    }
+
+    /**
+     * Remove the gauges of {@link #initMetric()}, so they no longer keep the histograms of a storage gone.
+     */
+    public void releaseMetric() {
+        PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+        String device = Storage.getDeviceName(storage.identifier());
+        for (String type : TYPES) {
+            for (String percentile : PERCENTILES) {
+                registry.remove(MetricRegistry.name(className, device, type, percentile));
+            }
+        }
+    }
+
+    private static void registerGauges(PYMetricRegistry registry, String device, String type,
+            LatencyHistogram histogram) {
+        registry.registerInstance(MetricRegistry.name(className, device, type, PERCENTILES[0]),
+                (Gauge<Long>) () -> histogram.getSnapshot().getMedian());
+        registry.registerInstance(MetricRegistry.name(className, device, type, PERCENTILES[1]),
+                (Gauge<Long>) () -> histogram.getSnapshot().get99thPercentile());
+        registry.registerInstance(MetricRegistry.name(className, device, type, PERCENTILES[2]),
+                (Gauge<Long>) () -> histogram.getSnapshot().get999thPercentile());
+    }
+
+    @Override
+    public String toString() {
+        return "StorageLatencyTracker{storage=" + storage + ", read=" + getReadSnapshot() + ", write="
+                + getWriteSnapshot() + "}";
+    }
+}
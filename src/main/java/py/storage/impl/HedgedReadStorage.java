@@ -0,0 +1,245 @@
+package py.storage.impl;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.DirectAlignedBufferAllocator;
+import py.exception.StorageException;
+import py.storage.async.LatencyHistogram;
+import py.storage.async.SlowDiskDetector;
+import py.storage.async.StorageLatencyTracker;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A storage over several {@link MixStorage} replicas holding identical data.
+ * <p>
+ * Reads are sent to the replica with the lowest recent p99 read latency, skipping replicas the
+ * {@link SlowDiskDetector} wants shed. When hedging is enabled and the chosen replica has not answered after its own
+ * p99 (bounded by {@code maxHedgeDelayUs}), the read is re-issued to the next best replica and whichever finishes
+ * first completes the request. Hedged legs read into private aligned buffers, so enabling hedging costs one copy per
+ * read; leave {@code maxHedgeDelayUs} at 0 to only redirect.
+ * <p>
+ * Writes go to every replica and complete when all of them have completed.
+ */
+public class HedgedReadStorage extends AsyncStorage {
+    private static final Logger logger = LoggerFactory.getLogger(HedgedReadStorage.class);
+    private static final int ALIGNMENT = 512;
+
+    private final List<MixStorage> replicas;
+    private final SlowDiskDetector detector;
+    private final Timer timer;
+    private final long maxHedgeDelayUs;
+
+    public HedgedReadStorage(String identifier, List<MixStorage> replicas, SlowDiskDetector detector, Timer timer,
+            long maxHedgeDelayUs) {
+        super(identifier);
+        Validate.notEmpty(replicas);
+        this.replicas = new ArrayList<>(replicas);
+        this.detector = detector;
+        this.timer = timer;
+        this.maxHedgeDelayUs = maxHedgeDelayUs;
+        for (MixStorage replica : replicas) {
+            Validate.isTrue(replica.size() == replicas.get(0).size());
+        }
+    }
+
+    /**
+     * @return replicas from the most to the least preferred one for reading
+     */
+    List<MixStorage> rankReplicas() {
+        List<MixStorage> ranked = new ArrayList<>(replicas);
+        ranked.sort((r1, r2) -> {
+            boolean shed1 = detector.shouldShed(r1.getDelegate()) || r1.isBroken();
+            boolean shed2 = detector.shouldShed(r2.getDelegate()) || r2.isBroken();
+            if (shed1 != shed2) {
+                return shed1 ? 1 : -1;
+            }
+            return Long.compare(readP99(r1), readP99(r2));
+        });
+        return ranked;
+    }
+
+    private long readP99(MixStorage replica) {
+        StorageLatencyTracker tracker = detector.getTracker(replica.getDelegate());
+        if (tracker == null) {
+            return 0;
+        }
+        LatencyHistogram.Snapshot snapshot = tracker.getReadSnapshot();
+        return snapshot.get99thPercentile();
+    }
+
+    @Override
+    public <A> void read(ByteBuffer buffer, long pos, A attachment, CompletionHandler<Integer, ? super A> handler)
+            throws StorageException {
+        List<MixStorage> ranked = rankReplicas();
+        MixStorage primary = ranked.get(0);
+        long hedgeDelayUs = Math.min(maxHedgeDelayUs, readP99(primary));
+        if (ranked.size() == 1 || hedgeDelayUs <= 0) {
+            primary.read(buffer, pos, attachment, handler);
+            return;
+        }
+
+        HedgedRead<A> hedgedRead = new HedgedRead<>(buffer, attachment, handler);
+        hedgedRead.issue(primary, pos);
+        hedgedRead.timeout = timer.newTimeout(t -> {
+            try {
+                hedgedRead.issue(ranked.get(1), pos);
+            } catch (StorageException | RuntimeException e) {
+                logger.warn("can not hedge read at {} to {}", pos, ranked.get(1), e);
+                // the primary may have failed already, waiting for this leg
+                hedgedRead.failIfNoPendingLeg(e);
+            }
+        }, hedgeDelayUs, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public <A> void write(ByteBuffer buffer, long pos, A attachment, CompletionHandler<Integer, ? super A> handler)
+            throws StorageException {
+        if (replicas.size() == 1) {
+            replicas.get(0).write(buffer, pos, attachment, handler);
+            return;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(replicas.size());
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        int length = buffer.remaining();
+        CompletionHandler<Integer, A> replicaHandler = new CompletionHandler<Integer, A>() {
+            @Override
+            public void completed(Integer result, A attachment) {
+                done(attachment);
+            }
+
+            @Override
+            public void failed(Throwable exc, A attachment) {
+                firstFailure.compareAndSet(null, exc);
+                done(attachment);
+            }
+
+            private void done(A attachment) {
+                if (remaining.decrementAndGet() == 0) {
+                    buffer.position(buffer.limit());
+                    if (firstFailure.get() == null) {
+                        handler.completed(length, attachment);
+                    } else {
+                        handler.failed(firstFailure.get(), attachment);
+                    }
+                }
+            }
+        };
+
+        for (MixStorage replica : replicas) {
+            try {
+                replica.write(buffer.duplicate(), pos, attachment, replicaHandler);
+            } catch (StorageException e) {
+                replicaHandler.failed(e, attachment);
+            }
+        }
+    }
+
+    /**
+     * One read racing on up to two replicas. The leg that finishes first copies its data into the caller's buffer.
+     */
+    private class HedgedRead<A> {
+        private final ByteBuffer target;
+        private final A attachment;
+        private final CompletionHandler<Integer, ? super A> handler;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private final AtomicInteger pendingLegs = new AtomicInteger(0);
+        private volatile Timeout timeout;
+
+        HedgedRead(ByteBuffer target, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            this.target = target;
+            this.attachment = attachment;
+            this.handler = handler;
+        }
+
+        void issue(MixStorage replica, long pos) throws StorageException {
+            if (done.get()) {
+                return;
+            }
+            ByteBuffer legBuffer = DirectAlignedBufferAllocator.allocateAlignedByteBuffer(target.remaining(),
+                    ALIGNMENT);
+            pendingLegs.incrementAndGet();
+            try {
+                readLeg(replica, pos, legBuffer);
+            } catch (StorageException | RuntimeException e) {
+                pendingLegs.decrementAndGet();
+                throw e;
+            }
+        }
+
+        void failIfNoPendingLeg(Throwable exc) {
+            if (pendingLegs.get() == 0 && done.compareAndSet(false, true)) {
+                handler.failed(exc, attachment);
+            }
+        }
+
+        private void readLeg(MixStorage replica, long pos, ByteBuffer legBuffer) throws StorageException {
+            replica.read(legBuffer, pos, legBuffer, new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer result, ByteBuffer leg) {
+                    pendingLegs.decrementAndGet();
+                    if (done.compareAndSet(false, true)) {
+                        cancelHedge();
+                        leg.flip();
+                        target.put(leg);
+                        handler.completed(result, attachment);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, ByteBuffer leg) {
+                    // only fail the request if no other leg can still complete it
+                    if (pendingLegs.decrementAndGet() == 0 && (timeout == null || timeout.isExpired())
+                            && done.compareAndSet(false, true)) {
+                        handler.failed(exc, attachment);
+                    }
+                }
+            });
+        }
+
+        private void cancelHedge() {
+            Timeout hedge = timeout;
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void open() throws StorageException {
+        for (MixStorage replica : replicas) {
+            replica.open();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        for (MixStorage replica : replicas) {
+            if (!replica.isClosed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return replicas.get(0).size();
+    }
+
+    @Override
+    public String toString() {
+        return "HedgedReadStorage[" + replicas + "]";
+    }
+}
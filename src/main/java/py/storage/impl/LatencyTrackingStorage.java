@@ -0,0 +1,104 @@
+package py.storage.impl;
+
+import py.exception.StorageException;
+import py.storage.async.StorageLatencyTracker;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * An {@link AsyncStorage} decorator which records the latency of every read and write into a
+ * {@link StorageLatencyTracker}.
+ */
+public class LatencyTrackingStorage extends AsyncStorage {
+    private final AsyncStorage delegate;
+    private final StorageLatencyTracker tracker;
+
+    public LatencyTrackingStorage(AsyncStorage delegate, StorageLatencyTracker tracker) {
+        super(delegate.identifier());
+        this.delegate = delegate;
+        this.tracker = tracker;
+        this.ioDepth = delegate.getIoDepth();
+    }
+
+    public AsyncStorage getDelegate() {
+        return delegate;
+    }
+
+    public StorageLatencyTracker getTracker() {
+        return tracker;
+    }
+
+    @Override
+    public <A> void read(ByteBuffer buffer, long pos, A attachment, CompletionHandler<Integer, ? super A> handler)
+            throws StorageException {
+        final long startNanos = System.nanoTime();
+        delegate.read(buffer, pos, attachment, new CompletionHandler<Integer, A>() {
+            @Override
+            public void completed(Integer result, A attachment) {
+                tracker.recordRead(startNanos);
+                handler.completed(result, attachment);
+            }
+
+            @Override
+            public void failed(Throwable exc, A attachment) {
+                tracker.recordRead(startNanos);
+                handler.failed(exc, attachment);
+            }
+        });
+    }
+
+    @Override
+    public <A> void write(ByteBuffer buffer, long pos, A attachment, CompletionHandler<Integer, ? super A> handler)
+            throws StorageException {
+        final long startNanos = System.nanoTime();
+        delegate.write(buffer, pos, attachment, new CompletionHandler<Integer, A>() {
+            @Override
+            public void completed(Integer result, A attachment) {
+                tracker.recordWrite(startNanos);
+                handler.completed(result, attachment);
+            }
+
+            @Override
+            public void failed(Throwable exc, A attachment) {
+                tracker.recordWrite(startNanos);
+                handler.failed(exc, attachment);
+            }
+        });
+    }
+
+    @Override
+    public void open() throws StorageException {
+        delegate.open();
+    }
+
+    @Override
+    public void close() throws StorageException {
+        delegate.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public boolean isBroken() {
+        return delegate.isBroken();
+    }
+
+    @Override
+    public void setBroken(boolean broken) {
+        delegate.setBroken(broken);
+    }
+
+    @Override
+    public long size() {
+        return delegate.size();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyTrackingStorage[" + delegate.toString() + "]";
+    }
+}
@@ -0,0 +1,271 @@
+package py.storage.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.exception.StorageException;
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+import py.metrics.PYNullMetric;
+import py.storage.PriorityStorage;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link PriorityStorage} which schedules requests to its delegate with one queue per {@link Priority}.
+ * <p>
+ * At most {@link #getIoDepth()} requests are in flight on the delegate. Free slots are handed out by weighted round
+ * robin over the non-empty queues: each round a queue may dispatch as many requests as its weight. To protect lower
+ * classes from starvation, a request which has been queued longer than {@code maxWaitMs} is dispatched ahead of its
+ * turn.
+ * <p>
+ * Foreground user I/O is expected to use {@link Priority#HIGH}, rebuild and migration copies {@link Priority#MIDDLE}
+ * and scrubbing {@link Priority#LOW}.
+ */
+public class ScheduledPriorityStorage extends PriorityStorage {
+    private static final Logger logger = LoggerFactory.getLogger(ScheduledPriorityStorage.class);
+    public static final String className = "ScheduledPriorityStorage";
+
+    private final AsyncStorage delegate;
+    private final int[] weights;
+    private final int[] credits;
+    private final long maxWaitNanos;
+
+    @SuppressWarnings("unchecked")
+    private final Queue<IORequest<?>>[] queues = new Queue[Priority.values().length];
+    private final AtomicInteger inflight = new AtomicInteger(0);
+    // work-in-progress counter, makes sure only one thread dispatches at a time without blocking the others
+    private final AtomicInteger wip = new AtomicInteger(0);
+
+    private final PYMetric[] counterQueueDepth = new PYMetric[Priority.values().length];
+    private final PYMetric[] timerQueueWait = new PYMetric[Priority.values().length];
+    private final PYMetric[] timerService = new PYMetric[Priority.values().length];
+
+    /**
+     * @param weights   dispatch weight of each priority, indexed by {@link Priority#getVal()}
+     * @param maxWaitMs the longest a request may wait before it is dispatched regardless of weights
+     */
+    public ScheduledPriorityStorage(AsyncStorage delegate, int ioDepth, int[] weights, long maxWaitMs) {
+        super(delegate.identifier());
+        Validate.isTrue(ioDepth > 0);
+        Validate.isTrue(weights.length == Priority.values().length);
+        for (int weight : weights) {
+            Validate.isTrue(weight > 0);
+        }
+        this.delegate = delegate;
+        this.ioDepth = ioDepth;
+        this.weights = weights.clone();
+        this.credits = weights.clone();
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+            counterQueueDepth[i] = PYNullMetric.defaultNullMetric;
+            timerQueueWait[i] = PYNullMetric.defaultNullMetric;
+            timerService[i] = PYNullMetric.defaultNullMetric;
+        }
+    }
+
+    public ScheduledPriorityStorage(AsyncStorage delegate, int ioDepth) {
+        this(delegate, ioDepth, new int[] { 16, 4, 1 }, 1000);
+    }
+
+    public void initMetric() {
+        PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+        String device = getDeviceName(identifier);
+        for (Priority priority : Priority.values()) {
+            int i = priority.getVal();
+            String name = priority.name().toLowerCase();
+            counterQueueDepth[i] = registry.register(
+                    MetricRegistry.name(className, device, "counter_queue_depth", name), Counter.class);
+            timerQueueWait[i] = registry
+                    .register(MetricRegistry.name(className, device, "timer_queue_wait", name), Timer.class);
+            timerService[i] = registry
+                    .register(MetricRegistry.name(className, device, "timer_service", name), Timer.class);
+        }
+    }
+
+    @Override
+    public <A> void read(ByteBuffer buffer, long pos, A attachment, CompletionHandler<Integer, ? super A> handler,
+            Priority priority) throws StorageException {
+        enqueue(new IORequest<>(true, buffer, pos, attachment, handler, priority));
+    }
+
+    @Override
+    public <A> void write(ByteBuffer buffer, long pos, A attachment, CompletionHandler<Integer, ? super A> handler,
+            Priority priority) throws StorageException {
+        enqueue(new IORequest<>(false, buffer, pos, attachment, handler, priority));
+    }
+
+    private void enqueue(IORequest<?> request) {
+        int i = request.priority.getVal();
+        queues[i].offer(request);
+        counterQueueDepth[i].incCounter();
+        dispatch();
+    }
+
+    public int getQueueDepth(Priority priority) {
+        return queues[priority.getVal()].size();
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    /**
+     * Move requests from the queues to the delegate while there are free slots. Called on every submission and
+     * completion; concurrent callers just leave a mark for the dispatching thread to loop once more.
+     */
+    private void dispatch() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            while (inflight.get() < ioDepth) {
+                IORequest<?> request = pollNext();
+                if (request == null) {
+                    break;
+                }
+                inflight.incrementAndGet();
+                request.submit();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private IORequest<?> pollNext() {
+        // starvation protection, the lowest classes are the ones at risk
+        long now = System.nanoTime();
+        for (int i = queues.length - 1; i > 0; i--) {
+            IORequest<?> head = queues[i].peek();
+            if (head != null && now - head.enqueueTime > maxWaitNanos) {
+                return queues[i].poll();
+            }
+        }
+
+        for (int round = 0; round < 2; round++) {
+            boolean anyQueued = false;
+            for (int i = 0; i < queues.length; i++) {
+                if (queues[i].isEmpty()) {
+                    continue;
+                }
+                anyQueued = true;
+                if (credits[i] > 0) {
+                    IORequest<?> request = queues[i].poll();
+                    if (request != null) {
+                        credits[i]--;
+                        return request;
+                    }
+                }
+            }
+            if (!anyQueued) {
+                return null;
+            }
+            // every non-empty queue ran out of credits, start a new round
+            System.arraycopy(weights, 0, credits, 0, credits.length);
+        }
+        return null;
+    }
+
+    private void onDone(IORequest<?> request) {
+        int i = request.priority.getVal();
+        timerService[i].update(System.nanoTime() - request.dispatchTime, TimeUnit.NANOSECONDS);
+        inflight.decrementAndGet();
+        dispatch();
+    }
+
+    private class IORequest<A> implements CompletionHandler<Integer, A> {
+        private final boolean isRead;
+        private final ByteBuffer buffer;
+        private final long pos;
+        private final A attachment;
+        private final CompletionHandler<Integer, ? super A> handler;
+        private final Priority priority;
+        private final long enqueueTime;
+        private long dispatchTime;
+
+        IORequest(boolean isRead, ByteBuffer buffer, long pos, A attachment,
+                CompletionHandler<Integer, ? super A> handler, Priority priority) {
+            this.isRead = isRead;
+            this.buffer = buffer;
+            this.pos = pos;
+            this.attachment = attachment;
+            this.handler = handler;
+            this.priority = priority;
+            this.enqueueTime = System.nanoTime();
+        }
+
+        void submit() {
+            int i = priority.getVal();
+            dispatchTime = System.nanoTime();
+            counterQueueDepth[i].decCounter();
+            timerQueueWait[i].update(dispatchTime - enqueueTime, TimeUnit.NANOSECONDS);
+            try {
+                if (isRead) {
+                    delegate.read(buffer, pos, attachment, this);
+                } else {
+                    delegate.write(buffer, pos, attachment, this);
+                }
+            } catch (Throwable t) {
+                logger.warn("can not submit {} at {} to {}", isRead ? "read" : "write", pos, delegate, t);
+                failed(t, attachment);
+            }
+        }
+
+        @Override
+        public void completed(Integer result, A attachment) {
+            onDone(this);
+            handler.completed(result, attachment);
+        }
+
+        @Override
+        public void failed(Throwable exc, A attachment) {
+            onDone(this);
+            handler.failed(exc, attachment);
+        }
+    }
+
+    @Override
+    public void open() throws StorageException {
+        delegate.open();
+    }
+
+    @Override
+    public void close() throws StorageException {
+        delegate.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public boolean isBroken() {
+        return delegate.isBroken();
+    }
+
+    @Override
+    public void setBroken(boolean broken) {
+        delegate.setBroken(broken);
+    }
+
+    @Override
+    public long size() {
+        return delegate.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduledPriorityStorage[" + delegate.toString() + "]";
+    }
+}
@@ -67,6 +67,28 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Given a filename, reads the file into the given buffer, which may be reused among calls.
+     *
+     * @param fileName
+     *            The path of the filename to read. Should be absolute.
+     * @param buffer
+     *            The buffer to read into, at most its length of bytes are read.
+     * @return The number of bytes read
+     * @throws IOException
+     *             If there's an IO exception while trying to read the file
+     */
+    public int readToBuffer(String fileName, byte[] buffer) throws IOException {
+        try (InputStream inputStream = new FileInputStream(fileName)) {
+            int offset = 0;
+            int length;
+            while (offset < buffer.length && (length = inputStream.read(buffer, offset, buffer.length - offset)) > 0) {
+                offset += length;
+            }
+            return offset;
+        }
+    }
+
     /**
      * Given an InputStream, reads the entire file into a string.
      *
@@ -0,0 +1,224 @@
+package py.system.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans ''/proc'' incrementally.
+ * <p>
+ * Info which only changes when a process execs (command line, name and owner uid) is read once and cached by pid,
+ * start time and the target of ''/proc/[pid]/exe'', so neither a reused pid nor an exec is mistaken for the old
+ * process. An empty command line, as a process has right after fork, is read again on every scan. Later scans read
+ * ''/proc/[pid]/stat'' into a reused buffer, and the working directory and open files of the processes accepted by the
+ * filter. ''/etc/passwd'' is parsed again only when it is modified.
+ */
+class IncrementalProcScanner {
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalProcScanner.class);
+
+    private static final String PASSWD_FILE = "/etc/passwd";
+    private static final int STAT_BUFFER_SIZE = 4096;
+
+    // indexes of fields in ''/proc/[pid]/stat'', counted from the state right after the name in parens
+    private static final int STAT_PPID_INDEX = 1;
+    private static final int STAT_NUM_THREADS_INDEX = 17;
+    private static final int STAT_START_TIME_INDEX = 19;
+
+    private final FileUtils fileUtils;
+    private final Map<Integer, CachedProcess> cache = new HashMap<>();
+    private final byte[] statBuffer = new byte[STAT_BUFFER_SIZE];
+
+    private HashMap uids = new HashMap();
+    private long passwdModifiedTime = -1;
+    private long generation = 0;
+
+    // fields of the stat file parsed last time
+    private int parentPid;
+    private int numThreads;
+    private long startTime;
+
+    IncrementalProcScanner(FileUtils fileUtils) {
+        this.fileUtils = fileUtils;
+    }
+
+    /**
+     * @param filter
+     *            selects processes to return, or null to return all
+     */
+    synchronized ProcessInfo[] scan(ProcessFilter filter) {
+        generation++;
+        refreshUids();
+
+        List<ProcessInfo> processTable = new ArrayList<>();
+        final String[] pids = fileUtils.pidsFromProcFilesystem();
+        for (int i = 0; i < pids.length; i++) {
+            ProcessInfo processInfo = sample(Integer.parseInt(pids[i]), filter);
+            if (processInfo != null) {
+                processTable.add(processInfo);
+            }
+        }
+
+        // forget processes which have exited
+        Iterator<CachedProcess> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().generation != generation) {
+                iterator.remove();
+            }
+        }
+        return processTable.toArray(new ProcessInfo[processTable.size()]);
+    }
+
+    synchronized ProcessInfo processInfo(int pid) {
+        refreshUids();
+        return sample(pid, null);
+    }
+
+    private ProcessInfo sample(int pid, ProcessFilter filter) {
+        try {
+            parseStat(pid);
+            String exe = exePath(pid);
+            CachedProcess process = cache.get(pid);
+            if (process == null || process.startTime != startTime || !process.exe.equals(exe)) {
+                process = load(pid, startTime, exe);
+                cache.put(pid, process);
+            } else if (process.command.isEmpty()) {
+                process.command = readCommand(pid);
+            }
+            process.generation = generation;
+
+            if (filter != null && !filter.accept(pid, process.name, process.command)) {
+                return null;
+            }
+            String cwd = fileUtils.realPath("/proc/" + pid + "/cwd");
+            int nFDs = fileUtils.numberOfSubFiles("/proc/" + pid + "/fd");
+            return new ProcessInfo(pid, parentPid, process.command, process.name, (String) uids.get(process.uid),
+                    cwd, nFDs, numThreads);
+        } catch (ParseException pe) {
+            // Skip this process, but log a warning for diagnosis.
+            logger.warn("Caught an exception when parse process info of PID:{} from file system", pid, pe);
+        } catch (IOException ioe) {
+            // process probably died since we got the process list
+            logger.info("Caught an exception when parse process info of PID:{} from file system. detail: {}", pid,
+                    ioe);
+        }
+        return null;
+    }
+
+    private CachedProcess load(int pid, long startTime, String exe) throws IOException {
+        String status = fileUtils.slurp("/proc/" + pid + "/status");
+        return new CachedProcess(startTime, exe, readCommand(pid),
+                LinuxProcessInfoParser.getFirstMatch(LinuxProcessInfoParser.STATUS_NAME_MATCHER, status),
+                LinuxProcessInfoParser.getFirstMatch(LinuxProcessInfoParser.STATUS_UID_MATCHER, status));
+    }
+
+    private String readCommand(int pid) throws IOException {
+        return LinuxProcessInfoParser.trim(fileUtils.slurp("/proc/" + pid + "/cmdline"));
+    }
+
+    /**
+     * @return the executable of the process, or an empty string if it is unknown, e.g. for kernel threads or processes
+     *         of other users
+     */
+    private String exePath(int pid) {
+        try {
+            return fileUtils.realPath("/proc/" + pid + "/exe");
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Parse the fields we need from the stat file of the given process without building any string.
+     */
+    private void parseStat(int pid) throws IOException, ParseException {
+        int length = fileUtils.readToBuffer("/proc/" + pid + "/stat", statBuffer);
+        if (length == statBuffer.length) {
+            throw new ParseException("Stat of " + pid + " is longer than " + STAT_BUFFER_SIZE);
+        }
+
+        int closeParen = length - 1;
+        while (closeParen >= 0 && statBuffer[closeParen] != ')') {
+            closeParen--;
+        }
+        if (closeParen < 0 || closeParen > length - 2) {
+            throw new ParseException("Stat '" + new String(statBuffer, 0, length)
+                    + "' does not include expected parens around process name");
+        }
+
+        int fieldIndex = 0;
+        int position = closeParen + 2;
+        boolean parentPidFound = false;
+        boolean numThreadsFound = false;
+        while (position < length && fieldIndex <= STAT_START_TIME_INDEX) {
+            int end = position;
+            while (end < length && statBuffer[end] != ' ' && statBuffer[end] != '\n') {
+                end++;
+            }
+            if (fieldIndex == STAT_PPID_INDEX) {
+                parentPid = (int) parseLong(position, end);
+                parentPidFound = true;
+            } else if (fieldIndex == STAT_NUM_THREADS_INDEX) {
+                numThreads = (int) parseLong(position, end);
+                numThreadsFound = true;
+            } else if (fieldIndex == STAT_START_TIME_INDEX) {
+                startTime = parseLong(position, end);
+                return;
+            }
+            fieldIndex++;
+            position = end + 1;
+        }
+
+        if (!parentPidFound || !numThreadsFound) {
+            throw new ParseException("Stat '" + new String(statBuffer, 0, length)
+                    + "' contains fewer elements than expected");
+        }
+        // kernels too old to report the start time, the pid alone identifies a process then
+        startTime = 0;
+    }
+
+    private long parseLong(int start, int end) throws ParseException {
+        boolean negative = start < end && statBuffer[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            int digit = statBuffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ParseException("Unable to parse stat field '" + new String(statBuffer, start, end - start)
+                        + "'");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private void refreshUids() {
+        long modifiedTime = new File(PASSWD_FILE).lastModified();
+        if (modifiedTime != passwdModifiedTime) {
+            uids = new UnixPasswdParser().parse();
+            passwdModifiedTime = modifiedTime;
+        }
+    }
+
+    private static class CachedProcess {
+        private final long startTime;
+        private final String exe;
+        private final String name;
+        private final String uid;
+        private String command;
+        private long generation;
+
+        CachedProcess(long startTime, String exe, String command, String name, String uid) {
+            this.startTime = startTime;
+            this.exe = exe;
+            this.command = command;
+            this.name = name;
+            this.uid = uid;
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package py.system.monitor;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -11,7 +9,7 @@ import org.slf4j.LoggerFactory;
  * Instance of this class load info of linux processes to memory for pengyun service process management.
  * <p>
  * In linux, process info stored in directory ''/proc/[pid]'', we load all these files content in memory by specific
- * pattern.
+ * pattern. Static info of processes is cached by {@link IncrementalProcScanner}.
  * 
  * @author zjm
  */
@@ -29,13 +27,15 @@ public class LinuxMonitor implements Monitor {
     private static final Pattern DISTRIBUTION = Pattern.compile("DISTRIB_DESCRIPTION=\"(.*)\"", Pattern.MULTILINE);
 
     private FileUtils fileUtils;
+    private final IncrementalProcScanner scanner;
 
     LinuxMonitor(FileUtils fileUtils) {
         this.fileUtils = fileUtils;
+        this.scanner = new IncrementalProcScanner(fileUtils);
     }
 
     public LinuxMonitor() {
-        fileUtils = new FileUtils();
+        this(new FileUtils());
     }
 
     @Override
@@ -55,15 +55,15 @@ public class LinuxMonitor implements Monitor {
 
     @Override
     public ProcessInfo[] processTable() {
-        ArrayList<ProcessInfo> processTable = new ArrayList<>();
-        final String[] pids = fileUtils.pidsFromProcFilesystem();
-        for (int i = 0; i < pids.length; i++) {
-            ProcessInfo processInfo = processInfo(Integer.valueOf(pids[i]));
+        return scanner.scan(null);
+    }
 
-            if (processInfo != null)
-                processTable.add(processInfo);
-        }
-        return processTable.toArray(new ProcessInfo[processTable.size()]);
+    /**
+     * Get info of the processes accepted by the given filter. Info which does not change during the life of a process
+     * is cached among calls, so sampling a few processes frequently is cheap.
+     */
+    public ProcessInfo[] processTable(ProcessFilter filter) {
+        return scanner.scan(filter);
     }
 
     @Override
@@ -78,25 +78,6 @@ public class LinuxMonitor implements Monitor {
 
     @Override
     public ProcessInfo processInfo(int pid) {
-        try {
-            String stat = fileUtils.slurp("/proc/" + pid + "/stat");
-            String status = fileUtils.slurp("/proc/" + pid + "/status");
-            String cmdline = fileUtils.slurp("/proc/" + pid + "/cmdline");
-            String cwd = fileUtils.realPath("/proc/" + pid + "/cwd");
-            int nFDs = fileUtils.numberOfSubFiles("/proc/" + pid + "/fd");
-            int nTasks = fileUtils.numberOfSubFiles("/proc/" + pid + "/task");
-            UnixPasswdParser passwdParser = new UnixPasswdParser();
-            final LinuxProcessInfoParser parser = new LinuxProcessInfoParser(stat, status, cmdline,
-                    passwdParser.parse(), cwd, nFDs, nTasks);
-            return parser.parse();
-        } catch (ParseException pe) {
-            // Skip this process, but log a warning for diagnosis.
-            logger.warn("Caught an exception when parse process info of PID:{} from file system", pid, pe);
-        } catch (IOException ioe) {
-            // process probably died since we got the process list
-            logger.info("Caught an exception when parse process info of PID:{} from file system. detail: {}", pid, ioe);
-        }
-
-        return null;
+        return scanner.processInfo(pid);
     }
 }
@@ -13,8 +13,8 @@ class LinuxProcessInfoParser {
     private final int nFDs;
     private final int nTasks;
 
-    private static final Pattern STATUS_NAME_MATCHER = Pattern.compile("Name:\\s+(\\w+)", Pattern.MULTILINE);
-    private static final Pattern STATUS_UID_MATCHER = Pattern.compile("Uid:\\s+(\\d+)\\s.*", Pattern.MULTILINE);
+    static final Pattern STATUS_NAME_MATCHER = Pattern.compile("Name:\\s+(\\w+)", Pattern.MULTILINE);
+    static final Pattern STATUS_UID_MATCHER = Pattern.compile("Uid:\\s+(\\d+)\\s.*", Pattern.MULTILINE);
 
     public LinuxProcessInfoParser(String stat, String status, String cmdline, HashMap uids, String cwd, int nFDs,
             int nTasks) {
@@ -55,11 +55,11 @@ class LinuxProcessInfoParser {
                 (String) uids.get(getFirstMatch(STATUS_UID_MATCHER, status)), cwd, nFDs, nTasks);
     }
 
-    private String trim(String cmdline) {
+    static String trim(String cmdline) {
         return cmdline.replace('\000', ' ').replace('\n', ' ');
     }
 
-    public String getFirstMatch(Pattern pattern, String string) {
+    public static String getFirstMatch(Pattern pattern, String string) {
         try {
             Matcher matcher = pattern.matcher(string);
             matcher.find();
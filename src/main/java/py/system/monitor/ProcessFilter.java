@@ -0,0 +1,18 @@
+package py.system.monitor;
+
+/**
+ * Selects the processes to sample in {@link LinuxMonitor#processTable(ProcessFilter)}. It is checked before the
+ * dynamic info of a process is read, so processes not accepted cost only a read of their stat file.
+ */
+public interface ProcessFilter {
+    /**
+     * @param pid
+     *            id of the process
+     * @param name
+     *            name of the process, like {@link ProcessInfo#getName()}
+     * @param command
+     *            command line of the process, like {@link ProcessInfo#getCommand()}
+     * @return true if the process should be sampled
+     */
+    public boolean accept(int pid, String name, String command);
+}
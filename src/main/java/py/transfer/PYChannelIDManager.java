@@ -1,50 +1,211 @@
 package py.transfer;
 
 import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
+import py.metrics.PYMetric;
+import py.metrics.PYMetricRegistry;
+import py.metrics.PYNullMetric;
+
+/**
+ * Assigns ids to channels, so that responses can be routed back to the channel a request came from.
+ * <p>
+ * Channels live in a fixed array of slots. An id is made of the index of its slot in the low bits and the generation
+ * of the slot in the high bits, which is bumped every time the slot is reused, so a stale id of a closed channel never
+ * finds the channel which took over its slot. Looking up a channel by id is a single volatile read, and the id of a
+ * channel is kept in a channel attribute. Free slots are kept in a lock-free stack.
+ */
 public class PYChannelIDManager {
+    private static final Logger logger = LoggerFactory.getLogger(PYChannelIDManager.class);
+    private static final AttributeKey<Integer> CHANNEL_ID = AttributeKey.valueOf(PYChannelIDManager.class, "id");
+    private static final int EMPTY = -1;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int slotBits;
+    private final int slotMask;
+    private final int generationMask;
+    private final int[] generations;
+
+    // free slot stack: next slot of each free slot, and the head in the low 32 bits tagged by a counter in the high
+    // 32 bits to avoid ABA
+    private final int[] nextFree;
+    private final AtomicLong freeHead = new AtomicLong();
+
+    private final AtomicInteger occupied = new AtomicInteger(0);
+    private PYMetric counterExhausted = PYNullMetric.defaultNullMetric;
 
-    private BiMap<Integer,Channel> biMapIDChannel ;
-    private AtomicInteger atomic ;
-    
     public PYChannelIDManager(int size) {
-        int initialCapacity = 128;
-        if(size>0 && size<2048)
-            initialCapacity = size;
-        
-        biMapIDChannel = HashBiMap.create(initialCapacity);
-        atomic = new AtomicInteger(0);
-    }
-    
-    public BiMap<Integer,Channel> getMapIDChannel()
-    {
-        return biMapIDChannel; 
-    }
-    
+        int capacity = 128;
+        if (size > 0 && size < 2048) {
+            capacity = size;
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        this.slotBits = Math.max(bits, 1);
+        this.slotMask = (1 << slotBits) - 1;
+        // keep ids positive
+        this.generationMask = (1 << (31 - slotBits)) - 1;
+
+        int slotCount = 1 << slotBits;
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.generations = new int[slotCount];
+        this.nextFree = new int[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            nextFree[i] = i + 1 < slotCount ? i + 1 : EMPTY;
+        }
+        freeHead.set(0);
+    }
+
+    public void initMetric(String name) {
+        PYMetricRegistry registry = PYMetricRegistry.getMetricRegistry();
+        String className = getClass().getSimpleName();
+        registry.registerInstance(MetricRegistry.name(className, name, "gauge_occupied"),
+                (Gauge<Integer>) occupied::get);
+        registry.registerInstance(MetricRegistry.name(className, name, "gauge_capacity"),
+                (Gauge<Integer>) slots::length);
+        counterExhausted = registry.register(MetricRegistry.name(className, name, "counter_exhausted"),
+                Counter.class);
+    }
+
+    /**
+     * @return a snapshot of the id to channel map
+     */
+    public BiMap<Integer, Channel> getMapIDChannel() {
+        BiMap<Integer, Channel> snapshot = HashBiMap.create(occupied.get());
+        for (int i = 0; i < slots.length(); i++) {
+            Entry entry = slots.get(i);
+            if (entry != null) {
+                snapshot.put(entry.id, entry.channel);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Wait-free lookup of the channel of the given id.
+     *
+     * @return the channel, or null if it has been removed
+     */
     public Channel getChannel(int channelid) {
-        return biMapIDChannel.get(channelid);
+        Entry entry = slots.get(channelid & slotMask);
+        return entry != null && entry.id == channelid ? entry.channel : null;
     }
 
     public Integer getId(Channel channel) {
-        return biMapIDChannel.inverse().get(channel);
+        return channel.attr(CHANNEL_ID).get();
     }
 
-    synchronized public void addChannel(Channel channel) {
-        if (biMapIDChannel.inverse().get(channel) != null)
-            return;
-        
-        biMapIDChannel.put(atomic.getAndIncrement(), channel);
+    public int getOccupiedCount() {
+        return occupied.get();
     }
 
-    synchronized public Integer delChannel(Channel channel) {
-        return biMapIDChannel.inverse().remove(channel);
+    /**
+     * @return the id of the channel, or null if all ids are in use
+     */
+    public Integer addChannel(Channel channel) {
+        Integer existing = channel.attr(CHANNEL_ID).get();
+        if (existing != null) {
+            return existing;
+        }
+
+        int slot = popFree();
+        if (slot == EMPTY) {
+            logger.error("no id is available for channel {}, {} channels are registered", channel, occupied.get());
+            counterExhausted.incCounter();
+            return null;
+        }
+        int generation = (generations[slot] + 1) & generationMask;
+        generations[slot] = generation;
+        int id = (generation << slotBits) | slot;
+        Entry entry = new Entry(id, channel);
+        slots.set(slot, entry);
+
+        existing = channel.attr(CHANNEL_ID).setIfAbsent(id);
+        if (existing != null) {
+            // the channel was added by another thread at the same time
+            slots.compareAndSet(slot, entry, null);
+            pushFree(slot);
+            return existing;
+        }
+        occupied.incrementAndGet();
+        return id;
+    }
+
+    public Integer delChannel(Channel channel) {
+        Integer id = channel.attr(CHANNEL_ID).getAndSet(null);
+        if (id == null) {
+            return null;
+        }
+        release(id);
+        return id;
     }
 
-    synchronized Channel delChannel(Integer id) {
-        return biMapIDChannel.remove(id);
+    Channel delChannel(Integer id) {
+        int slot = id & slotMask;
+        Entry entry = slots.get(slot);
+        if (entry == null || entry.id != id) {
+            return null;
+        }
+        if (entry.channel.attr(CHANNEL_ID).compareAndSet(id, null)) {
+            release(id);
+            return entry.channel;
+        }
+        return null;
+    }
+
+    private void release(int id) {
+        int slot = id & slotMask;
+        Entry entry = slots.get(slot);
+        if (entry != null && entry.id == id && slots.compareAndSet(slot, entry, null)) {
+            occupied.decrementAndGet();
+            pushFree(slot);
+        }
+    }
+
+    private int popFree() {
+        while (true) {
+            long head = freeHead.get();
+            int slot = (int) head;
+            if (slot == EMPTY) {
+                return EMPTY;
+            }
+            long newHead = (((head >>> 32) + 1) << 32) | (nextFree[slot] & 0xFFFFFFFFL);
+            if (freeHead.compareAndSet(head, newHead)) {
+                return slot;
+            }
+        }
+    }
+
+    private void pushFree(int slot) {
+        while (true) {
+            long head = freeHead.get();
+            nextFree[slot] = (int) head;
+            long newHead = (((head >>> 32) + 1) << 32) | (slot & 0xFFFFFFFFL);
+            if (freeHead.compareAndSet(head, newHead)) {
+                return;
+            }
+        }
+    }
+
+    private static class Entry {
+        private final int id;
+        private final Channel channel;
+
+        Entry(int id, Channel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
     }
 }
@@ -0,0 +1,108 @@
+package py.transfer;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+
+/**
+ * A lock-free queue of requests between the event loop of {@link PYIOTcpServer} and the threads handling requests.
+ * <p>
+ * Instead of blocking the event loop when handlers fall behind, the queue applies backpressure: once it holds
+ * {@code highWaterMark} requests, the channel offering a request stops reading from its socket, and all stopped channels
+ * read again once handlers have drained the queue to {@code lowWaterMark}.
+ * <p>
+ * Bodies of requests taken from this queue are slices of the inbound buffers, the taker must release them.
+ */
+public class PYIORequestQueue {
+    private static final Logger logger = LoggerFactory.getLogger(PYIORequestQueue.class);
+
+    private final Queue<PYIOMessage> queue = new ConcurrentLinkedQueue<>();
+    private final Semaphore available = new Semaphore(0);
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final Set<Channel> pausedChannels = ConcurrentHashMap.newKeySet();
+    private final int highWaterMark;
+    private final int lowWaterMark;
+
+    public PYIORequestQueue(int highWaterMark, int lowWaterMark) {
+        Validate.isTrue(highWaterMark > 0 && lowWaterMark >= 0 && lowWaterMark < highWaterMark);
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    /**
+     * Called in the event loop of the given channel.
+     */
+    void offer(PYIOMessage message, Channel channel) {
+        queue.offer(message);
+        available.release();
+        if (size.incrementAndGet() >= highWaterMark && channel.config().isAutoRead()) {
+            logger.debug("request queue is full, stop reading from {}", channel);
+            channel.config().setAutoRead(false);
+            pausedChannels.add(channel);
+            // the queue may have been drained before the channel was added
+            if (size.get() <= lowWaterMark) {
+                resumeChannels();
+            }
+        }
+    }
+
+    /**
+     * @return the head of the queue, or null if the queue is empty
+     */
+    public PYIOMessage poll() {
+        if (!available.tryAcquire()) {
+            return null;
+        }
+        return taken(queue.poll());
+    }
+
+    /**
+     * Wait until a request is available.
+     */
+    public PYIOMessage take() throws InterruptedException {
+        available.acquire();
+        return taken(queue.poll());
+    }
+
+    /**
+     * @return the head of the queue, or null if no request arrives in the given time
+     */
+    public PYIOMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!available.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return taken(queue.poll());
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private PYIOMessage taken(PYIOMessage message) {
+        // a permit is released only after the message is in the queue
+        Validate.notNull(message);
+        if (size.decrementAndGet() <= lowWaterMark && !pausedChannels.isEmpty()) {
+            resumeChannels();
+        }
+        return message;
+    }
+
+    private void resumeChannels() {
+        for (Channel channel : pausedChannels) {
+            if (pausedChannels.remove(channel)) {
+                logger.debug("request queue is drained, resume reading from {}", channel);
+                channel.config().setAutoRead(true);
+            }
+        }
+    }
+}
@@ -8,6 +8,8 @@ import org.slf4j.LoggerFactory;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
@@ -18,14 +20,26 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.MessageToMessageEncoder;
 
+/**
+ * Server receiving IO requests from coordinators.
+ * <p>
+ * In the default mode, each request is copied out of the inbound buffer and put to a blocking queue. In the streaming
+ * mode, enabled by giving a {@link PYIORequestQueue}, the body of a request is a slice of the inbound buffer without
+ * any copy, requests are handed over through the lock-free queue which stops reading from sockets when it is full, and
+ * responses are written as a pooled header composed with the body.
+ */
 public class PYIOTcpServer {
     private static final Logger logger = LoggerFactory.getLogger(PYIOTcpServer.class);
     public static final int TCP_DATA_SERVER_PORT = 10012;
+    // magic, length, request id and channel id
+    private static final int HEADER_LENGTH = 20;
     final int SERVER_THREAD_COUNT = 1;
     private BlockingQueue<PYIOMessage> requestMessageQueue;
+    private PYIORequestQueue streamingRequestQueue;
     private PYChannelIDManager channelManager;
     private ServerBootstrap bootStrap;
     private EventLoopGroup serverGroup;
@@ -36,6 +50,16 @@ public class PYIOTcpServer {
         this.serverGroup = new NioEventLoopGroup(SERVER_THREAD_COUNT);
     }
 
+    public PYIOTcpServer(PYIORequestQueue streamingRequestQueue) {
+        this.streamingRequestQueue = streamingRequestQueue;
+        this.channelManager = new PYChannelIDManager(PYIOParameters.MAX_CHANNELS);
+        this.serverGroup = new NioEventLoopGroup(SERVER_THREAD_COUNT);
+    }
+
+    private boolean isStreaming() {
+        return streamingRequestQueue != null;
+    }
+
     public void bind(int port) throws InterruptedException {
 
         bootStrap = new ServerBootstrap();
@@ -49,11 +73,19 @@ public class PYIOTcpServer {
                         ch.pipeline().addLast(new PYIOConnectionHandler(channelManager));
                         ch.pipeline().addLast(
                                 new PYIOMessageDecoder(PYIOParameters.MAX_MESSAGE_LENGTH, 4,
-                                        PYIOParameters.LENGTH_FIELD_LENGTH, channelManager));
-                        ch.pipeline().addLast(new PYIOMessageEncoder());
-                        ch.pipeline().addLast(new PYIORequestMessageHandler(requestMessageQueue));
+                                        PYIOParameters.LENGTH_FIELD_LENGTH, channelManager, isStreaming()));
+                        if (isStreaming()) {
+                            ch.pipeline().addLast(new PYIOMessageStreamEncoder());
+                            ch.pipeline().addLast(new PYIOStreamingRequestHandler());
+                        } else {
+                            ch.pipeline().addLast(new PYIOMessageEncoder());
+                            ch.pipeline().addLast(new PYIORequestMessageHandler(requestMessageQueue));
+                        }
                     }
                 });
+        if (isStreaming()) {
+            bootStrap.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        }
 
         bootStrap.bind(port).sync();
     }
@@ -66,6 +98,20 @@ public class PYIOTcpServer {
         return channelManager;
     }
 
+    /**
+     * Send a response to the channel the request came from. The body of the response is released once written, or
+     * right away if the channel has gone.
+     */
+    public void sendResponse(PYIOMessage response) {
+        Channel channel = channelManager.getChannel(response.getHeader().getChannelid());
+        if (channel == null) {
+            logger.warn("channel of response {} has gone", response.getHeader());
+            response.getBody().release();
+            return;
+        }
+        channel.writeAndFlush(response, channel.voidPromise());
+    }
+
     private class PYIOConnectionHandler extends ChannelInboundHandlerAdapter {
         private PYChannelIDManager thechannelManager;
 
@@ -79,7 +125,11 @@ public class PYIOTcpServer {
             super.channelActive(ctx);
             Channel channel = ctx.channel();
 
-            thechannelManager.addChannel(channel);
+            if (thechannelManager.addChannel(channel) == null) {
+                // responses could never be routed back to the channel
+                channel.close();
+                return;
+            }
             logger.info("channel is add {}", channel);
         }
 
@@ -117,19 +167,64 @@ public class PYIOTcpServer {
 
     }
 
+    /**
+     * Writes a response as a composite of a small pooled header and the body, without copying the body.
+     */
+    private class PYIOMessageStreamEncoder extends MessageToMessageEncoder<PYIOMessage> {
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, PYIOMessage msg, List<Object> out) throws Exception {
+            PYIOMessageHeader header = msg.getHeader();
+            ByteBuf headerBuf = ctx.alloc().ioBuffer(HEADER_LENGTH);
+            headerBuf.writeInt(header.getMagic());
+            headerBuf.writeInt(header.getLength());
+            headerBuf.writeLong(header.getRequestid());
+            headerBuf.writeInt(header.getChannelid());
+
+            CompositeByteBuf frame = ctx.alloc().compositeDirectBuffer(2);
+            frame.addComponents(true, headerBuf, msg.getBody());
+            out.add(frame);
+        }
+    }
+
+    /**
+     * Hands requests over to {@link #streamingRequestQueue} in the event loop.
+     */
+    private class PYIOStreamingRequestHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof PYIOMessage) {
+                streamingRequestQueue.offer((PYIOMessage) msg, ctx.channel());
+            } else {
+                ctx.fireChannelRead(msg);
+            }
+        }
+    }
+
     private class PYIOMessageDecoder extends LengthFieldBasedFrameDecoder {
 
         private PYChannelIDManager channelManager;
+        private final boolean streaming;
+        private Integer channelId;
 
         public PYIOMessageDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength,
-                PYChannelIDManager channelManager) {
+                PYChannelIDManager channelManager, boolean streaming) {
 
             super(maxFrameLength, lengthFieldOffset, lengthFieldLength);
             this.channelManager = channelManager;
+            this.streaming = streaming;
+            if (streaming) {
+                // large bodies arriving in pieces are composed instead of being merged by copying
+                setCumulator(ByteToMessageDecoder.COMPOSITE_CUMULATOR);
+            }
         }
 
         @Override
         protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+            if (streaming) {
+                return decodeStreaming(ctx, in);
+            }
             logger.info("server recieve msg :{}", in.readableBytes());
             ByteBuf packet = (ByteBuf) super.decode(ctx, in);
             if (packet == null) {
@@ -149,10 +244,35 @@ public class PYIOTcpServer {
             message.setHeader(header);
 
             message.setBody(Unpooled.copiedBuffer(packet.slice()));
+            packet.release();
 
             logger.info("server decode message:{}", message);
             return message;
         }
+
+        private Object decodeStreaming(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+            ByteBuf packet = (ByteBuf) super.decode(ctx, in);
+            if (packet == null) {
+                return null;
+            }
+            if (channelId == null) {
+                // the channel keeps its id as long as it is active
+                channelId = channelManager.getId(ctx.channel());
+            }
+
+            PYIOMessageHeader header = new PYIOMessageHeader();
+            header.setMagic(packet.readInt());
+            header.setLength(packet.readInt());
+            header.setRequestid(packet.readLong());
+            packet.skipBytes(Integer.BYTES);
+            header.setChannelid(channelId);
+
+            // the rest of the retained frame slice is the body, owned by the message from now on
+            PYIOMessage message = new PYIOMessage();
+            message.setHeader(header);
+            message.setBody(packet);
+            return message;
+        }
     }
 
 }
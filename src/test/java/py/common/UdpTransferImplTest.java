@@ -0,0 +1,207 @@
+package py.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import py.common.struct.EchoFutureMessage;
+import py.common.struct.EndPoint;
+import py.common.struct.ExchangeMessage.ConstantField;
+import py.test.TestBase;
+
+/**
+ * Exchanges messages of {@link UdpTransferImpl#exchangeMessages(List, List)} with a plain datagram socket on the
+ * loopback interface, which answers, stays silent, or outlives the transfer.
+ */
+public class UdpTransferImplTest extends TestBase {
+    private static final int READ_TIMEOUT_MS = 1200;
+    private static final int WAIT_MS = 5000;
+
+    // every packet allocated for an exchange, to check that all of them are released
+    private final List<ByteBuf> packets = new CopyOnWriteArrayList<>();
+    private UdpTransferImpl transfer;
+    private DatagramSocket peer;
+    private EndPoint peerEndPoint;
+
+    @Before
+    public void setUp() throws Exception {
+        peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        peer.setSoTimeout(WAIT_MS);
+        peerEndPoint = new EndPoint(InetAddress.getLoopbackAddress().getHostAddress(), peer.getLocalPort());
+
+        transfer = new UdpTransferImpl(0, READ_TIMEOUT_MS, null, false);
+        transfer.setExchangeAllocator(new UnpooledByteBufAllocator(false) {
+            @Override
+            protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+                ByteBuf packet = super.newDirectBuffer(initialCapacity, maxCapacity);
+                packets.add(packet);
+                return packet;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (transfer != null) {
+            transfer.releaseResource();
+        }
+        peer.close();
+    }
+
+    @Test
+    public void matchedResponsesCompleteTheirFutures() throws Exception {
+        List<EchoFutureMessage> futures = transfer.exchangeMessages(
+                Arrays.asList(payload("first"), payload("second")), Arrays.asList(peerEndPoint, peerEndPoint));
+
+        Map<String, DatagramPacket> requests = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            DatagramPacket request = receive();
+            requests.put(payloadOf(request), request);
+        }
+        // answered in the other order, responses are matched by sequence id
+        respond(requests.get("second"), "answer to second");
+        respond(requests.get("first"), "answer to first");
+
+        assertEquals("answer to first", responseOf(futures.get(0)));
+        assertEquals("answer to second", responseOf(futures.get(1)));
+        assertAllPacketsReleased();
+    }
+
+    @Test
+    public void resendThenTimeout() throws Exception {
+        long start = System.nanoTime();
+        EchoFutureMessage future = transfer.exchangeMessages(payload("lost"), Collections.singletonList(peerEndPoint))
+                .get(0);
+
+        peer.setSoTimeout(100);
+        List<Integer> sequenceIds = new ArrayList<>();
+        while (!future.isArrived() && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(WAIT_MS)) {
+            try {
+                DatagramPacket request = receive();
+                assertEquals("lost", payloadOf(request));
+                sequenceIds.add(sequenceIdOf(request));
+            } catch (SocketTimeoutException e) {
+                // keep waiting for the sweep
+            }
+        }
+
+        try {
+            future.getResponse().get(WAIT_MS, TimeUnit.MILLISECONDS);
+            fail("no response is sent, the exchange must time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MS));
+        // sent once and resent at least once by the sweep, with the same sequence id
+        assertTrue(sequenceIds.toString(), sequenceIds.size() >= 2);
+        assertEquals(1, new HashSet<>(sequenceIds).size());
+        assertAllPacketsReleased();
+    }
+
+    @Test
+    public void releaseFailsPendingExchanges() throws Exception {
+        List<EchoFutureMessage> futures = transfer.exchangeMessages(payload("pending"),
+                Arrays.asList(peerEndPoint, peerEndPoint, peerEndPoint));
+        for (int i = 0; i < futures.size(); i++) {
+            receive();
+        }
+
+        transfer.releaseResource();
+        for (EchoFutureMessage future : futures) {
+            assertTrue(future.isArrived());
+            assertFailedWith(IllegalStateException.class, future);
+        }
+        assertEquals(3, packets.size());
+        assertAllPacketsReleased();
+
+        // exchanges after the release fail as well
+        EchoFutureMessage late = transfer.exchangeMessages(payload("late"), Collections.singletonList(peerEndPoint))
+                .get(0);
+        assertFailedWith(IllegalStateException.class, late);
+        transfer = null;
+        assertAllPacketsReleased();
+    }
+
+    private static ByteBuffer payload(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private DatagramPacket receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+        peer.receive(packet);
+        assertEquals(ConstantField.INQUIREMESSAGE, packet.getData()[ConstantField.TYPEOFFSET]);
+        return packet;
+    }
+
+    private static int sequenceIdOf(DatagramPacket packet) {
+        return ByteBuffer.wrap(packet.getData()).getInt(ConstantField.SEQUENCEIDOFFSET);
+    }
+
+    private static String payloadOf(DatagramPacket packet) {
+        return new String(packet.getData(), ConstantField.PAYLOADOFFSET,
+                packet.getLength() - ConstantField.PAYLOADOFFSET, StandardCharsets.UTF_8);
+    }
+
+    private void respond(DatagramPacket request, String content) throws Exception {
+        byte[] payload = content.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer response = ByteBuffer.allocate(ConstantField.PAYLOADOFFSET + payload.length);
+        response.putInt(sequenceIdOf(request));
+        response.put(ConstantField.RESPONSEEMESSAGE);
+        response.put(payload);
+        peer.send(new DatagramPacket(response.array(), response.capacity(), request.getSocketAddress()));
+    }
+
+    private static String responseOf(EchoFutureMessage future) throws Exception {
+        ByteBuf response = future.getResponse().get(WAIT_MS, TimeUnit.MILLISECONDS);
+        try {
+            return response.toString(StandardCharsets.UTF_8);
+        } finally {
+            response.release();
+        }
+    }
+
+    private static void assertFailedWith(Class<? extends Throwable> expected, EchoFutureMessage future)
+            throws Exception {
+        try {
+            future.getResponse().get(WAIT_MS, TimeUnit.MILLISECONDS);
+            fail("the exchange must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), expected.isInstance(e.getCause()));
+        }
+    }
+
+    private void assertAllPacketsReleased() throws InterruptedException {
+        // a resent duplicate is released by the event loop once written, which may be just after the future is done
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        for (ByteBuf packet : packets) {
+            while (packet.refCnt() != 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, packet.refCnt());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package py.common.bitmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import py.test.TestBase;
+
+/**
+ * Checks the word-at-a-time operations of {@link AtomicBitSet} against {@link BitSet}, and the wrap-around claims of
+ * {@link ConcurrentRingBitmap}.
+ */
+public class AtomicBitSetTest extends TestBase {
+    private static final int NBITS = 300;
+
+    // ranges starting and ending on, right before and right after word boundaries
+    private static final int[][] RANGES = { { 0, 0 }, { 0, 1 }, { 0, 64 }, { 1, 63 }, { 63, 65 }, { 64, 128 },
+            { 65, 127 }, { 127, 129 }, { 60, 200 }, { 128, 128 }, { 255, NBITS }, { 0, NBITS } };
+
+    @Test
+    public void rangesOnWordBoundaries() {
+        for (int[] range : RANGES) {
+            for (boolean set : new boolean[] { true, false }) {
+                BitSet expected = randomBits(range[0] * 31 + range[1]);
+                AtomicBitSet bitSet = copyOf(expected);
+
+                int changed;
+                if (set) {
+                    BitSet before = (BitSet) expected.clone();
+                    expected.set(range[0], range[1]);
+                    changed = expected.cardinality() - before.cardinality();
+                    assertEquals(changed, bitSet.setRange(range[0], range[1]));
+                } else {
+                    BitSet before = (BitSet) expected.clone();
+                    expected.clear(range[0], range[1]);
+                    changed = before.cardinality() - expected.cardinality();
+                    assertEquals(changed, bitSet.clearRange(range[0], range[1]));
+                }
+                assertSame(expected, bitSet);
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rangeOutOfBound() {
+        new AtomicBitSet(NBITS).setRange(10, NBITS + 1);
+    }
+
+    @Test
+    public void nextSetBitsAndClear() {
+        BitSet expected = randomBits(3);
+        AtomicBitSet bitSet = copyOf(expected);
+
+        // batches smaller than, equal to and larger than the bits left in a word
+        for (int batch : new int[] { 1, 5, 64, 100 }) {
+            int fromIndex = batch == 1 ? 63 : 0;
+            int[] indexes = new int[batch];
+            int count = bitSet.nextSetBitsAndClear(fromIndex, indexes);
+
+            int expectedCount = 0;
+            for (int i = expected.nextSetBit(fromIndex); i >= 0 && expectedCount < batch; i = expected.nextSetBit(
+                    i + 1)) {
+                assertEquals(i, indexes[expectedCount++]);
+                expected.clear(i);
+            }
+            assertEquals(expectedCount, count);
+            assertSame(expected, bitSet);
+        }
+
+        assertEquals(0, bitSet.nextSetBitsAndClear(NBITS, new int[4]));
+        bitSet.clearRange(0, NBITS);
+        assertEquals(0, bitSet.nextSetBitsAndClear(0, new int[4]));
+    }
+
+    @Test
+    public void ringBitmapClaimsWrapAround() {
+        ConcurrentRingBitmap bitmap = new ConcurrentRingBitmap(130);
+        for (int i = 0; i < 130; i++) {
+            assertEquals(i, bitmap.claim());
+        }
+        assertEquals(-1, bitmap.claim());
+        assertEquals(130, bitmap.cardinality());
+
+        assertTrue(bitmap.clear(64));
+        assertTrue(bitmap.clear(3));
+        assertFalse(bitmap.clear(3));
+        // the search starts after the last claimed bit 129, so it wraps around to the beginning
+        assertEquals(3, bitmap.claim());
+        assertEquals(64, bitmap.claim());
+        assertEquals(-1, bitmap.claim());
+    }
+
+    private BitSet randomBits(long seed) {
+        Random random = new Random(seed);
+        BitSet bits = new BitSet(NBITS);
+        for (int i = 0; i < NBITS; i++) {
+            if (random.nextBoolean()) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    private AtomicBitSet copyOf(BitSet bits) {
+        AtomicBitSet bitSet = new AtomicBitSet(NBITS);
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            bitSet.set(i);
+        }
+        return bitSet;
+    }
+
+    private void assertSame(BitSet expected, AtomicBitSet actual) {
+        for (int i = 0; i < NBITS; i++) {
+            assertEquals("bit " + i, expected.get(i), actual.get(i));
+        }
+        assertEquals(expected.cardinality(), actual.cardinality());
+        assertEquals(expected.cardinality(), actual.calculateCardinality());
+    }
+}
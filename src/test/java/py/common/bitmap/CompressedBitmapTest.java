@@ -0,0 +1,127 @@
+package py.common.bitmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import py.test.TestBase;
+
+/**
+ * Checks the compressed bitmap, its serialized view and concurrent variant against {@link BitSet}.
+ */
+public class CompressedBitmapTest extends TestBase {
+    private static final int NBITS = 5 * Container.BITS;
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(7);
+        BitSet expected = new BitSet();
+        CompressedBitmap bitmap = new CompressedBitmap();
+        ConcurrentCompressedBitmap concurrent = new ConcurrentCompressedBitmap();
+
+        // sparse, dense and ranged sections push containers across every type
+        for (int i = 0; i < 20000; i++) {
+            int index = random.nextInt(NBITS);
+            if (random.nextInt(4) == 0) {
+                expected.clear(index);
+                bitmap.clear(index);
+                concurrent.clear(index);
+            } else {
+                expected.set(index);
+                bitmap.set(index);
+                concurrent.set(index);
+            }
+        }
+        expected.set(Container.BITS + 100, 3 * Container.BITS + 7);
+        bitmap.setRange(Container.BITS + 100, 3 * Container.BITS + 7);
+        expected.clear(2 * Container.BITS - 10, 2 * Container.BITS + 10);
+        bitmap.clearRange(2 * Container.BITS - 10, 2 * Container.BITS + 10);
+        bitmap.runOptimize();
+
+        assertSame(expected, bitmap);
+        CompressedBitmapView view = CompressedBitmap.view(ByteBuffer.wrap(bitmap.toByteArray()));
+        assertEquals(expected.cardinality(), view.cardinality());
+        for (int i = 0; i < NBITS + 10; i += 1 + random.nextInt(50)) {
+            assertEquals(expected.get(i), view.get(i));
+            assertEquals(expected.nextSetBit(i), view.nextSetBit(i));
+            assertEquals(expected.nextClearBit(i), view.nextClearBit(i));
+        }
+        assertEquals(bitmap, view.toCompressedBitmap());
+        assertEquals(bitmap, CompressedBitmap.valueOf(bitmap.toByteArray()));
+
+        CompressedBitmap snapshot = concurrent.snapshot();
+        assertEquals(snapshot.cardinality(), concurrent.cardinality());
+        for (int i = snapshot.nextSetBit(0); i >= 0; i = snapshot.nextSetBit(i + 1)) {
+            assertTrue(concurrent.get(i));
+        }
+    }
+
+    @Test
+    public void andOr() {
+        Random random = new Random(11);
+        BitSet left = new BitSet();
+        BitSet right = new BitSet();
+        CompressedBitmap leftMap = new CompressedBitmap();
+        CompressedBitmap rightMap = new CompressedBitmap();
+        for (int i = 0; i < 30000; i++) {
+            int index = random.nextInt(NBITS);
+            if (random.nextBoolean()) {
+                left.set(index);
+                leftMap.set(index);
+            } else {
+                right.set(index);
+                rightMap.set(index);
+            }
+        }
+        left.set(0, Container.BITS);
+        leftMap.setRange(0, Container.BITS);
+
+        BitSet union = (BitSet) left.clone();
+        union.or(right);
+        CompressedBitmap unionMap = CompressedBitmap.valueOf(leftMap.toByteArray());
+        unionMap.or(rightMap);
+        assertSame(union, unionMap);
+
+        left.and(right);
+        leftMap.and(rightMap);
+        assertSame(left, leftMap);
+    }
+
+    @Test
+    public void smallerThanBitmap() {
+        int nbits = 16 * Container.BITS;
+        Bitmap sparse = new Bitmap(nbits);
+        for (int i = 0; i < nbits; i += 4099) {
+            sparse.set(i);
+        }
+        Bitmap full = new Bitmap(nbits);
+        full.inverse();
+
+        CompressedBitmap compressedSparse = CompressedBitmap.valueOf(sparse);
+        CompressedBitmap compressedFull = CompressedBitmap.valueOf(full);
+        logger.info("bitmap of {} bits: {} bytes, sparse compressed: {} bytes, full compressed: {} bytes", nbits,
+                sparse.toByteArray().length, compressedSparse.serializedSize(), compressedFull.serializedSize());
+
+        assertTrue(compressedSparse.serializedSize() < sparse.toByteArray().length);
+        assertTrue(compressedFull.serializedSize() < full.toByteArray().length);
+        assertEquals(sparse, compressedSparse.toBitmap(nbits));
+        assertEquals(full, compressedFull.toBitmap(nbits));
+        assertEquals(nbits, compressedFull.nextClearBit(0));
+    }
+
+    private static void assertSame(BitSet expected, CompressedBitmap bitmap) {
+        assertEquals(expected.cardinality(), bitmap.cardinality());
+        for (int i = 0; i < NBITS + 10; i++) {
+            assertEquals(expected.get(i), bitmap.get(i));
+        }
+        for (int i = 0; i < NBITS + 10; i += 13) {
+            assertEquals(expected.nextSetBit(i), bitmap.nextSetBit(i));
+            assertEquals(expected.nextClearBit(i), bitmap.nextClearBit(i));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package py.common.counter;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import py.test.TestBase;
+
+/**
+ * Compares the update cost of {@link HeapObjectCounter} and {@link TreeSetObjectCounter}.
+ * <p>
+ * Excluded from the default test run by the surefire configuration, run it with
+ * {@code mvn test -Dtest=HeapObjectCounterBenchmark}.
+ */
+public class HeapObjectCounterBenchmark extends TestBase {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int OPERATIONS = 1000000;
+
+    @Test
+    public void updateThroughput() {
+        for (int keyCount : new int[] { 100, 10000, 100000 }) {
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                run(new TreeSetObjectCounter<>(), keyCount);
+                run(new HeapObjectCounter<>(), keyCount);
+            }
+            double treeSet = run(new TreeSetObjectCounter<>(), keyCount);
+            double heap = run(new HeapObjectCounter<>(), keyCount);
+            logger.warn("{} keys: TreeSetObjectCounter {} ops/s, HeapObjectCounter {} ops/s", keyCount,
+                    String.format("%.0f", treeSet), String.format("%.0f", heap));
+        }
+    }
+
+    /**
+     * @return updates per second, each followed by a read of the max and min as a scheduler would do
+     */
+    private double run(ObjectCounter<Integer> counter, int keyCount) {
+        Random random = new Random(keyCount);
+        for (int key = 0; key < keyCount; key++) {
+            counter.set(key, random.nextInt(1000));
+        }
+
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            counter.increment(random.nextInt(keyCount), random.nextInt(3) - 1);
+            sink += counter.maxValue() - counter.minValue();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == Long.MIN_VALUE) {
+            logger.warn("unreachable, keeps the reads alive");
+        }
+        return OPERATIONS * 1e9 / elapsed;
+    }
+}
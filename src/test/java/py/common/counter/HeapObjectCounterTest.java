@@ -0,0 +1,129 @@
+package py.common.counter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import py.test.TestBase;
+
+/**
+ * Checks {@link HeapObjectCounter} against {@link TreeSetObjectCounter}.
+ */
+public class HeapObjectCounterTest extends TestBase {
+    private static final int KEY_COUNT = 1000;
+
+    @Test
+    public void sameAsTreeSetCounter() {
+        Random random = new Random(0);
+        ObjectCounter<Integer> expected = new TreeSetObjectCounter<>();
+        ObjectCounter<Integer> actual = new HeapObjectCounter<>(4);
+
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(KEY_COUNT);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                expected.increment(key);
+                actual.increment(key);
+            } else if (op < 8) {
+                expected.decrement(key, 3);
+                actual.decrement(key, 3);
+            } else if (op < 9) {
+                long value = random.nextInt(100);
+                expected.set(key, value);
+                actual.set(key, value);
+            } else {
+                assertEquals(expected.remove(key), actual.remove(key));
+            }
+
+            assertEquals(expected.get(key), actual.get(key));
+            if (expected.size() > 0) {
+                assertEquals(expected.maxValue(), actual.maxValue());
+                assertEquals(expected.minValue(), actual.minValue());
+                assertEquals(expected.get(actual.max()), expected.maxValue());
+                assertEquals(expected.get(actual.min()), expected.minValue());
+            }
+        }
+
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.total(), actual.total());
+        Iterator<Integer> expectedIterator = expected.iterator();
+        Iterator<Integer> actualIterator = actual.iterator();
+        while (expectedIterator.hasNext()) {
+            assertEquals(expected.get(expectedIterator.next()), actual.get(actualIterator.next()));
+        }
+
+        ObjectCounter<Integer> copy = actual.deepCopy();
+        assertEquals(actual.size(), copy.size());
+        assertEquals(actual.maxValue(), copy.maxValue());
+        actual.clear();
+        assertEquals(0, actual.size());
+        assertEquals(0, actual.total());
+    }
+
+    @Test
+    public void concurrentUpdates() throws Exception {
+        final int threadCount = 8;
+        final int rounds = 20000;
+        final HeapObjectCounter<Integer> counter = new HeapObjectCounter<>(4);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    startLatch.await();
+                    // every key gets two increments and one decrement per round, in a random key order
+                    for (int i = 0; i < rounds; i++) {
+                        int key = random.nextInt(KEY_COUNT);
+                        counter.increment(key);
+                        counter.increment(key);
+                        counter.decrement(key);
+                        counter.maxValue();
+                        counter.minValue();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // replay the same updates on a single thread to know the final counts
+        ObjectCounter<Integer> expected = new TreeSetObjectCounter<>();
+        for (int t = 0; t < threadCount; t++) {
+            Random random = new Random(t);
+            for (int i = 0; i < rounds; i++) {
+                expected.increment(random.nextInt(KEY_COUNT));
+            }
+        }
+
+        assertEquals(expected.size(), counter.size());
+        assertEquals(expected.total(), counter.total());
+        assertEquals((long) threadCount * rounds, counter.total());
+        for (int key = 0; key < KEY_COUNT; key++) {
+            assertEquals(expected.get(key), counter.get(key));
+        }
+        assertEquals(expected.maxValue(), counter.maxValue());
+        assertEquals(expected.minValue(), counter.minValue());
+        assertEquals(expected.maxValue(), counter.get(counter.max()));
+        assertEquals(expected.minValue(), counter.get(counter.min()));
+    }
+}
@@ -0,0 +1,229 @@
+package py.common.rpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.airlift.units.Duration;
+import py.test.TestBase;
+
+/**
+ * Checks the in flight limit, the weighted turns and the rejections of {@link FairRequestScheduler}.
+ */
+public class FairRequestSchedulerTest extends TestBase {
+    private static final long WAIT_SECONDS = 10;
+
+    private ThreadPoolExecutor executor;
+
+    @After
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void inFlightLimitPerConnection() throws Exception {
+        FairRequestScheduler scheduler = newScheduler(4, 2, null);
+        FairRequestScheduler.Connection connection = scheduler.newConnection("client");
+
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<RecordingTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            RecordingTask task = new RecordingTask(String.valueOf(i)) {
+                @Override
+                void doRun() throws InterruptedException {
+                    int current = running.incrementAndGet();
+                    maxRunning.accumulateAndGet(current, Math::max);
+                    release.await();
+                    running.decrementAndGet();
+                }
+            };
+            tasks.add(task);
+            connection.submit(task);
+        }
+
+        assertTrue(tasks.get(0).started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(tasks.get(1).started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        // there are idle threads, but the connection already has two requests in flight
+        Thread.sleep(100);
+        assertEquals(2, running.get());
+        assertEquals(1, tasks.get(2).started.getCount());
+
+        release.countDown();
+        for (RecordingTask task : tasks) {
+            assertTrue(task.done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(null, task.rejectReason);
+        }
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void weightedTurns() throws Exception {
+        FairRequestScheduler scheduler = newScheduler(1, 100, null);
+        scheduler.setWeigher(host -> host.equals("heavy") ? 3 : 1);
+
+        // occupies the only thread, so the requests below are queued before any of them is dispatched
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTask blocker = new RecordingTask("blocker") {
+            @Override
+            void doRun() throws InterruptedException {
+                release.await();
+            }
+        };
+        scheduler.newConnection("blocker").submit(blocker);
+        assertTrue(blocker.started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        List<String> order = new ArrayList<>();
+        FairRequestScheduler.Connection heavy = scheduler.newConnection("heavy");
+        FairRequestScheduler.Connection light = scheduler.newConnection("light");
+        List<RecordingTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            RecordingTask heavyTask = new RecordingTask("H", order);
+            RecordingTask lightTask = new RecordingTask("L", order);
+            tasks.add(heavyTask);
+            tasks.add(lightTask);
+            heavy.submit(heavyTask);
+            light.submit(lightTask);
+        }
+        release.countDown();
+        for (RecordingTask task : tasks) {
+            assertTrue(task.done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        // three requests of the heavy connection for each of the light one, until the heavy one has no more
+        assertEquals(Arrays.asList("H", "H", "H", "L", "H", "H", "H", "L", "L", "L", "L", "L"), order);
+    }
+
+    @Test
+    public void rejectTimedOutRequestsWhenDequeued() throws Exception {
+        FairRequestScheduler scheduler = newScheduler(1, 100, new Duration(50, TimeUnit.MILLISECONDS));
+        FairRequestScheduler.Connection connection = scheduler.newConnection("client");
+
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTask blocker = new RecordingTask("blocker") {
+            @Override
+            void doRun() throws InterruptedException {
+                release.await();
+            }
+        };
+        connection.submit(blocker);
+        assertTrue(blocker.started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        RecordingTask late = new RecordingTask("late");
+        connection.submit(late);
+        // the request is still in time when queued, but not when the thread becomes available
+        Thread.sleep(200);
+        release.countDown();
+        assertTrue(late.done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("task timeout", late.rejectReason);
+        assertEquals(1, late.started.getCount());
+
+        RecordingTask inTime = new RecordingTask("inTime");
+        connection.submit(inTime);
+        assertTrue(inTime.done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(null, inTime.rejectReason);
+        assertEquals(0, inTime.started.getCount());
+    }
+
+    @Test
+    public void rejectOverflow() throws Exception {
+        // one thread and an in flight limit of 2, so a connection may have 2 requests pending
+        FairRequestScheduler scheduler = newScheduler(1, 2, null);
+        FairRequestScheduler.Connection connection = scheduler.newConnection("client");
+
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTask blocker = new RecordingTask("blocker") {
+            @Override
+            void doRun() throws InterruptedException {
+                release.await();
+            }
+        };
+        connection.submit(blocker);
+        assertTrue(blocker.started.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        List<RecordingTask> queued = Arrays.asList(new RecordingTask("1"), new RecordingTask("2"));
+        for (RecordingTask task : queued) {
+            connection.submit(task);
+        }
+        RecordingTask overflow = new RecordingTask("3");
+        connection.submit(overflow);
+        assertTrue(overflow.done.await(0, TimeUnit.SECONDS));
+        assertEquals("server overloaded", overflow.rejectReason);
+        assertEquals(1, overflow.started.getCount());
+
+        release.countDown();
+        for (RecordingTask task : queued) {
+            assertTrue(task.done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(null, task.rejectReason);
+        }
+    }
+
+    private FairRequestScheduler newScheduler(int threads, int inFlightLimit, Duration taskTimeout) {
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        ThriftServerDef def = new ThriftServerDef("FairRequestSchedulerTest", "localhost", 0, 1024, inFlightLimit, 1,
+                null, null, null, taskTimeout, null, executor, null);
+        return new FairRequestScheduler(def);
+    }
+
+    private static class RecordingTask implements FairRequestScheduler.Task {
+        private final String name;
+        private final List<String> order;
+        private final long startTimeMillis = System.currentTimeMillis();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String rejectReason;
+
+        RecordingTask(String name) {
+            this(name, null);
+        }
+
+        RecordingTask(String name, List<String> order) {
+            this.name = name;
+            this.order = order;
+        }
+
+        void doRun() throws InterruptedException {
+        }
+
+        @Override
+        public long getStartTimeMillis() {
+            return startTimeMillis;
+        }
+
+        @Override
+        public void run() {
+            if (order != null) {
+                // only one thread runs the requests of the test recording an order
+                order.add(name);
+            }
+            started.countDown();
+            try {
+                doRun();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void reject(String reason) {
+            rejectReason = reason;
+            done.countDown();
+        }
+    }
+}
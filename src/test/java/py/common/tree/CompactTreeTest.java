@@ -0,0 +1,155 @@
+package py.common.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import py.common.ByteArrayParser;
+import py.common.ToByteArray;
+import py.common.VolumeMetadataJSONParser;
+import py.test.TestBase;
+
+/**
+ * Checks the compact tree format and compares its size and decode time with the legacy format and json.
+ */
+public class CompactTreeTest extends TestBase {
+    private static final ToByteArray<String> STRING_TO_BYTES = s -> s.getBytes(StandardCharsets.UTF_8);
+    private static final ByteArrayParser<String> STRING_PARSER = b -> new String(b, StandardCharsets.UTF_8);
+
+    @Test
+    public void roundTrip() {
+        GenericTree<String> tree = buildTree(3, 4);
+        byte[] compact = tree.toCompactByteArray(STRING_TO_BYTES);
+        GenericTree<String> parsed = GenericTree.parseFromCompact(compact, STRING_PARSER);
+
+        assertEquals(toLines(tree.getRoot()), toLines(parsed.getRoot()));
+        assertTrue(parsed.getRoot().isRootNode());
+
+        GenericTree<String> leaf = new GenericTree<>("leaf");
+        GenericTree<String> parsedLeaf = GenericTree.parseFromCompact(leaf.toCompactByteArray(STRING_TO_BYTES),
+                STRING_PARSER);
+        assertEquals("leaf", parsedLeaf.getRoot().content());
+        assertTrue(parsedLeaf.getRoot().isLeafNode());
+    }
+
+    @Test
+    public void skipSubtrees() {
+        GenericTree<String> tree = buildTree(3, 4);
+        CompactTreeReader reader = new CompactTreeReader(tree.toCompactByteArray(STRING_TO_BYTES));
+
+        List<String> visited = new ArrayList<>();
+        while (reader.next()) {
+            visited.add(reader.content(STRING_PARSER));
+            if (reader.depth() == 1) {
+                reader.skipChildren();
+            }
+        }
+        assertEquals(1 + 4, visited.size());
+        assertEquals("0", visited.get(0));
+        assertEquals("0.3", visited.get(4));
+    }
+
+    @Test
+    public void volumeMetadataBinaryForm() {
+        VolumeMetadataJSONParser parser = new VolumeMetadataJSONParser(7, "{\"name\":\"v\\u00e9\"}");
+        VolumeMetadataJSONParser parsed = VolumeMetadataJSONParser.fromBinary(parser.toByteArray());
+        assertEquals(7, parsed.getVersion());
+        assertEquals(parser.getVolumeMetadataJSON(), parsed.getVolumeMetadataJSON());
+        assertEquals(parser.getCompositedVolumeMetadataJSON(), parsed.getCompositedVolumeMetadataJSON());
+
+        VolumeMetadataJSONParser empty = VolumeMetadataJSONParser.BYTE_ARRAY_PARSER
+                .parse(VolumeMetadataJSONParser.TO_BYTE_ARRAY.toByteArray(new VolumeMetadataJSONParser(null)));
+        assertEquals(-1, empty.getVersion());
+        assertNull(empty.getVolumeMetadataJSON());
+        assertFalse(empty.getCompositedVolumeMetadataJSON().isEmpty());
+    }
+
+    @Test
+    public void compareWithLegacyAndJson() throws Exception {
+        GenericTree<String> tree = buildTree(4, 10);
+        ObjectMapper mapper = new ObjectMapper();
+        byte[] compact = tree.toCompactByteArray(STRING_TO_BYTES);
+        byte[] legacy = tree.toByteArray(STRING_TO_BYTES);
+        byte[] json = mapper.writeValueAsBytes(toMap(tree.getRoot()));
+        logger.warn("size of compact: {}, legacy: {}, json: {}", compact.length, legacy.length, json.length);
+        assertTrue("compact: " + compact.length + ", legacy: " + legacy.length, compact.length < legacy.length);
+        assertTrue("compact: " + compact.length + ", json: " + json.length, compact.length < json.length);
+        assertEquals(toLines(tree.getRoot()), toLines(GenericTree.parseFromCompact(compact, STRING_PARSER).getRoot()));
+
+        // decode times are only reported, they vary too much between machines to be asserted
+        int rounds = 200;
+        for (int warmUp = 0; warmUp < 2; warmUp++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                GenericTree.parseFromCompact(compact, STRING_PARSER);
+            }
+            long compactTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                GenericTree.parseFrom(legacy, STRING_PARSER);
+            }
+            long legacyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                mapper.readTree(json);
+            }
+            long jsonTime = System.nanoTime() - start;
+            logger.warn("decode time per tree in us, compact: {}, legacy: {}, json: {}", compactTime / rounds / 1000,
+                    legacyTime / rounds / 1000, jsonTime / rounds / 1000);
+        }
+    }
+
+    private GenericTree<String> buildTree(int depth, int fanOut) {
+        GenericTree<String> tree = new GenericTree<>("0");
+        addChildren(tree, tree.getRoot(), depth - 1, fanOut);
+        return tree;
+    }
+
+    private void addChildren(GenericTree<String> tree, GenericTree.TreeNode<String> parent, int depth, int fanOut) {
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            addChildren(tree, tree.insert(parent.content() + "." + i, parent), depth - 1, fanOut);
+        }
+    }
+
+    private List<String> toLines(GenericTree.TreeNode<String> node) {
+        List<String> lines = new ArrayList<>();
+        lines.add(node.content());
+        if (!node.isLeafNode()) {
+            for (GenericTree.TreeNode<String> child : node.children()) {
+                for (String line : toLines(child)) {
+                    lines.add(" " + line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private Map<String, Object> toMap(GenericTree.TreeNode<String> node) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("content", node.content());
+        List<Map<String, Object>> children = new ArrayList<>();
+        if (!node.isLeafNode()) {
+            for (GenericTree.TreeNode<String> child : node.children()) {
+                children.add(toMap(child));
+            }
+        }
+        map.put("children", children);
+        return map;
+    }
+}
@@ -0,0 +1,129 @@
+package py.instance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import py.common.struct.EndPoint;
+import py.test.TestBase;
+
+/**
+ * Checks that {@link IndexedInstanceStore} moves instances between its indexes on save and delete, and the changes it
+ * keeps.
+ */
+public class IndexedInstanceStoreTest extends TestBase {
+    private static final String HOST1 = "10.0.0.1";
+    private static final String HOST2 = "10.0.0.2";
+
+    @Test
+    public void resaveMovesInstanceBetweenIndexes() {
+        IndexedInstanceStore store = new IndexedInstanceStore();
+        EndPoint oldEndPoint = new EndPoint(HOST1, 8000);
+        Instance instance = new Instance(new InstanceId(1), "datanode", InstanceStatus.OK, oldEndPoint);
+        store.save(instance);
+
+        instance.setName("coordinator");
+        instance.setStatus(InstanceStatus.INC);
+        EndPoint newEndPoint = new EndPoint(HOST2, 9000);
+        instance.putEndPointByServiceName(PortType.CONTROL, newEndPoint);
+        store.save(instance);
+
+        assertEquals(1, store.getAll().size());
+        assertTrue(store.getAll().contains(instance));
+        assertTrue(store.getAll("datanode").isEmpty());
+        assertTrue(store.getAll(InstanceStatus.OK).isEmpty());
+        assertNull(store.get(oldEndPoint));
+        assertNull(store.getByHostNameAndServiceName(HOST1, "datanode"));
+
+        assertTrue(store.getAll("coordinator").contains(instance));
+        assertTrue(store.getAll(InstanceStatus.INC).contains(instance));
+        assertTrue(store.getAll("coordinator", InstanceStatus.INC).contains(instance));
+        assertSame(instance, store.get(newEndPoint));
+        assertSame(instance, store.getByHostNameAndServiceName(HOST2, "coordinator"));
+        assertSame(instance, store.get(new InstanceId(1)));
+        assertEquals(2, store.getVersion());
+    }
+
+    @Test
+    public void delete() {
+        IndexedInstanceStore store = new IndexedInstanceStore();
+        Instance deleted = new Instance(new InstanceId(1), "datanode", InstanceStatus.OK, new EndPoint(HOST1, 8000));
+        Instance kept = new Instance(new InstanceId(2), "datanode", InstanceStatus.OK, new EndPoint(HOST2, 8000));
+        store.save(deleted);
+        store.save(kept);
+        IndexedInstanceStore.Snapshot before = store.getSnapshot();
+
+        store.delete(deleted);
+        assertNull(store.get(new InstanceId(1)));
+        assertNull(store.get(new EndPoint(HOST1, 8000)));
+        assertNull(store.getByHostNameAndServiceName(HOST1, "datanode"));
+        assertEquals(1, store.getAll().size());
+        assertEquals(1, store.getAll("datanode").size());
+        assertTrue(store.getAll(InstanceStatus.OK).contains(kept));
+        assertFalse(store.getAll(InstanceStatus.OK).contains(deleted));
+        assertEquals(3, store.getVersion());
+
+        // a snapshot taken before is not changed
+        assertEquals(2, before.getAll().size());
+        assertSame(deleted, before.get(new InstanceId(1)));
+
+        // deleting an instance not in the store is not a change
+        store.delete(deleted);
+        assertEquals(3, store.getVersion());
+    }
+
+    @Test
+    public void endPointTakenOverByAnotherInstance() {
+        IndexedInstanceStore store = new IndexedInstanceStore();
+        EndPoint endPoint = new EndPoint(HOST1, 8000);
+        Instance previous = new Instance(new InstanceId(1), "datanode", InstanceStatus.OK, endPoint);
+        Instance successor = new Instance(new InstanceId(2), "datanode", InstanceStatus.OK, new EndPoint(endPoint));
+        store.save(previous);
+        store.save(successor);
+        assertSame(successor, store.get(endPoint));
+        assertSame(successor, store.getByHostNameAndServiceName(HOST1, "datanode"));
+
+        // neither moving nor deleting the previous instance removes the end point of its successor
+        previous.putEndPointByServiceName(PortType.CONTROL, new EndPoint(HOST2, 8000));
+        store.save(previous);
+        assertSame(successor, store.get(endPoint));
+        assertSame(previous, store.get(new EndPoint(HOST2, 8000)));
+
+        store.delete(previous);
+        assertSame(successor, store.get(endPoint));
+        assertSame(successor, store.getByHostNameAndServiceName(HOST1, "datanode"));
+        assertNull(store.get(new EndPoint(HOST2, 8000)));
+    }
+
+    @Test
+    public void changesSinceDroppedEvents() {
+        IndexedInstanceStore store = new IndexedInstanceStore(2);
+        for (int i = 1; i <= 3; i++) {
+            store.save(new Instance(new InstanceId(i), "datanode", InstanceStatus.OK, new EndPoint(HOST1, 8000 + i)));
+        }
+        Instance deleted = store.get(new InstanceId(1));
+        store.delete(deleted);
+        assertEquals(4, store.getVersion());
+
+        // only the changes to versions 3 and 4 are kept
+        assertNull(store.getChangesSince(0));
+        assertNull(store.getChangesSince(1));
+
+        List<InstanceChangeEvent> changes = store.getChangesSince(2);
+        assertEquals(2, changes.size());
+        assertEquals(3, changes.get(0).getVersion());
+        assertEquals(InstanceChangeEvent.Type.SAVED, changes.get(0).getType());
+        assertEquals(new InstanceId(3), changes.get(0).getInstance().getId());
+        assertEquals(4, changes.get(1).getVersion());
+        assertEquals(InstanceChangeEvent.Type.DELETED, changes.get(1).getType());
+        assertSame(deleted, changes.get(1).getInstance());
+
+        assertTrue(store.getChangesSince(4).isEmpty());
+    }
+}
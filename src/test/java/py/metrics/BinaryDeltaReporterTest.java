@@ -0,0 +1,192 @@
+package py.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import py.test.TestBase;
+
+/**
+ * Decodes the batches of {@link BinaryDeltaReporter} with {@link BinaryDeltaDecoder}: a full batch followed by delta
+ * batches must omit the series not changed and still reconstruct every value exactly.
+ */
+public class BinaryDeltaReporterTest extends TestBase {
+    private static final List<String> HISTOGRAM_SERIES = Arrays.asList("h.count", "h.min", "h.max", "h.mean", "h.p50",
+            "h.p95", "h.p99", "h.p999");
+
+    private final List<ByteBuffer> batches = new ArrayList<>();
+    private boolean reopen = true;
+
+    private final BinaryDeltaReporter.Sink sink = new BinaryDeltaReporter.Sink() {
+        @Override
+        public boolean open() {
+            boolean opened = reopen;
+            reopen = false;
+            return opened;
+        }
+
+        @Override
+        public void write(ByteBuffer batch) {
+            ByteBuffer copy = ByteBuffer.allocate(batch.remaining());
+            copy.put(batch).flip();
+            batches.add(copy);
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @SuppressWarnings("rawtypes")
+    private final SortedMap<String, Gauge> gauges = new TreeMap<>();
+    private final SortedMap<String, Counter> counters = new TreeMap<>();
+    private final SortedMap<String, Histogram> histograms = new TreeMap<>();
+
+    private double gaugeValue = 1.5;
+
+    @Test
+    public void fullBatchThenDeltas() {
+        BinaryDeltaReporter reporter = BinaryDeltaReporter.forRegistry(new MetricRegistry()).fullBatchInterval(100)
+                .build(sink);
+        BinaryDeltaDecoder decoder = new BinaryDeltaDecoder();
+
+        Counter a = new Counter();
+        Counter b = new Counter();
+        Histogram h = new Histogram(new SlidingWindowReservoir(16));
+        a.inc(3);
+        b.inc(-7);
+        h.update(10);
+        h.update(25);
+        counters.put("a", a);
+        counters.put("b", b);
+        histograms.put("h", h);
+        gauges.put("g", (Gauge<Double>) () -> gaugeValue);
+
+        // the full batch reports all series
+        Map<String, Long> reported = expectedValues();
+        BinaryDeltaDecoder.Batch batch = reportAndDecode(reporter, decoder);
+        assertTrue(batch.isFull());
+        assertEquals(3 + HISTOGRAM_SERIES.size(), batch.getSeries().size());
+        assertEquals(reported.keySet(), new HashSet<>(batch.getSeries()));
+        assertSameValues(decoder);
+
+        // only the changed counter
+        a.inc(1000000);
+        batch = reportAndDecode(reporter, decoder);
+        assertFalse(batch.isFull());
+        assertEquals(Collections.singletonList("a.count"), batch.getSeries());
+        assertSameValues(decoder);
+        reported = expectedValues();
+
+        // a gauge going down, a new counter, and a histogram of which only some series change
+        gaugeValue = -0.25;
+        Counter c = new Counter();
+        c.inc(42);
+        counters.put("c", c);
+        h.update(25);
+        batch = reportAndDecode(reporter, decoder);
+        assertEquals(changedSince(reported), new HashSet<>(batch.getSeries()));
+        assertTrue(batch.getSeries().contains("c.count"));
+        assertTrue(batch.getSeries().size() < expectedValues().size());
+        assertSameValues(decoder);
+
+        // nothing changed
+        batch = reportAndDecode(reporter, decoder);
+        assertFalse(batch.isFull());
+        assertTrue(batch.getSeries().isEmpty());
+        assertSameValues(decoder);
+
+        // a reconnected sink gets a full batch, which a new decoder can start from
+        reopen = true;
+        b.dec(Long.MAX_VALUE / 2);
+        BinaryDeltaDecoder another = new BinaryDeltaDecoder();
+        ByteBuffer full = lastBatchOf(reporter);
+        batch = another.decode(full.duplicate());
+        assertTrue(batch.isFull());
+        assertEquals(expectedValues().keySet(), new HashSet<>(batch.getSeries()));
+        assertSameValues(another);
+        decoder.decode(full.duplicate());
+        assertSameValues(decoder);
+        assertTrue(batch.getTimestamp() >= System.currentTimeMillis() - 60000);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void deltaBatchBeforeFullBatch() {
+        BinaryDeltaReporter reporter = BinaryDeltaReporter.forRegistry(new MetricRegistry()).build(sink);
+        counters.put("a", new Counter());
+        lastBatchOf(reporter);
+        counters.get("a").inc();
+        new BinaryDeltaDecoder().decode(lastBatchOf(reporter));
+    }
+
+    private BinaryDeltaDecoder.Batch reportAndDecode(BinaryDeltaReporter reporter, BinaryDeltaDecoder decoder) {
+        return decoder.decode(lastBatchOf(reporter));
+    }
+
+    private ByteBuffer lastBatchOf(BinaryDeltaReporter reporter) {
+        reporter.report(gauges, counters, histograms, new TreeMap<String, Meter>(), new TreeMap<String, Timer>());
+        return batches.get(batches.size() - 1);
+    }
+
+    /**
+     * @return the values the reporter should report, by "metric.field"
+     */
+    private Map<String, Long> expectedValues() {
+        Map<String, Long> values = new HashMap<>();
+        values.put("g.value", Math.round(gaugeValue * 1000));
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey() + ".count", entry.getValue().getCount());
+        }
+        Histogram h = histograms.get("h");
+        Snapshot snapshot = h.getSnapshot();
+        double[] fixedPoints = { snapshot.getMin(), snapshot.getMax(), snapshot.getMean(), snapshot.getMedian(),
+                snapshot.get95thPercentile(), snapshot.get99thPercentile(), snapshot.get999thPercentile() };
+        values.put(HISTOGRAM_SERIES.get(0), h.getCount());
+        for (int i = 0; i < fixedPoints.length; i++) {
+            values.put(HISTOGRAM_SERIES.get(i + 1), Math.round(fixedPoints[i] * 1000));
+        }
+        return values;
+    }
+
+    private Set<String> changedSince(Map<String, Long> previous) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, Long> entry : expectedValues().entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    private void assertSameValues(BinaryDeltaDecoder decoder) {
+        for (Map.Entry<String, Long> entry : expectedValues().entrySet()) {
+            String series = entry.getKey();
+            int dot = series.indexOf('.');
+            Long decoded = decoder.getValue(series.substring(0, dot), series.substring(dot + 1));
+            assertEquals(series, entry.getValue(), decoded);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package py.netty.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import py.netty.exception.ServerOverLoadedException;
+import py.netty.message.Header;
+import py.netty.message.MessageImpl;
+import py.netty.message.MethodType;
+import py.test.TestBase;
+
+/**
+ * Checks {@link ProtobufProtocolFactory} and that it allocates less heap per RPC than encoding through byte arrays.
+ */
+public class ProtobufProtocolFactoryTest extends TestBase {
+    public interface TestService {
+        void ping(MethodCallback<FileDescriptorProto> callback);
+
+        void write(FileDescriptorProto request, MethodCallback<FileDescriptorProto> callback);
+    }
+
+    private final ProtobufProtocolFactory factory = new ProtobufProtocolFactory(TestService.class);
+    private final Protocol protocol = factory.getProtocol();
+
+    @Test
+    public void roundTrip() throws Exception {
+        FileDescriptorProto request = buildMessage();
+        Header header = new Header((byte) MethodType.WRITE.getValue(), 0, 0, 1);
+        ByteBuf packet = protocol.encodeRequest(header, request);
+        assertEquals(Header.headerLength() + request.getSerializedSize(), packet.readableBytes());
+
+        Header received = Header.fromBuffer(packet);
+        assertEquals(header, received);
+        assertEquals(request, protocol.decodeRequest(new MessageImpl(received, packet)));
+        assertEquals(0, packet.readableBytes());
+        packet.release();
+
+        // the metadata split over components of a composite buffer
+        ByteBuf encoded = protocol.encodeResponse(header, request);
+        encoded.skipBytes(Header.headerLength());
+        CompositeByteBuf composite = PooledByteBufAllocator.DEFAULT.compositeBuffer();
+        composite.addComponent(true, encoded.retainedSlice(encoded.readerIndex(), 7));
+        composite.addComponent(true, encoded.retainedSlice(encoded.readerIndex() + 7, encoded.readableBytes() - 7));
+        encoded.release();
+        assertEquals(request, protocol.decodeResponse(new MessageImpl(header, composite)));
+        composite.release();
+
+        Header pingHeader = new Header((byte) MethodType.PING.getValue(), 0, 0, 2);
+        assertNull(protocol.decodeRequest(new MessageImpl(pingHeader, null)));
+        assertEquals(TestService.class.getMethod("ping", MethodCallback.class),
+                protocol.getMethod(MethodType.PING.getValue()));
+    }
+
+    @Test
+    public void exception() throws Exception {
+        ByteBuf packet = protocol.encodeException(3, new ServerOverLoadedException(1, 2));
+        Header header = Header.fromBuffer(packet);
+        assertTrue(header.hasException());
+        assertEquals(packet.readableBytes(), header.getMetadataLength());
+        assertTrue(protocol.decodeException(packet) instanceof ServerOverLoadedException);
+        packet.release();
+    }
+
+    @Test
+    public void allocatesLessThanByteArrays() throws Exception {
+        FileDescriptorProto request = buildMessage();
+        Header header = new Header((byte) MethodType.WRITE.getValue(), 0, 0, 1);
+        int rounds = 10000;
+
+        // the first pass warms up, only the second one is checked
+        for (int pass = 0; pass < 2; pass++) {
+            long start = allocatedBytes();
+            for (int i = 0; i < rounds; i++) {
+                ByteBuf packet = protocol.encodeRequest(header, request);
+                Header received = Header.fromBuffer(packet);
+                protocol.decodeRequest(new MessageImpl(received, packet));
+                packet.release();
+            }
+            long direct = (allocatedBytes() - start) / rounds;
+
+            start = allocatedBytes();
+            for (int i = 0; i < rounds; i++) {
+                byte[] metadata = request.toByteArray();
+                header.setMetadataLength(metadata.length);
+                ByteBuf packet = PooledByteBufAllocator.DEFAULT.directBuffer(Header.headerLength() + metadata.length);
+                header.toBuffer(packet);
+                packet.writeBytes(metadata);
+
+                Header received = Header.fromBuffer(packet);
+                byte[] bytes = new byte[received.getMetadataLength()];
+                packet.readBytes(bytes);
+                FileDescriptorProto.parseFrom(bytes);
+                packet.release();
+            }
+            long byteArrays = (allocatedBytes() - start) / rounds;
+            logger.info("metadata size: {}, heap bytes allocated per rpc, protocol: {}, byte arrays: {}",
+                    request.getSerializedSize(), direct, byteArrays);
+            if (pass == 1) {
+                // the byte array path copies the metadata into two arrays, the protocol into at most one
+                assertTrue("protocol: " + direct + ", byte arrays: " + byteArrays,
+                        direct + request.getSerializedSize() <= byteArrays);
+            }
+        }
+    }
+
+    private FileDescriptorProto buildMessage() {
+        DescriptorProto.Builder type = DescriptorProto.newBuilder().setName("Volume");
+        for (int i = 0; i < 50; i++) {
+            type.addField(FieldDescriptorProto.newBuilder().setName("segment_" + i).setNumber(i + 1));
+        }
+        return FileDescriptorProto.newBuilder().setName("volume.proto").setPackage("py").addMessageType(type)
+                .build();
+    }
+
+    private long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
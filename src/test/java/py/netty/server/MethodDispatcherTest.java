@@ -0,0 +1,218 @@
+package py.netty.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.protobuf.AbstractMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import py.netty.core.MethodCallback;
+import py.netty.core.Protocol;
+import py.netty.exception.AbstractNettyException;
+import py.netty.exception.NotSupportedException;
+import py.netty.message.Header;
+import py.netty.message.Message;
+import py.test.TestBase;
+
+/**
+ * Checks that {@link MethodDispatcher} calls service methods taking a request and a callback or only a callback, both
+ * through invokers generated for public methods of public classes and through method handles for the others.
+ */
+public class MethodDispatcherTest extends TestBase {
+    private static final int WRITE = 0;
+    private static final int PING = 1;
+    private static final int FAIL = 2;
+
+    public static class PublicService {
+        final List<Object> requests = new ArrayList<>();
+
+        public void write(String request, MethodCallback<Object> callback) {
+            requests.add(request);
+            callback.complete("write " + request);
+        }
+
+        public void ping(MethodCallback<Object> callback) {
+            callback.complete("ping");
+        }
+
+        public void fail(String request, MethodCallback<Object> callback) throws Exception {
+            throw new IllegalStateException(request);
+        }
+    }
+
+    private static class PrivateService extends PublicService {
+        // overrides in a private class, so the methods looked up on this class are not accessible to generated code
+        @Override
+        public void write(String request, MethodCallback<Object> callback) {
+            super.write(request, callback);
+        }
+
+        @Override
+        public void ping(MethodCallback<Object> callback) {
+            super.ping(callback);
+        }
+
+        @Override
+        public void fail(String request, MethodCallback<Object> callback) throws Exception {
+            super.fail(request, callback);
+        }
+    }
+
+    public static class NonPublicMethodService {
+        final List<Object> requests = new ArrayList<>();
+
+        void write(String request, MethodCallback<Object> callback) {
+            requests.add(request);
+            callback.complete("write " + request);
+        }
+
+        void ping(MethodCallback<Object> callback) {
+            callback.complete("ping");
+        }
+
+        void fail(String request, MethodCallback<Object> callback) throws Exception {
+            throw new IllegalStateException(request);
+        }
+    }
+
+    @Test
+    public void generatedInvokers() throws Throwable {
+        PublicService service = new PublicService();
+        MethodDispatcher dispatcher = new MethodDispatcher(protocolOf(PublicService.class));
+        checkDispatch(dispatcher, service, service.requests, false);
+    }
+
+    @Test
+    public void methodHandleFallbackForNonPublicClass() throws Throwable {
+        PrivateService service = new PrivateService();
+        MethodDispatcher dispatcher = new MethodDispatcher(protocolOf(PrivateService.class));
+        checkDispatch(dispatcher, service, service.requests, true);
+    }
+
+    @Test
+    public void methodHandleFallbackForNonPublicMethod() throws Throwable {
+        NonPublicMethodService service = new NonPublicMethodService();
+        MethodDispatcher dispatcher = new MethodDispatcher(protocolOf(NonPublicMethodService.class));
+        checkDispatch(dispatcher, service, service.requests, true);
+    }
+
+    @Test(expected = NotSupportedException.class)
+    public void unknownMethod() throws Exception {
+        new MethodDispatcher(protocolOf(PublicService.class)).getInvoker(100);
+    }
+
+    private void checkDispatch(MethodDispatcher dispatcher, Object service, List<Object> requests,
+            boolean expectMethodHandle) throws Throwable {
+        MethodDispatcher.Invoker write = dispatcher.getInvoker(WRITE);
+        MethodDispatcher.Invoker ping = dispatcher.getInvoker(PING);
+        assertEquals(expectMethodHandle, usesMethodHandle(write));
+        assertEquals(expectMethodHandle, usesMethodHandle(ping));
+        // invokers are resolved once
+        assertSame(write, dispatcher.getInvoker(WRITE));
+
+        RecordingCallback callback = new RecordingCallback();
+        write.invoke(service, "a", callback);
+        assertEquals("write a", callback.result);
+        assertEquals(1, requests.size());
+        assertEquals("a", requests.get(0));
+
+        callback = new RecordingCallback();
+        ping.invoke(service, null, callback);
+        assertEquals("ping", callback.result);
+
+        // an exception out of the method reaches the caller as it is
+        try {
+            dispatcher.getInvoker(FAIL).invoke(service, "b", new RecordingCallback());
+            fail("the exception is not thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("b", e.getMessage());
+        }
+    }
+
+    /**
+     * Invokers falling back to a method handle capture it, generated invokers capture none.
+     */
+    private boolean usesMethodHandle(MethodDispatcher.Invoker invoker) {
+        for (Field field : invoker.getClass().getDeclaredFields()) {
+            if (MethodHandle.class.isAssignableFrom(field.getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Protocol protocolOf(Class<?> serviceClass) throws Exception {
+        Method[] methods = new Method[3];
+        methods[WRITE] = serviceClass.getDeclaredMethod("write", String.class, MethodCallback.class);
+        methods[PING] = serviceClass.getDeclaredMethod("ping", MethodCallback.class);
+        methods[FAIL] = serviceClass.getDeclaredMethod("fail", String.class, MethodCallback.class);
+        return new Protocol() {
+            @Override
+            public Method getMethod(int methodType) throws NotSupportedException {
+                if (methodType < 0 || methodType >= methods.length) {
+                    throw new NotSupportedException(methodType);
+                }
+                return methods[methodType];
+            }
+
+            @Override
+            public ByteBuf encodeRequest(Header header, AbstractMessage metadata) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ByteBuf encodeResponse(Header header, AbstractMessage metadata) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Object decodeRequest(Message msg) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Object decodeResponse(Message msg) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public AbstractNettyException decodeException(ByteBuf buffer) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ByteBuf encodeException(long requestId, AbstractNettyException e) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class RecordingCallback implements MethodCallback<Object> {
+        private Object result;
+
+        @Override
+        public void complete(Object object) {
+            result = object;
+        }
+
+        @Override
+        public void fail(Exception e) {
+            result = e;
+        }
+
+        @Override
+        public ByteBufAllocator getAllocator() {
+            return null;
+        }
+    }
+}